@@ -35,6 +35,7 @@ import org.w3c.dom.Document;
 import org.apache.felix.fileinstall.ArtifactUrlTransformer;
 import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.InstallTransaction;
 import org.apache.karaf.features.Repository;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -122,22 +123,31 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer, Bundle
             if (bundleEvent.getType() == BundleEvent.RESOLVED) {
                 try {
                     List<URL> urls = new ArrayList<URL>();
+                    // install the features of all the descriptors at once so that packages are only refreshed once
+                    InstallTransaction transaction = featuresService.createInstallTransaction(EnumSet.noneOf(FeaturesService.Option.class));
                     Enumeration featuresUrlEnumeration = bundle.findEntries("/META-INF/" + FEATURE_PATH + "/", "*.xml", false);
                     while (featuresUrlEnumeration != null && featuresUrlEnumeration.hasMoreElements()) {
                         URL url = (URL) featuresUrlEnumeration.nextElement();
                         try {
                             featuresService.addRepository(url.toURI());
+                            // the repository is removed on undeploy even if its features fail to install
+                            urls.add(url);
                             for (Repository repo : featuresService.listRepositories()) {
                                 if (repo.getURI().equals(url.toURI())) {
-                                    Set<Feature> features = new HashSet<Feature>(Arrays.asList(repo.getFeatures()));
-                                    featuresService.installFeatures(features, EnumSet.noneOf(FeaturesService.Option.class));
+                                    for (Feature feature : repo.getFeatures()) {
+                                        transaction.add(feature);
+                                    }
                                 }
                             }
-                            urls.add(url);
                         } catch (Exception e) {
                             logger.error("Unable to install features", e);
                         }
                     }
+                    try {
+                        transaction.commit();
+                    } catch (Exception e) {
+                        logger.error("Unable to install features", e);
+                    }
                     synchronized (this) {
                         File file = bundleContext.getDataFile("FeatureDeploymentListener.cfg");
                         if (file != null) {
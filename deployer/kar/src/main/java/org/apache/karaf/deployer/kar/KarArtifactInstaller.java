@@ -32,6 +32,7 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.felix.fileinstall.ArtifactInstaller;
+import org.apache.karaf.features.ArtifactCache;
 import org.apache.karaf.features.FeaturesService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,6 +91,8 @@ public class KarArtifactInstaller implements ArtifactInstaller {
 			logger.info("Installing " + file);
 
 		ZipFile zipFile = new ZipFile(file);
+		// the cache of the features service, so that it is configured and evicted in one place
+		ArtifactCache cache = featuresService.getArtifactCache();
 
         byte[] buffer = new byte[5 * 1024];
         Enumeration<ZipEntry> entries = (Enumeration<ZipEntry>) zipFile.entries();
@@ -98,7 +101,14 @@ public class KarArtifactInstaller implements ArtifactInstaller {
 
             String repoEntryName = getRepoEntryName(entry);
 			if (repoEntryName != null) {
-                File extract = extract(zipFile, buffer, entry, repoEntryName, localRepoPath);
+                File extract;
+                if (cache != null && !entry.isDirectory()) {
+                    // the artifacts are stored once in the shared cache and linked from the repository
+                    extract = new File(localRepoPath + File.separator + repoEntryName);
+                    cache.store(zipFile.getInputStream(entry), extract);
+                } else {
+                    extract = extract(zipFile, buffer, entry, repoEntryName, localRepoPath);
+                }
                 if (isFeaturesRepository(extract)) {
                     addToFeaturesRepositories(repoEntryName);
                 }
@@ -124,6 +134,9 @@ public class KarArtifactInstaller implements ArtifactInstaller {
             extract.mkdirs();
         } else {
             extract = new File(base + File.separator + repoEntryName);
+            // a previous deployment may have linked this file to the shared cache,
+            // so it is replaced rather than written through
+            extract.delete();
             BufferedOutputStream bos = new BufferedOutputStream(
                     new FileOutputStream(extract));
 
@@ -22,10 +22,23 @@ import static org.easymock.EasyMock.createMock;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.karaf.features.ArtifactCache;
 import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.internal.BundleCache;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Assert;
@@ -44,6 +57,7 @@ public class KarArtifactInstallerTest {
 	@Before
 	public void setUp() throws Exception {
 		featuresService = createMock(FeaturesService.class);
+		EasyMock.expect(featuresService.getArtifactCache()).andReturn(null).anyTimes();
 
 		karArtifactInstaller = new KarArtifactInstaller();
 
@@ -177,6 +191,94 @@ public class KarArtifactInstallerTest {
 		EasyMock.verify(featuresService);
 	}
 	
+	@Test
+	public void shouldStoreExtractedArtifactsInCache() throws Exception {
+		final List<File> stored = new ArrayList<File>();
+		ArtifactCache cache = new ArtifactCache() {
+			public void store(InputStream is, File target) throws IOException {
+				stored.add(target);
+				target.getParentFile().mkdirs();
+				OutputStream os = new FileOutputStream(target);
+				try {
+					byte[] buffer = new byte[8192];
+					int n;
+					while ((n = is.read(buffer)) != -1) {
+						os.write(buffer, 0, n);
+					}
+				} finally {
+					os.close();
+					is.close();
+				}
+			}
+		};
+		featuresService = createMock(FeaturesService.class);
+		EasyMock.expect(featuresService.getArtifactCache()).andReturn(cache);
+		featuresService.addRepository(EasyMock.anyObject(URI.class));
+		EasyMock.replay(featuresService);
+		karArtifactInstaller.setFeaturesService(featuresService);
+
+		File goodKarFile = new File(getClass().getClassLoader().getResource("goodKarFile.kar").getFile());
+		karArtifactInstaller.install(goodKarFile);
+
+		EasyMock.verify(featuresService);
+		File extracted = new File("./target/local-repo/org/foo/goodFeaturesXml.xml");
+		Assert.assertTrue(extracted.isFile());
+		Assert.assertTrue(karArtifactInstaller.isFeaturesRepository(extracted));
+		// the features descriptor and the empty text file
+		Assert.assertEquals(2, stored.size());
+		Assert.assertTrue(stored.contains(extracted));
+	}
+
+	@Test
+	public void shouldNotModifyCachedArtifactsOnRedeployWithoutCache() throws Exception {
+		BundleCache cache = new BundleCache(new File("./target/kar-cache-" + System.currentTimeMillis()), BundleCache.DEFAULT_MAX_SIZE);
+		File kar = new File("./target/redeployed.kar");
+		writeKar(kar, "first");
+		featuresService = createMock(FeaturesService.class);
+		EasyMock.expect(featuresService.getArtifactCache()).andReturn(cache);
+		EasyMock.expect(featuresService.getArtifactCache()).andReturn(null);
+		EasyMock.replay(featuresService);
+		karArtifactInstaller.setFeaturesService(featuresService);
+
+		karArtifactInstaller.install(kar);
+		writeKar(kar, "second");
+		kar.setLastModified(System.currentTimeMillis() + 60000);
+		karArtifactInstaller.update(kar);
+
+		EasyMock.verify(featuresService);
+		File extracted = new File("./target/local-repo/org/foo/artifact.txt");
+		Assert.assertEquals("second", read(extracted));
+		// storing the first content again finds the object of the first deployment
+		File object = cache.put(new ByteArrayInputStream("first".getBytes()));
+		Assert.assertEquals("first", read(object));
+	}
+
+	private static void writeKar(File kar, String content) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(kar));
+		try {
+			zos.putNextEntry(new ZipEntry("repository/org/foo/artifact.txt"));
+			zos.write(content.getBytes());
+			zos.closeEntry();
+		} finally {
+			zos.close();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				os.write(buffer, 0, n);
+			}
+			return os.toString();
+		} finally {
+			is.close();
+		}
+	}
+
 	@Test (expected = java.io.IOException.class) 
 	public void shouldThrowExceptionIfFileDoesNotExist() throws Exception
 	{
@@ -17,12 +17,18 @@
 package org.apache.karaf.features.command;
 
 import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.felix.gogo.commands.Option;
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.InstallPlan;
 import org.apache.felix.gogo.commands.Argument;
 import org.apache.felix.gogo.commands.Command;
+import org.osgi.framework.Bundle;
 
 @Command(scope = "features", name = "install", description = "Installs a feature with the specified name and version.")
 public class InstallFeatureCommand extends FeaturesCommandSupport {
@@ -37,8 +43,14 @@ public class InstallFeatureCommand extends FeaturesCommandSupport {
     boolean noRefresh;
     @Option(name = "-v", aliases = "--verbose", description = "Explain what is being done", required = false, multiValued = false)
     boolean verbose;
+    @Option(name = "-d", aliases = "--dry-run", description = "Display what would be installed and refreshed without installing anything", required = false, multiValued = false)
+    boolean dryRun;
 
     protected void doExecute(FeaturesService admin) throws Exception {
+        if (dryRun) {
+            plan(admin);
+            return;
+        }
         for (String feature : features) {
             String[] split = feature.split("/");
             String name = split[0];
@@ -62,4 +74,34 @@ public class InstallFeatureCommand extends FeaturesCommandSupport {
             admin.installFeature(name, version, options);
         }
     }
+
+    private void plan(FeaturesService admin) throws Exception {
+        Set<Feature> toPlan = new LinkedHashSet<Feature>();
+        for (String feature : features) {
+            String[] split = feature.split("/");
+            String version = split.length == 2 && split[1].length() > 0 ? split[1] : DEFAULT_VERSION;
+            Feature f = admin.getFeature(split[0], version);
+            if (f == null) {
+                throw new Exception("No feature named '" + split[0] + "' with version '" + version + "' available");
+            }
+            toPlan.add(f);
+        }
+        InstallPlan plan = admin.plan(toPlan);
+        System.out.println("Features:");
+        for (Feature f : plan.getFeatures()) {
+            System.out.println("    " + f.getName() + " " + f.getVersion() + (admin.isInstalled(f) ? " (installed)" : ""));
+        }
+        System.out.println("Bundles to install:");
+        for (BundleInfo b : plan.getBundlesToInstall()) {
+            System.out.println("    " + b.getLocation());
+        }
+        System.out.println("Bundles already installed:");
+        for (Bundle b : plan.getInstalledBundles()) {
+            System.out.println("    " + b.getSymbolicName() + " (" + b.getBundleId() + ")");
+        }
+        System.out.println("Bundles to refresh:");
+        for (Bundle b : plan.getBundlesToRefresh()) {
+            System.out.println("    " + b.getSymbolicName() + " (" + b.getBundleId() + ")");
+        }
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.command;
+
+import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.Option;
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Timing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Command(scope = "features", name = "stats", description = "Displays the time spent installing features, per phase and per feature.")
+public class StatsCommand extends FeaturesCommandSupport {
+
+    @Option(name = "-n", aliases = {"--max"}, description = "The maximum number of features to display, sorted by total time (defaults to 10, -1 displays all the features)", required = false, multiValued = false)
+    int max = 10;
+
+    @Option(name = "-p", aliases = {"--phases"}, description = "Also display the time spent in each phase of the displayed features", required = false, multiValued = false)
+    boolean phases;
+
+    private static final String[] HEADERS = { "Count", "Total", "Mean", "50%", "90%", "99%", "Max" };
+
+    private static final Comparator<Timing> BY_TOTAL_TIME = new Comparator<Timing>() {
+        public int compare(Timing t1, Timing t2) {
+            return t1.getTotalTime() > t2.getTotalTime() ? -1 : t1.getTotalTime() < t2.getTotalTime() ? 1 : 0;
+        }
+    };
+
+    protected void doExecute(FeaturesService admin) throws Exception {
+        Timing[] phaseTimings = admin.getPhaseTimings();
+        Timing[] features = admin.getFeatureTimings();
+        if (phaseTimings.length == 0 && features.length == 0) {
+            System.out.println("No features installed since the features service started.");
+            return;
+        }
+        Arrays.sort(phaseTimings, new Comparator<Timing>() {
+            public int compare(Timing t1, Timing t2) {
+                return t1.getName().compareTo(t2.getName());
+            }
+        });
+        Arrays.sort(features, BY_TOTAL_TIME);
+        if (max >= 0 && features.length > max) {
+            Timing[] top = new Timing[max];
+            System.arraycopy(features, 0, top, 0, max);
+            features = top;
+        }
+        System.out.println("Times in milliseconds, percentiles over the recent operations");
+        System.out.println();
+        print("Phase", phaseTimings);
+        if (features.length > 0) {
+            System.out.println();
+            print("Feature", features);
+        }
+        if (phases && features.length > 0) {
+            Set<String> ids = new HashSet<String>();
+            for (Timing t : features) {
+                ids.add(t.getName());
+            }
+            List<Timing> featurePhases = new ArrayList<Timing>();
+            for (Timing t : admin.getFeaturePhaseTimings()) {
+                int index = t.getName().lastIndexOf('/');
+                if (index > 0 && ids.contains(t.getName().substring(0, index))) {
+                    featurePhases.add(t);
+                }
+            }
+            Collections.sort(featurePhases, BY_TOTAL_TIME);
+            System.out.println();
+            print("Feature/Phase", featurePhases.toArray(new Timing[featurePhases.size()]));
+        }
+    }
+
+    private void print(String title, Timing[] timings) {
+        int maxNameSize = title.length();
+        for (Timing t : timings) {
+            maxNameSize = Math.max(maxNameSize, t.getName().length());
+        }
+        StringBuilder sb = new StringBuilder();
+        append(sb, title, maxNameSize, false);
+        for (String header : HEADERS) {
+            append(sb, header, 8, true);
+        }
+        System.out.println(sb.toString());
+        for (Timing t : timings) {
+            sb.setLength(0);
+            append(sb, t.getName(), maxNameSize, false);
+            long[] values = { t.getCount(), t.getTotalTime(), t.getMeanTime(),
+                              t.getPercentile(50), t.getPercentile(90), t.getPercentile(99), t.getMaxTime() };
+            for (long value : values) {
+                append(sb, Long.toString(value), 8, true);
+            }
+            System.out.println(sb.toString());
+        }
+    }
+
+    private void append(StringBuilder sb, String s, int width, boolean right) {
+        if (right) {
+            sb.append(" ");
+            for (int i = s.length(); i < width; i++) {
+                sb.append(" ");
+            }
+            sb.append(s);
+        } else {
+            sb.append(s);
+            for (int i = s.length(); i < width; i++) {
+                sb.append(" ");
+            }
+        }
+    }
+
+}
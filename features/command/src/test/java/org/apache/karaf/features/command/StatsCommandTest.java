@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Timing;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+public class StatsCommandTest extends TestCase {
+
+    public void testNoFeaturesInstalled() throws Exception {
+        FeaturesService service = createMock(FeaturesService.class);
+        expect(service.getPhaseTimings()).andReturn(new Timing[0]);
+        expect(service.getFeatureTimings()).andReturn(new Timing[0]);
+        replay(service);
+
+        String output = execute(new StatsCommand(), service);
+        assertEquals("No features installed since the features service started.", output.trim());
+        verify(service);
+    }
+
+    public void testFeaturesSortedByTotalTime() throws Exception {
+        FeaturesService service = createMock(FeaturesService.class);
+        expect(service.getPhaseTimings()).andReturn(new Timing[] {
+                new TestTiming(Timing.INSTALL, 3, 60), new TestTiming(Timing.DOWNLOAD, 3, 300) });
+        expect(service.getFeatureTimings()).andReturn(new Timing[] {
+                new TestTiming("http-1.0", 1, 100), new TestTiming("web-1.0", 1, 250), new TestTiming("ssh-1.0", 1, 10) });
+        replay(service);
+
+        StatsCommand command = new StatsCommand();
+        command.max = 2;
+        String[] lines = execute(command, service).split("\n");
+        verify(service);
+
+        assertTrue(lines[2].startsWith("Phase"));
+        // phases sorted by name
+        assertTrue(lines[3].startsWith("download"));
+        assertTrue(lines[3].trim().endsWith("100"));
+        assertTrue(lines[4].startsWith("install"));
+        // features sorted by total time and limited
+        assertTrue(lines[6].startsWith("Feature"));
+        assertTrue(lines[7].startsWith("web-1.0"));
+        assertTrue(lines[8].startsWith("http-1.0"));
+        assertEquals(9, lines.length);
+    }
+
+    public void testPhasesOfTheDisplayedFeatures() throws Exception {
+        FeaturesService service = createMock(FeaturesService.class);
+        expect(service.getPhaseTimings()).andReturn(new Timing[] { new TestTiming(Timing.DOWNLOAD, 3, 300) });
+        expect(service.getFeatureTimings()).andReturn(new Timing[] {
+                new TestTiming("http-1.0", 1, 100), new TestTiming("web-1.0", 1, 250) });
+        expect(service.getFeaturePhaseTimings()).andReturn(new Timing[] {
+                new TestTiming("http-1.0/" + Timing.DOWNLOAD, 1, 80),
+                new TestTiming("web-1.0/" + Timing.DOWNLOAD, 2, 220),
+                new TestTiming("web-1.0/" + Timing.START, 2, 30) });
+        replay(service);
+
+        StatsCommand command = new StatsCommand();
+        command.max = 1;
+        command.phases = true;
+        String[] lines = execute(command, service).split("\n");
+        verify(service);
+
+        assertTrue(lines[lines.length - 3].startsWith("Feature/Phase"));
+        assertTrue(lines[lines.length - 2].startsWith("web-1.0/download"));
+        assertTrue(lines[lines.length - 1].startsWith("web-1.0/start"));
+    }
+
+    private String execute(StatsCommand command, FeaturesService service) throws Exception {
+        PrintStream out = System.out;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(baos));
+        try {
+            command.doExecute(service);
+        } finally {
+            System.setOut(out);
+        }
+        return baos.toString().replace("\r", "");
+    }
+
+    private static class TestTiming implements Timing {
+        private final String name;
+        private final long count;
+        private final long total;
+
+        TestTiming(String name, long count, long total) {
+            this.name = name;
+            this.count = count;
+            this.total = total;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTime() {
+            return total;
+        }
+
+        public long getMinTime() {
+            return total / count;
+        }
+
+        public long getMaxTime() {
+            return total / count;
+        }
+
+        public long getMeanTime() {
+            return total / count;
+        }
+
+        public long getPercentile(int percent) {
+            return total / count;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A store of artifacts shared with the features service, so that an artifact obtained
+ * from different places is only kept once on disk.
+ */
+public interface ArtifactCache {
+
+    /**
+     * Store the given content in the cache and make it available at the given place, as a
+     * hard link when possible or as a copy otherwise.  The stream is closed.  The target must
+     * not be modified as it may share its content with the cache.
+     */
+    void store(InputStream is, File target) throws IOException;
+
+}
@@ -59,6 +59,44 @@ public interface FeaturesService {
 
     void installFeatures(Set<Feature> features, EnumSet<Option> options) throws Exception;
 
+    /**
+     * Create a transaction to install several features with a single package refresh.
+     */
+    InstallTransaction createInstallTransaction(EnumSet<Option> options);
+
+    /**
+     * Compute what the installation of the given features would do, without installing them.
+     */
+    InstallPlan plan(Set<Feature> features) throws Exception;
+
+    /**
+     * Timing statistics of each phase of the installation of features, see the phases
+     * defined in {@link Timing}.
+     */
+    Timing[] getPhaseTimings();
+
+    /**
+     * Timing statistics of the installation of each feature.
+     */
+    Timing[] getFeatureTimings();
+
+    /**
+     * Timing statistics of each phase of the installation of each feature, named
+     * <code>&lt;feature id&gt;/&lt;phase&gt;</code>.
+     */
+    Timing[] getFeaturePhaseTimings();
+
+    /**
+     * Number of times the map of available features has been fully rebuilt from the
+     * repositories, as opposed to being updated when a repository is added or removed.
+     */
+    long getFeaturesRebuildCount();
+
+    /**
+     * The cache of artifacts used by this service, or <code>null</code> if it is disabled.
+     */
+    ArtifactCache getArtifactCache();
+
     void uninstallFeature(String name) throws Exception;
     
     void uninstallFeature(String name, String version) throws Exception;
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * What the installation of a set of features would do, as computed by
+ * {@link FeaturesService#plan(Set)} without installing anything.
+ */
+public class InstallPlan {
+
+    private final List<Feature> features;
+    private final List<BundleInfo> bundlesToInstall;
+    private final List<Bundle> installedBundles;
+    private final Set<Bundle> bundlesToRefresh;
+
+    public InstallPlan(List<Feature> features, List<BundleInfo> bundlesToInstall,
+                       List<Bundle> installedBundles, Set<Bundle> bundlesToRefresh) {
+        this.features = Collections.unmodifiableList(new ArrayList<Feature>(features));
+        this.bundlesToInstall = Collections.unmodifiableList(new ArrayList<BundleInfo>(bundlesToInstall));
+        this.installedBundles = Collections.unmodifiableList(new ArrayList<Bundle>(installedBundles));
+        this.bundlesToRefresh = Collections.unmodifiableSet(new LinkedHashSet<Bundle>(bundlesToRefresh));
+    }
+
+    /**
+     * The features to install and all their dependencies, each feature coming after its dependencies.
+     */
+    public List<Feature> getFeatures() {
+        return features;
+    }
+
+    /**
+     * The bundles which are not installed yet.
+     */
+    public List<BundleInfo> getBundlesToInstall() {
+        return bundlesToInstall;
+    }
+
+    /**
+     * The bundles of the features which are already installed.
+     */
+    public List<Bundle> getInstalledBundles() {
+        return installedBundles;
+    }
+
+    /**
+     * The installed bundles which are expected to be refreshed.  When the content of some of the
+     * bundles to install is not available locally, this includes all the installed bundles which
+     * have optional imports, as they may be wired to the new bundles.
+     */
+    public Set<Bundle> getBundlesToRefresh() {
+        return bundlesToRefresh;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A set of features installed together.
+ * Features are queued with the <code>add</code> methods and installed when the
+ * transaction is committed: the bundles of all the queued features are installed,
+ * the packages are refreshed once, and the bundles are then started.
+ * Unless the {@link FeaturesService.Option#NoCleanIfFailure} option is used, a failure
+ * uninstalls all the bundles installed by the transaction.
+ */
+public class InstallTransaction {
+
+    private final FeaturesService featuresService;
+    private final EnumSet<FeaturesService.Option> options;
+    private final Set<Feature> features = new LinkedHashSet<Feature>();
+    private boolean committed;
+
+    public InstallTransaction(FeaturesService featuresService, EnumSet<FeaturesService.Option> options) {
+        this.featuresService = featuresService;
+        this.options = options;
+    }
+
+    public synchronized void add(Feature feature) {
+        if (committed) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        features.add(feature);
+    }
+
+    public void add(String name, String version) throws Exception {
+        Feature f = featuresService.getFeature(name, version);
+        if (f == null) {
+            throw new Exception("No feature named '" + name
+                    + "' with version '" + version + "' available");
+        }
+        add(f);
+    }
+
+    public synchronized Set<Feature> getFeatures() {
+        return Collections.unmodifiableSet(new LinkedHashSet<Feature>(features));
+    }
+
+    /**
+     * Install all the queued features.
+     */
+    public void commit() throws Exception {
+        Set<Feature> toInstall;
+        synchronized (this) {
+            if (committed) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            committed = true;
+            toInstall = new LinkedHashSet<Feature>(features);
+        }
+        if (!toInstall.isEmpty()) {
+            featuresService.installFeatures(toInstall, options);
+        }
+    }
+
+}
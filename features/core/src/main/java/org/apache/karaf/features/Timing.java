@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features;
+
+/**
+ * Timing statistics of an operation of the features service.
+ * Times are in milliseconds.  Percentiles are computed over the most recent samples.
+ */
+public interface Timing {
+
+    /**
+     * The phases of the installation of features.
+     */
+    String REPOSITORY = "repository";
+    String RESOLVE = "resolve";
+    String DOWNLOAD = "download";
+    String INSTALL = "install";
+    String REFRESH = "refresh";
+    String START = "start";
+    String UNINSTALL = "uninstall";
+
+    /**
+     * The name of the phase or the id of the feature.
+     */
+    String getName();
+
+    long getCount();
+
+    long getTotalTime();
+
+    long getMinTime();
+
+    long getMaxTime();
+
+    long getMeanTime();
+
+    /**
+     * @param percent the percentile, between 0 and 100
+     */
+    long getPercentile(int percent);
+
+}
@@ -0,0 +1,455 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.karaf.features.ArtifactCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed store of artifacts, shared by all the instances using the same directory.
+ * Each artifact is stored once under the SHA-1 of its content, so identical artifacts obtained
+ * from different locations or archives are only kept once.  Immutable locations, i.e. maven
+ * urls of released artifacts, are also indexed so that they can be found without going to
+ * the network.
+ * The least recently used artifacts are removed when the cache grows over its maximum size.
+ * The size is tracked in memory and only recomputed when cleaning up, so that artifacts added
+ * by other instances are accounted for lazily.
+ * Artifacts are always written to a temporary file and then renamed, so that concurrent
+ * readers and writers, possibly from other processes, never see a partial artifact.
+ * As the cleanups are not coordinated between processes, readers are handed private hard
+ * links to the artifacts, which remain readable when the artifacts are removed.
+ */
+public class BundleCache implements ArtifactCache {
+
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024L * 1024L;
+
+    /**
+     * The age after which a temporary file is considered abandoned by a crashed instance.
+     */
+    private static final long TMP_EXPIRY = 24L * 60L * 60L * 1000L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleCache.class);
+
+    private static final Method TO_PATH;
+    private static final Method CREATE_LINK;
+
+    static {
+        // java.nio.file is only available on Java 7 and later
+        Method toPath = null;
+        Method createLink = null;
+        try {
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class<?> files = Class.forName("java.nio.file.Files");
+            toPath = File.class.getMethod("toPath");
+            createLink = files.getMethod("createLink", path, path);
+        } catch (Exception e) {
+            toPath = null;
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private final File objects;
+    private final File locations;
+    private final File tmp;
+    private final long maxSize;
+    private long size = -1;
+
+    /**
+     * @param directory the directory holding the cache
+     * @param maxSize   the size in bytes above which the least recently used artifacts are removed
+     */
+    public BundleCache(File directory, long maxSize) {
+        this.objects = new File(directory, "objects");
+        this.locations = new File(directory, "locations");
+        this.tmp = new File(directory, "tmp");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Check if the content of the given location never changes, so that it can be indexed.
+     * Only <code>mvn:</code> urls with a released version qualify: urls without a version,
+     * with a version range or with the <code>LATEST</code> and <code>RELEASE</code> versions
+     * resolve to newer artifacts over time.
+     */
+    public static boolean isCacheable(String location) {
+        if (location == null || !location.startsWith("mvn:")) {
+            return false;
+        }
+        String path = location.substring("mvn:".length());
+        // skip the repository of mvn:<repository>!<group>/<artifact>/<version>
+        path = path.substring(path.lastIndexOf('!') + 1);
+        String[] segments = path.split("/");
+        if (segments.length < 3) {
+            return false;
+        }
+        String version = segments[2].trim();
+        return version.length() > 0
+                && !version.contains("SNAPSHOT")
+                && !"LATEST".equals(version)
+                && !"RELEASE".equals(version)
+                && !version.startsWith("[") && !version.startsWith("(") && !version.contains(",");
+    }
+
+    /**
+     * Find the artifact cached for the given location.
+     * The returned file is shared with the other instances and may be removed by
+     * their cleanups at any time, use {@link #checkout(String)} to read it safely.
+     *
+     * @return the cached file, or <code>null</code> if the location is not cached
+     */
+    public File get(String location) {
+        if (!isCacheable(location)) {
+            return null;
+        }
+        File entry = new File(locations, sha1(location));
+        String hash;
+        try {
+            hash = entry.isFile() ? readFully(entry) : null;
+        } catch (IOException e) {
+            hash = null;
+        }
+        if (hash == null) {
+            return null;
+        }
+        File object = getObject(hash);
+        if (!object.isFile()) {
+            // the artifact has been removed from the cache
+            entry.delete();
+            return null;
+        }
+        object.setLastModified(System.currentTimeMillis());
+        return object;
+    }
+
+    /**
+     * Find the artifact cached for the given location and make it available as a private
+     * file, which is not affected by the removal of the artifact from the cache.
+     * The file must be deleted by the caller once it is not needed anymore.
+     *
+     * @return the private file, or <code>null</code> if the location is not cached
+     */
+    public File checkout(String location) {
+        File object = get(location);
+        if (object == null) {
+            return null;
+        }
+        File file = null;
+        try {
+            file = newTempFile("checkout");
+            link(object, file);
+            return file;
+        } catch (IOException e) {
+            // the artifact has been removed by another instance in the meantime
+            LOGGER.debug("Unable to check " + object.getName() + " out of the bundle cache", e);
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store the given content in the cache.
+     *
+     * @return the cached file
+     */
+    public File put(InputStream is) throws IOException {
+        return put(null, is);
+    }
+
+    /**
+     * Store the given content in the cache, indexing it under the given location if
+     * the location is immutable.  The stream is closed.
+     *
+     * @return the cached file, shared as the one returned by {@link #get(String)}
+     */
+    public File put(String location, InputStream is) throws IOException {
+        return add(location, is, null);
+    }
+
+    /**
+     * Store the given content in the cache, indexing it under the given location if
+     * the location is immutable, and make it available as a private file as
+     * {@link #checkout(String)} does.  The stream is closed.
+     *
+     * @return the private file, to be deleted by the caller
+     */
+    public File store(String location, InputStream is) throws IOException {
+        File file = newTempFile("checkout");
+        try {
+            add(location, is, file);
+            return file;
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    public void store(InputStream is, File target) throws IOException {
+        add(null, is, target);
+    }
+
+    private File add(String location, InputStream is, File target) throws IOException {
+        File file;
+        try {
+            file = newTempFile("artifact");
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        String hash;
+        long length;
+        try {
+            MessageDigest digest = newDigest();
+            OutputStream os = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, bytesRead);
+                    os.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                os.close();
+            }
+            hash = toHex(digest.digest());
+            length = file.length();
+            // the target is linked before the artifact is visible to the other instances,
+            // so that their cleanups can not remove it in between
+            if (target != null) {
+                link(file, target);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            is.close();
+        }
+        File object = getObject(hash);
+        if (object.isFile()) {
+            file.delete();
+            object.setLastModified(System.currentTimeMillis());
+        } else {
+            object.getParentFile().mkdirs();
+            if (!file.renameTo(object) && !object.isFile()) {
+                file.delete();
+                throw new IOException("Unable to rename " + file + " to " + object);
+            }
+            added(length, object);
+        }
+        if (isCacheable(location)) {
+            locations.mkdirs();
+            File entry = newTempFile("location");
+            write(entry, hash);
+            File entryTarget = new File(locations, sha1(location));
+            if (!entry.renameTo(entryTarget)) {
+                // some platforms can not rename over an existing file
+                entryTarget.delete();
+                if (!entry.renameTo(entryTarget)) {
+                    entry.delete();
+                }
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Make a cached file available at the given place, as a hard link when the platform and
+     * file system allow it, or as a copy otherwise.  The target must not be modified as it
+     * may share its content with the cache.
+     */
+    public void link(File object, File target) throws IOException {
+        target.delete();
+        target.getParentFile().mkdirs();
+        if (CREATE_LINK != null) {
+            try {
+                CREATE_LINK.invoke(null, TO_PATH.invoke(target), TO_PATH.invoke(object));
+                return;
+            } catch (Exception e) {
+                LOGGER.debug("Unable to link " + target + " to " + object + ", copying it", e);
+            }
+        }
+        InputStream is = new FileInputStream(object);
+        try {
+            OutputStream os = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Remove the least recently used artifacts until the cache fits in its maximum size,
+     * along with the temporary files left over by the instances which did not clean up.
+     */
+    public void evict() {
+        evict(null);
+    }
+
+    private synchronized void evict(File keep) {
+        long now = System.currentTimeMillis();
+        File[] temps = tmp.listFiles();
+        if (temps != null) {
+            for (File f : temps) {
+                // checked out files share their modification time with the artifact, which
+                // is updated on each use, so only the abandoned ones are that old
+                if (now - f.lastModified() > TMP_EXPIRY && f.delete()) {
+                    LOGGER.debug("Removed stale temporary file {} from the bundle cache", f.getName());
+                }
+            }
+        }
+        List<File> files = new ArrayList<File>();
+        long total = 0;
+        File[] dirs = objects.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] children = dir.listFiles();
+                if (children != null) {
+                    for (File f : children) {
+                        // the artifact being added is always kept
+                        if (!f.equals(keep)) {
+                            files.add(f);
+                        }
+                        total += f.length();
+                    }
+                }
+            }
+        }
+        if (total > maxSize) {
+            Collections.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long l1 = f1.lastModified();
+                    long l2 = f2.lastModified();
+                    return l1 < l2 ? -1 : l1 > l2 ? 1 : 0;
+                }
+            });
+            for (int i = 0; i < files.size() && total > maxSize; i++) {
+                File f = files.get(i);
+                long length = f.length();
+                if (f.delete()) {
+                    LOGGER.debug("Removed {} from the bundle cache", f.getName());
+                    total -= length;
+                }
+            }
+        }
+        size = total;
+    }
+
+    /**
+     * The size in bytes of the cached artifacts, as last computed.
+     */
+    public synchronized long getSize() {
+        if (size < 0) {
+            evict();
+        }
+        return size;
+    }
+
+    private synchronized void added(long length, File object) {
+        if (size < 0) {
+            evict(object);
+        } else {
+            size += length;
+            if (size > maxSize) {
+                evict(object);
+            }
+        }
+    }
+
+    private File newTempFile(String prefix) throws IOException {
+        tmp.mkdirs();
+        return File.createTempFile(prefix, null, tmp);
+    }
+
+    private File getObject(String hash) {
+        return new File(new File(objects, hash.substring(0, 2)), hash);
+    }
+
+    private static String readFully(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = is.read()) != -1) {
+                sb.append((char) c);
+            }
+            return sb.toString().trim();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static String sha1(String s) {
+        try {
+            return toHex(newDigest().digest(s.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+
+/**
+ * Index of the installed bundles keyed by symbolic name and version, used to find
+ * out if a bundle is already installed without scanning all the bundles.  A second
+ * index keyed by location is only built if bundles are looked up by location.
+ * Once opened, the index is built on first use and then kept up to date from the
+ * bundle events.  Until then, lookups fall back to scanning the installed bundles.
+ */
+public class BundleIndex implements SynchronousBundleListener {
+
+    private final BundleContext bundleContext;
+    private Map<Key, Bundle> bundles;
+    private Map<Long, Key> keys;
+    private Map<String, Bundle> locations;
+    private Map<Long, String> locationKeys;
+    private boolean opened;
+
+    public BundleIndex(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    public synchronized void open() {
+        bundleContext.addBundleListener(this);
+        opened = true;
+    }
+
+    public synchronized void close() {
+        bundleContext.removeBundleListener(this);
+        opened = false;
+        bundles = null;
+        keys = null;
+        locations = null;
+        locationKeys = null;
+    }
+
+    /**
+     * Find the installed bundle with the given symbolic name and version.
+     *
+     * @return the bundle or <code>null</code> if no such bundle is installed
+     */
+    public Bundle getBundle(String symbolicName, Version version) {
+        if (symbolicName == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (opened) {
+                if (bundles == null) {
+                    bundles = new HashMap<Key, Bundle>();
+                    keys = new HashMap<Long, Key>();
+                    for (Bundle b : bundleContext.getBundles()) {
+                        add(b);
+                    }
+                }
+                return bundles.get(new Key(symbolicName, version));
+            }
+        }
+        for (Bundle b : bundleContext.getBundles()) {
+            if (b.getSymbolicName() != null && b.getSymbolicName().equals(symbolicName)) {
+                if (version.equals(getVersion(b))) {
+                    return b;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the installed bundle with the given location.
+     *
+     * @return the bundle or <code>null</code> if no bundle has been installed from this location
+     */
+    public Bundle getBundle(String location) {
+        if (location == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (opened) {
+                if (locations == null) {
+                    locations = new HashMap<String, Bundle>();
+                    locationKeys = new HashMap<Long, String>();
+                    for (Bundle b : bundleContext.getBundles()) {
+                        addLocation(b);
+                    }
+                }
+                return locations.get(location);
+            }
+        }
+        for (Bundle b : bundleContext.getBundles()) {
+            if (location.equals(b.getLocation())) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UPDATED:
+                if (bundles != null) {
+                    remove(event.getBundle());
+                    add(event.getBundle());
+                }
+                if (locations != null) {
+                    removeLocation(event.getBundle());
+                    addLocation(event.getBundle());
+                }
+                break;
+            case BundleEvent.UNINSTALLED:
+                if (bundles != null) {
+                    remove(event.getBundle());
+                }
+                if (locations != null) {
+                    removeLocation(event.getBundle());
+                }
+                break;
+        }
+    }
+
+    private void add(Bundle bundle) {
+        if (bundle.getSymbolicName() != null) {
+            Key key = new Key(bundle.getSymbolicName(), getVersion(bundle));
+            bundles.put(key, bundle);
+            keys.put(bundle.getBundleId(), key);
+        }
+    }
+
+    private void remove(Bundle bundle) {
+        Key key = keys.remove(bundle.getBundleId());
+        if (key != null && bundles.get(key) == bundle) {
+            bundles.remove(key);
+        }
+    }
+
+    private void addLocation(Bundle bundle) {
+        if (bundle.getLocation() != null) {
+            locations.put(bundle.getLocation(), bundle);
+            locationKeys.put(bundle.getBundleId(), bundle.getLocation());
+        }
+    }
+
+    private void removeLocation(Bundle bundle) {
+        String location = locationKeys.remove(bundle.getBundleId());
+        if (location != null && locations.get(location) == bundle) {
+            locations.remove(location);
+        }
+    }
+
+    private static Version getVersion(Bundle bundle) {
+        String vStr = (String) bundle.getHeaders().get(Constants.BUNDLE_VERSION);
+        return vStr == null ? Version.emptyVersion : Version.parseVersion(vStr);
+    }
+
+    private static class Key {
+        private final String symbolicName;
+        private final Version version;
+
+        Key(String symbolicName, Version version) {
+            this.symbolicName = symbolicName;
+            this.version = version;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return symbolicName.equals(key.symbolicName) && version.equals(key.version);
+        }
+
+        public int hashCode() {
+            return 31 * symbolicName.hashCode() + version.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.apache.felix.utils.version.VersionRange;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+
+/**
+ * The parsed package, bundle and fragment headers of the installed bundles, used to find out
+ * which bundles need to be refreshed after an installation and in which order to start them.
+ * Once opened, the headers of a bundle are parsed on first use and kept until the bundle
+ * is updated or uninstalled, so that they always match the current revision of the bundle.
+ * Until then, the headers are parsed each time they are needed.
+ */
+public class BundleManifests implements SynchronousBundleListener {
+
+    private final BundleContext bundleContext;
+    private final Map<Bundle, Manifest> manifests = new HashMap<Bundle, Manifest>();
+    private boolean opened;
+
+    public BundleManifests(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    public synchronized void open() {
+        bundleContext.addBundleListener(this);
+        opened = true;
+    }
+
+    public synchronized void close() {
+        bundleContext.removeBundleListener(this);
+        opened = false;
+        manifests.clear();
+    }
+
+    public Manifest getManifest(Bundle bundle) {
+        synchronized (this) {
+            if (opened) {
+                Manifest manifest = manifests.get(bundle);
+                if (manifest == null) {
+                    manifest = new Manifest(bundle.getHeaders());
+                    manifests.put(bundle, manifest);
+                }
+                return manifest;
+            }
+        }
+        return new Manifest(bundle.getHeaders());
+    }
+
+    public synchronized void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNINSTALLED:
+                manifests.remove(event.getBundle());
+                break;
+        }
+    }
+
+    /**
+     * The parsed headers of a bundle.
+     */
+    public static class Manifest {
+        private final List<Import> optionalImports;
+        private final List<String> imports;
+        private final List<Export> exports;
+        private final List<String> requiredBundles;
+        private final String fragmentHost;
+        private final VersionRange fragmentHostVersion;
+
+        Manifest(Dictionary headers) {
+            String importHeader = (String) headers.get(Constants.IMPORT_PACKAGE);
+            optionalImports = parseOptionalImports(importHeader);
+            imports = parseNames(importHeader);
+            exports = parseExports((String) headers.get(Constants.EXPORT_PACKAGE));
+            requiredBundles = parseNames((String) headers.get(Constants.REQUIRE_BUNDLE));
+            String hostHeader = (String) headers.get(Constants.FRAGMENT_HOST);
+            Clause[] clauses = hostHeader != null ? Parser.parseHeader(hostHeader) : null;
+            if (clauses != null && clauses.length > 0) {
+                fragmentHost = clauses[0].getName();
+                String ver = clauses[0].getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE);
+                fragmentHostVersion = ver != null ? VersionRange.parseVersionRange(ver) : null;
+            } else {
+                fragmentHost = null;
+                fragmentHostVersion = null;
+            }
+        }
+
+        public List<Import> getOptionalImports() {
+            return optionalImports;
+        }
+
+        /**
+         * @return the names of all the imported packages, optional or not
+         */
+        public List<String> getImports() {
+            return imports;
+        }
+
+        public List<Export> getExports() {
+            return exports;
+        }
+
+        /**
+         * @return the symbolic names of the required bundles
+         */
+        public List<String> getRequiredBundles() {
+            return requiredBundles;
+        }
+
+        /**
+         * @return the symbolic name of the host if the bundle is a fragment, <code>null</code> otherwise
+         */
+        public String getFragmentHost() {
+            return fragmentHost;
+        }
+
+        /**
+         * @return the version range of the host, or <code>null</code> if any version matches
+         */
+        public VersionRange getFragmentHostVersion() {
+            return fragmentHostVersion;
+        }
+
+        private static List<Import> parseOptionalImports(String header) {
+            if (header == null) {
+                return Collections.emptyList();
+            }
+            List<Import> imports = new ArrayList<Import>();
+            for (Clause clause : Parser.parseHeader(header)) {
+                if (Constants.RESOLUTION_OPTIONAL.equals(clause.getDirective(Constants.RESOLUTION_DIRECTIVE))) {
+                    String ver = clause.getAttribute(Constants.VERSION_ATTRIBUTE);
+                    imports.add(new Import(clause, ver != null ? VersionRange.parseVersionRange(ver) : VersionRange.ANY_VERSION));
+                }
+            }
+            return imports;
+        }
+
+        private static List<String> parseNames(String header) {
+            if (header == null) {
+                return Collections.emptyList();
+            }
+            List<String> names = new ArrayList<String>();
+            for (Clause clause : Parser.parseHeader(header)) {
+                names.add(clause.getName());
+            }
+            return names;
+        }
+
+        private static List<Export> parseExports(String header) {
+            if (header == null) {
+                return Collections.emptyList();
+            }
+            List<Export> exports = new ArrayList<Export>();
+            for (Clause clause : Parser.parseHeader(header)) {
+                String ver = clause.getAttribute(Constants.VERSION_ATTRIBUTE);
+                exports.add(new Export(clause.getName(), ver != null ? Version.parseVersion(ver) : Version.emptyVersion));
+            }
+            return exports;
+        }
+    }
+
+    public static class Import {
+        private final Clause clause;
+        private final VersionRange range;
+
+        Import(Clause clause, VersionRange range) {
+            this.clause = clause;
+            this.range = range;
+        }
+
+        public String getName() {
+            return clause.getName();
+        }
+
+        public VersionRange getRange() {
+            return range;
+        }
+
+        public String toString() {
+            return clause.toString();
+        }
+    }
+
+    public static class Export {
+        private final String name;
+        private final Version version;
+
+        Export(String name, Version version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Version getVersion() {
+            return version;
+        }
+    }
+
+}
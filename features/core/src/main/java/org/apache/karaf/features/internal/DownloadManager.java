@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the bundles and configuration files of the features being installed
+ * ahead of time, using a bounded pool of threads, so that the installation itself
+ * only has to read local files.
+ * Locations which have not been scheduled for download are read directly from their url.
+ * Local files, and <code>mvn:</code> urls of artifacts held by the {@link LocalRepositories},
+ * are read in place and never downloaded.
+ * When a {@link BundleCache} is used, it is looked up before going to the network and the
+ * artifacts with immutable locations are downloaded into it rather than to temporary files.
+ * Only the remote artifacts are cached, the local ones are never copied into the cache.
+ * Cached artifacts are read from private links checked out of the cache, so that other
+ * instances sharing the cache can not remove them while they are being installed.
+ */
+public class DownloadManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DownloadManager.class);
+
+    private final ExecutorService executor;
+    private final BundleCache cache;
+    private final LocalRepositories repositories;
+    private final Map<String, Future<File>> downloads = new HashMap<String, Future<File>>();
+    private final Set<File> checkouts = new HashSet<File>();
+    private volatile boolean released;
+
+    /**
+     * Create a new download manager.
+     *
+     * @param executor the executor used to run the downloads, or <code>null</code>
+     *                 to disable prefetching
+     */
+    public DownloadManager(ExecutorService executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Create a new download manager.
+     *
+     * @param executor the executor used to run the downloads, or <code>null</code>
+     *                 to disable prefetching
+     * @param cache    the cache to use, or <code>null</code>
+     */
+    public DownloadManager(ExecutorService executor, BundleCache cache) {
+        this(executor, cache, null);
+    }
+
+    /**
+     * Create a new download manager.
+     *
+     * @param executor     the executor used to run the downloads, or <code>null</code>
+     *                     to disable prefetching
+     * @param cache        the cache to use, or <code>null</code>
+     * @param repositories the local repositories to look <code>mvn:</code> urls up in, or <code>null</code>
+     */
+    public DownloadManager(ExecutorService executor, BundleCache cache, LocalRepositories repositories) {
+        this.executor = executor;
+        this.cache = cache;
+        this.repositories = repositories;
+    }
+
+    /**
+     * Schedule the download of the given location, unless it has already been scheduled,
+     * is a local file or is held by a local repository.
+     */
+    public synchronized void download(final String location) {
+        if (executor == null || released || downloads.containsKey(location)) {
+            return;
+        }
+        // local files are read in place
+        if (getLocal(location) != null || (cache != null && cache.get(location) != null)) {
+            return;
+        }
+        downloads.put(location, executor.submit(new Callable<File>() {
+            public File call() throws Exception {
+                if (cache != null && BundleCache.isCacheable(location)) {
+                    File file = cache.store(location, openUrl(location));
+                    if (released) {
+                        file.delete();
+                        return null;
+                    }
+                    return file;
+                }
+                return doDownload(location);
+            }
+        }));
+    }
+
+    /**
+     * Open a stream on the given location, waiting for its download to complete
+     * if it has been scheduled.
+     */
+    public InputStream open(String location) throws IOException {
+        Future<File> future;
+        synchronized (this) {
+            future = downloads.get(location);
+        }
+        if (future == null) {
+            File file = getLocal(location);
+            if (file == null) {
+                file = getCached(location);
+            }
+            if (file == null && cache != null && BundleCache.isCacheable(location)) {
+                file = checkedOut(cache.store(location, openUrl(location)));
+            }
+            return file != null ? new FileInputStream(file) : openUrl(location);
+        }
+        return new FileInputStream(get(location, future));
+    }
+
+    /**
+     * Get the local file holding the content of the given location, waiting for its download
+     * to complete if it has been scheduled.
+     *
+     * @return the downloaded file, the file itself for a <code>file:</code> location, the
+     *         file of a local repository for a <code>mvn:</code> url, a private link to the
+     *         cached file, or
+     *         <code>null</code> if the location is not available as a local file
+     */
+    public File getFile(String location) throws IOException {
+        Future<File> future;
+        synchronized (this) {
+            future = downloads.get(location);
+        }
+        if (future == null) {
+            File file = getLocal(location);
+            return file != null ? file : getCached(location);
+        }
+        return get(location, future);
+    }
+
+    /**
+     * Convert a <code>file:</code> location to the file it points to.
+     *
+     * @return the file, or <code>null</code> if the location is not an existing file
+     */
+    public static File toFile(String location) {
+        if (location.startsWith("file:")) {
+            try {
+                File file = new File(new URI(location));
+                if (file.isFile()) {
+                    return file;
+                }
+            } catch (Exception e) {
+                // Ignore, the location will be read as a url
+            }
+        }
+        return null;
+    }
+
+    private File get(String location, Future<File> future) throws IOException {
+        try {
+            File file = future.get();
+            if (file == null) {
+                throw new IOException("Download of " + location + " has been cancelled");
+            }
+            return file;
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException("Interrupted while downloading " + location).initCause(e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw (IOException) new IOException("Unable to download " + location).initCause(t);
+        }
+    }
+
+    /**
+     * Cancel the pending downloads and delete the downloaded files and the files checked
+     * out of the cache.
+     */
+    public synchronized void release() {
+        released = true;
+        for (Future<File> future : downloads.values()) {
+            if (!future.cancel(true)) {
+                try {
+                    File file = future.get();
+                    if (file != null) {
+                        file.delete();
+                    }
+                } catch (Exception e) {
+                    // Ignore, nothing has been downloaded
+                }
+            }
+        }
+        for (File file : checkouts) {
+            file.delete();
+        }
+        downloads.clear();
+        checkouts.clear();
+    }
+
+    private File getLocal(String location) {
+        File file = toFile(location);
+        if (file == null && repositories != null) {
+            file = repositories.find(location);
+        }
+        return file;
+    }
+
+    private File getCached(String location) {
+        return cache != null ? checkedOut(cache.checkout(location)) : null;
+    }
+
+    private synchronized File checkedOut(File file) {
+        if (file != null) {
+            checkouts.add(file);
+        }
+        return file;
+    }
+
+    private InputStream openUrl(String location) throws IOException {
+        return new URL(location).openStream();
+    }
+
+    protected File doDownload(String location) throws IOException {
+        LOGGER.debug("Downloading " + location);
+        File file = File.createTempFile("download", null);
+        boolean success = false;
+        try {
+            InputStream is = openUrl(location);
+            try {
+                OutputStream os = new FileOutputStream(file);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) != -1) {
+                        os.write(buffer, 0, bytesRead);
+                    }
+                } finally {
+                    os.close();
+                }
+            } finally {
+                is.close();
+            }
+            success = !released;
+            return success ? file : null;
+        } finally {
+            if (!success) {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Feature;
+
+/**
+ * The available features keyed by the locations of their bundles.
+ * The index is built from the features map.  When features are added to or removed
+ * from that map, a copy of the index is updated along with a copy of the map, so that
+ * a published index is never modified.
+ */
+public class FeatureLocations {
+
+    private final Map<String, Map<String, Feature>> features;
+    private final Map<String, Set<Feature>> locations = new HashMap<String, Set<Feature>>();
+
+    public FeatureLocations(Map<String, Map<String, Feature>> features) {
+        this.features = features;
+        for (Map<String, Feature> versions : features.values()) {
+            for (Feature f : versions.values()) {
+                add(f);
+            }
+        }
+    }
+
+    /**
+     * Copy an index for a copy of the features map it has been built from.
+     */
+    public FeatureLocations(FeatureLocations other, Map<String, Map<String, Feature>> features) {
+        this.features = features;
+        synchronized (other) {
+            for (Map.Entry<String, Set<Feature>> e : other.locations.entrySet()) {
+                locations.put(e.getKey(), new HashSet<Feature>(e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Check if this index has been built from the given map.
+     */
+    public boolean isFor(Map<String, Map<String, Feature>> features) {
+        return this.features == features;
+    }
+
+    public synchronized void add(Feature feature) {
+        for (BundleInfo bi : feature.getBundles()) {
+            Set<Feature> set = locations.get(bi.getLocation());
+            if (set == null) {
+                set = new HashSet<Feature>();
+                locations.put(bi.getLocation(), set);
+            }
+            set.add(feature);
+        }
+    }
+
+    public synchronized void remove(Feature feature) {
+        for (BundleInfo bi : feature.getBundles()) {
+            Set<Feature> set = locations.get(bi.getLocation());
+            if (set != null && set.remove(feature) && set.isEmpty()) {
+                locations.remove(bi.getLocation());
+            }
+        }
+    }
+
+    /**
+     * @return the features having a bundle with the given location
+     */
+    public synchronized Set<Feature> getFeatures(String location) {
+        Set<Feature> set = locations.get(location);
+        return set != null ? new HashSet<Feature>(set) : new HashSet<Feature>();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+import org.apache.felix.utils.version.VersionRange;
+import org.apache.karaf.features.Feature;
+import org.osgi.framework.Version;
+
+/**
+ * The versions of a feature, keyed by their version string.
+ * The versions are parsed once and kept sorted, so that the latest version
+ * matching a range is found with a binary search.
+ */
+public class FeatureVersions {
+
+    private final Map<String, Feature> features;
+    private final Version[] versions;
+    private final Feature[] sorted;
+
+    public FeatureVersions(Map<String, Feature> features) {
+        this.features = features;
+        Entry[] entries = new Entry[features.size()];
+        int i = 0;
+        for (Map.Entry<String, Feature> e : features.entrySet()) {
+            entries[i++] = new Entry(new Version(FeaturesServiceImpl.cleanupVersion(e.getKey())), e.getValue());
+        }
+        Arrays.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return e1.version.compareTo(e2.version);
+            }
+        });
+        versions = new Version[entries.length];
+        sorted = new Feature[entries.length];
+        for (i = 0; i < entries.length; i++) {
+            versions[i] = entries[i].version;
+            sorted[i] = entries[i].feature;
+        }
+    }
+
+    /**
+     * Check if this index has been built from the given map.
+     */
+    public boolean isFor(Map<String, Feature> features) {
+        return this.features == features;
+    }
+
+    /**
+     * Find the feature with the given version.  If there is no such version, the given
+     * version is used as a range, or as any version if it is the default version, and the
+     * latest matching version is returned.
+     *
+     * @return the feature or <code>null</code> if no version matches
+     */
+    public Feature getFeature(String version) {
+        Feature feature = features.get(version);
+        if (feature == null) {
+            VersionRange range = FeatureImpl.DEFAULT_VERSION.equals(version)
+                    ? VersionRange.ANY_VERSION : new VersionRange(version, true, true);
+            int index = getLatestIndex(range);
+            // the default version is only ever matched explicitly
+            if (index >= 0 && versions[index].compareTo(Version.emptyVersion) > 0) {
+                feature = sorted[index];
+            }
+        }
+        return feature;
+    }
+
+    /**
+     * Find the latest version of the feature within the given range.
+     *
+     * @return the feature or <code>null</code> if no version matches
+     */
+    public Feature getLatest(VersionRange range) {
+        int index = getLatestIndex(range);
+        return index >= 0 ? sorted[index] : null;
+    }
+
+    private int getLatestIndex(VersionRange range) {
+        // look for the highest version below the ceiling of the range
+        Version ceiling = range.getCeiling();
+        int low = 0;
+        int high = versions.length - 1;
+        int index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = versions[mid].compareTo(ceiling);
+            if (c < 0 || (c == 0 && !range.isOpenCeiling())) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // lower versions can't be in the range if this one is not
+        return index >= 0 && range.contains(versions[index]) ? index : -1;
+    }
+
+    private static class Entry {
+        final Version version;
+        final Feature feature;
+
+        Entry(Version version, Feature feature) {
+            this.version = version;
+            this.feature = feature;
+        }
+    }
+
+}
@@ -24,7 +24,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -33,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.EnumSet;
 import java.util.Enumeration;
@@ -40,32 +40,43 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.felix.utils.manifest.Clause;
-import org.apache.felix.utils.manifest.Parser;
 import org.apache.felix.utils.version.VersionRange;
-import org.apache.felix.utils.version.VersionTable;
+import org.apache.karaf.features.ArtifactCache;
 import org.apache.karaf.features.BundleInfo;
 import org.apache.karaf.features.ConfigFileInfo;
 import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.FeatureEvent;
 import org.apache.karaf.features.FeaturesListener;
 import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.InstallPlan;
+import org.apache.karaf.features.InstallTransaction;
 import org.apache.karaf.features.Repository;
 import org.apache.karaf.features.RepositoryEvent;
 import org.apache.karaf.features.Resolver;
+import org.apache.karaf.features.Timing;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
@@ -96,6 +107,8 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
 
     public static final String CONFIG_KEY = "org.apache.karaf.features.configKey";
 
+    private static final String MAVEN_PID = "org.ops4j.pax.url.mvn";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(FeaturesServiceImpl.class);
 
     private BundleContext bundleContext;
@@ -105,8 +118,17 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
     private long resolverTimeout = 5000;
     private Set<URI> uris;
     private Map<URI, RepositoryImpl> repositories = new HashMap<URI, RepositoryImpl>();
-    private Map<String, Map<String, Feature>> features;
+    // the features map and its index are never modified once published, they are copied on change
+    private volatile Map<String, Map<String, Feature>> features;
+    private volatile FeatureLocations featureLocations;
+    // the features of each name and version, in the order their repositories have been added,
+    // the last one being the one of the features map; only used under the features lock
+    private Map<String, List<Feature>> featureProviders;
+    private final Object featuresLock = new Object();
+    private final AtomicLong featuresRebuildCount = new AtomicLong();
+    private Map<String, FeatureVersions> featureVersions = new ConcurrentHashMap<String, FeatureVersions>();
     private Map<Feature, Set<Long>> installed = new HashMap<Feature, Set<Long>>();
+    private volatile Map<String, FeatureVersions> installedVersions;
     private String boot;
     private boolean bootFeaturesInstalled;
     private List<FeaturesListener> listeners = new CopyOnWriteArrayList<FeaturesListener>();
@@ -114,8 +136,32 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
     private EventAdminListener eventAdminListener;
     private final Object refreshLock = new Object();
     private long refreshTimeout = 5000;
+    private int downloadThreads = 8;
+    private int startThreads = 1;
+    private long saveStateDelay = 1000;
+    private int bootThreads = 1;
+    private String bundleCacheDir;
+    private long bundleCacheMaxSize = BundleCache.DEFAULT_MAX_SIZE / (1024 * 1024);
+    private BundleCache bundleCache;
+    private String defaultRepositories;
+    private String localRepository;
+    private LocalRepositories localRepositories;
+    private StateWriter stateWriter;
+    private final Timings phaseTimings = new Timings();
+    private final Timings featureTimings = new Timings();
+    private final Timings featurePhaseTimings = new Timings();
+    private ExecutorService downloadExecutor;
+    private BundleIndex bundleIndex;
+    private final Object[] installLocks = new Object[16];
+    private final Object frameworkLock = new Object();
+    private BundleManifests bundleManifests;
+    private final Map<String, ServiceTracker> resolverTrackers = new HashMap<String, ServiceTracker>();
+    private RepositoryCache repositoryCache;
 
     public FeaturesServiceImpl() {
+        for (int i = 0; i < installLocks.length; i++) {
+            installLocks[i] = new Object();
+        }
     }
 
     public BundleContext getBundleContext() {
@@ -166,6 +212,113 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         this.refreshTimeout = refreshTimeout;
     }
 
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    /**
+     * Set the number of threads used to download the bundles and configuration
+     * files of the features being installed.  A value of 0 disables the prefetching.
+     */
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = downloadThreads;
+    }
+
+    public int getStartThreads() {
+        return startThreads;
+    }
+
+    /**
+     * Set the number of threads used to start the bundles of the features being installed.
+     * Bundles are always started in start level order; with more than one thread, the bundles
+     * of a given start level which do not depend on each other are started in parallel.
+     */
+    public void setStartThreads(int startThreads) {
+        this.startThreads = startThreads;
+    }
+
+    public int getBootThreads() {
+        return bootThreads;
+    }
+
+    /**
+     * Set the number of threads used to install the boot features.  With more than one thread,
+     * the boot features which do not share any feature, bundle or configuration are installed
+     * concurrently.  The packages are refreshed once all the boot features are installed.
+     */
+    public void setBootThreads(int bootThreads) {
+        this.bootThreads = bootThreads;
+    }
+
+    public long getSaveStateDelay() {
+        return saveStateDelay;
+    }
+
+    /**
+     * Set the delay in milliseconds before the state is persisted after a change.  Changes
+     * made during this delay are persisted together.  A value of 0 persists each change
+     * immediately.
+     */
+    public void setSaveStateDelay(long saveStateDelay) {
+        this.saveStateDelay = saveStateDelay;
+    }
+
+    public String getBundleCacheDir() {
+        return bundleCacheDir;
+    }
+
+    /**
+     * Set the directory of the cache of downloaded artifacts, which can be shared by
+     * several instances.  No cache is used if not set.
+     */
+    public void setBundleCacheDir(String bundleCacheDir) {
+        this.bundleCacheDir = bundleCacheDir;
+    }
+
+    public long getBundleCacheMaxSize() {
+        return bundleCacheMaxSize;
+    }
+
+    /**
+     * Set the size in megabytes above which the least recently used artifacts are removed
+     * from the cache.  A value of 0 disables the cache.
+     */
+    public void setBundleCacheMaxSize(long bundleCacheMaxSize) {
+        this.bundleCacheMaxSize = bundleCacheMaxSize;
+    }
+
+    public String getDefaultRepositories() {
+        return defaultRepositories;
+    }
+
+    /**
+     * Set the comma separated repositories in which the artifacts of <code>mvn:</code> urls are
+     * looked up first, such as the <code>system</code> directory, in the format of the
+     * <code>org.ops4j.pax.url.mvn.defaultRepositories</code> property.  The artifacts found
+     * there are read in place instead of being downloaded.  The default repositories of the
+     * maven url handler are used when not set.
+     */
+    public void setDefaultRepositories(String defaultRepositories) {
+        this.defaultRepositories = defaultRepositories;
+    }
+
+    public String getLocalRepository() {
+        return localRepository;
+    }
+
+    /**
+     * Set the local maven repository, in which the released artifacts of <code>mvn:</code> urls
+     * are looked up after the default repositories.  The local repository of the maven url
+     * handler is used when not set.
+     */
+    public void setLocalRepository(String localRepository) {
+        this.localRepository = localRepository;
+    }
+
+    public long getFeaturesRebuildCount() {
+        return featuresRebuildCount.get();
+    }
+
     public void registerListener(FeaturesListener listener) {
         listeners.add(listener);
         for (Repository repository : listRepositories()) {
@@ -207,19 +360,33 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
     }
 
     protected RepositoryImpl internalAddRepository(URI uri) throws Exception {
-        validateRepository(uri);
-        RepositoryImpl repo = null;
-        repo = new RepositoryImpl(uri);
-        repositories.put(uri, repo);
-        repo.load();
+        long t0 = System.currentTimeMillis();
+        RepositoryImpl repo = new RepositoryImpl(uri);
+        RepositoryImpl previous;
+        if (repositoryCache != null && repositoryCache.load(repo)) {
+            previous = repositories.put(uri, repo);
+        } else {
+            validateRepository(uri);
+            previous = repositories.put(uri, repo);
+            repo.load();
+            if (repositoryCache != null) {
+                repositoryCache.store(repo);
+            }
+        }
+        phaseTimings.record(Timing.REPOSITORY, System.currentTimeMillis() - t0);
         callListeners(new RepositoryEvent(repo, RepositoryEvent.EventType.RepositoryAdded, false));
-        features = null;
+        // the features of a reloaded repository replace the previous ones
+        removeFeatures(previous);
+        addFeatures(repo);
         return repo;
         
     }
 
     public void removeRepository(URI uri) {
         if (repositories.containsKey(uri)) {
+            if (repositoryCache != null) {
+                repositoryCache.remove(uri);
+            }
             internalRemoveRepository(uri);
             saveState();
         }
@@ -229,13 +396,164 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         Repository repo = repositories.remove(uri);
         this.repo.set(repo);
         callListeners(new RepositoryEvent(repo, RepositoryEvent.EventType.RepositoryRemoved, false));
-        features = null;
+        removeFeatures(repo);
     }
     
     public void restoreRepository(URI uri) throws Exception {
     	repositories.put(uri, (RepositoryImpl)repo.get());
     	callListeners(new RepositoryEvent(repo.get(), RepositoryEvent.EventType.RepositoryAdded, false));
-        features = null;
+        addFeatures(repo.get());
+    }
+
+    /**
+     * Merge the features of a newly added repository into the features map, if it has
+     * already been built.  The repositories it refers to are added first, which merges
+     * their own features.  If one of them can't be loaded, the map is rebuilt on next
+     * use instead, which reports the failure.  The change is applied to a copy of the
+     * map, which then replaces it.
+     */
+    protected void addFeatures(Repository repo) throws Exception {
+        synchronized (featuresLock) {
+            if (features == null || repo == null) {
+                return;
+            }
+            for (URI uri : repo.getRepositories()) {
+                if (!repositories.containsKey(uri)) {
+                    try {
+                        internalAddRepository(uri);
+                    } catch (Exception e) {
+                        LOGGER.debug("Unable to add features repository " + uri, e);
+                        features = null;
+                    }
+                    if (features == null) {
+                        return;
+                    }
+                }
+            }
+            Map<String, Map<String, Feature>> map = new HashMap<String, Map<String, Feature>>(features);
+            FeatureLocations locations = copyFeatureLocations(map);
+            Set<String> copied = new HashSet<String>();
+            for (Feature f : repo.getFeatures()) {
+                Map<String, Feature> versions = copyVersions(map, f.getName(), copied);
+                Feature previous = versions.put(f.getVersion(), f);
+                addProvider(featureProviders, f);
+                featureVersions.remove(f.getName());
+                if (locations != null) {
+                    if (previous != null) {
+                        locations.remove(previous);
+                    }
+                    locations.add(f);
+                }
+            }
+            publishFeatures(map, locations);
+        }
+    }
+
+    /**
+     * Remove the features of a repository from the features map, if it has already been
+     * built.  A feature which is also provided by another repository is replaced with the
+     * one from the last such repository added, found in the providers of the feature.
+     * The change is applied to a copy of the map, which then replaces it.
+     */
+    protected void removeFeatures(Repository repo) {
+        synchronized (featuresLock) {
+            if (features == null || repo == null) {
+                return;
+            }
+            Map<String, Map<String, Feature>> map = new HashMap<String, Map<String, Feature>>(features);
+            FeatureLocations locations = copyFeatureLocations(map);
+            Set<String> copied = new HashSet<String>();
+            try {
+                for (Feature f : repo.getFeatures()) {
+                    List<Feature> providers = removeProvider(featureProviders, f);
+                    Map<String, Feature> versions = map.get(f.getName());
+                    if (versions == null || versions.get(f.getVersion()) != f) {
+                        continue;
+                    }
+                    versions = copyVersions(map, f.getName(), copied);
+                    versions.remove(f.getVersion());
+                    if (locations != null) {
+                        locations.remove(f);
+                    }
+                    Feature other = providers != null && !providers.isEmpty() ? providers.get(providers.size() - 1) : null;
+                    if (other != null) {
+                        versions.put(f.getVersion(), other);
+                        if (locations != null) {
+                            locations.add(other);
+                        }
+                    } else if (versions.isEmpty()) {
+                        map.remove(f.getName());
+                    }
+                    featureVersions.remove(f.getName());
+                }
+                publishFeatures(map, locations);
+            } catch (Exception e) {
+                LOGGER.debug("Unable to remove the features of repository " + repo.getURI(), e);
+                features = null;
+            }
+        }
+    }
+
+    /**
+     * Get the versions of a feature in a copy of the features map, copying them the first
+     * time so that the published map is left unchanged.
+     */
+    private Map<String, Feature> copyVersions(Map<String, Map<String, Feature>> map, String name, Set<String> copied) {
+        Map<String, Feature> versions = map.get(name);
+        if (copied.add(name)) {
+            versions = versions != null ? new HashMap<String, Feature>(versions) : new HashMap<String, Feature>();
+            map.put(name, versions);
+        }
+        return versions;
+    }
+
+    /**
+     * Copy the index of the current features map for the given copy of that map,
+     * or return <tt>null</tt> if there is no such index yet.
+     */
+    private FeatureLocations copyFeatureLocations(Map<String, Map<String, Feature>> map) {
+        FeatureLocations locations = featureLocations;
+        return locations != null && locations.isFor(features) ? new FeatureLocations(locations, map) : null;
+    }
+
+    private void publishFeatures(Map<String, Map<String, Feature>> map, FeatureLocations locations) {
+        features = map;
+        if (locations != null) {
+            featureLocations = locations;
+        }
+    }
+
+    private static void addProvider(Map<String, List<Feature>> providers, Feature feature) {
+        String key = feature.getName() + "/" + feature.getVersion();
+        List<Feature> list = providers.get(key);
+        if (list == null) {
+            list = new ArrayList<Feature>(1);
+            providers.put(key, list);
+        }
+        list.add(feature);
+    }
+
+    /**
+     * Remove the given feature from its providers, by identity as features of the same
+     * name and version are equal.
+     *
+     * @return the remaining providers of the name and version of the feature, or <tt>null</tt>
+     */
+    private static List<Feature> removeProvider(Map<String, List<Feature>> providers, Feature feature) {
+        String key = feature.getName() + "/" + feature.getVersion();
+        List<Feature> list = providers.get(key);
+        if (list != null) {
+            for (Iterator<Feature> it = list.iterator(); it.hasNext();) {
+                if (it.next() == feature) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (list.isEmpty()) {
+                providers.remove(key);
+            }
+        }
+        return list;
     }
 
     public Repository[] listRepositories() {
@@ -280,30 +598,38 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         installFeatures(Collections.singleton(f), options);
     }
 
+    public InstallTransaction createInstallTransaction(EnumSet<Option> options) {
+        return new InstallTransaction(this, options);
+    }
+
     public void installFeatures(Set<Feature> features, EnumSet<Option> options) throws Exception {
+        installFeatures(features, options, 1);
+    }
+
+    /**
+     * Install the given features.  When more than one thread is used, the features which do not
+     * share any feature, bundle or configuration are installed concurrently.  In all cases, the
+     * packages are refreshed once all the features have been installed, and the bundles are then
+     * started.
+     *
+     * @return the time in milliseconds spent installing each of the given features
+     */
+    protected Map<Feature, Long> installFeatures(Set<Feature> features, EnumSet<Option> options, int threads) throws Exception {
         InstallationState state = new InstallationState();
         InstallationState failure = new InstallationState();
         boolean verbose = options.contains(FeaturesService.Option.Verbose);
+        DownloadManager downloads = new DownloadManager(getDownloadExecutor(), getBundleCache(), getLocalRepositories());
         try {
+            // Download everything
+            prefetch(downloads, features);
             // Install everything
-            for (Feature f : features) {
-                InstallationState s = new InstallationState();
-            	try {
-                    doInstallFeature(s, f, verbose);
-                    state.bundleInfos.putAll(s.bundleInfos);
-                    state.bundles.addAll(s.bundles);
-                    state.features.putAll(s.features);
-                    state.installed.addAll(s.installed);
-            	} catch (Exception e) {
-                    failure.bundles.addAll(s.bundles);
-                    failure.features.putAll(s.features);
-                    failure.installed.addAll(s.installed);
-                    if (options.contains(Option.ContinueBatchOnFailure)) {
-                        LOGGER.info("Error when installing feature {}: {}", f.getName(), e);
-                    } else {
-                        throw e;
-                    }
-            	}
+            List<List<Feature>> groups = threads > 1 ? getIndependentFeatures(features) : null;
+            if (groups != null && groups.size() > 1) {
+                installFeatures(state, failure, groups, downloads, options, threads);
+            } else {
+                for (Feature f : features) {
+                    installFeature(state, failure, f, downloads, options);
+                }
             }
             // Find bundles to refresh
             boolean print = options.contains(Option.PrintBundlesToRefresh);
@@ -333,29 +659,7 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
                 }
             }
             // Start all bundles
-            for (Bundle b : state.bundles) {
-                // do not start fragment bundles
-                Dictionary d = b.getHeaders();
-                String fragmentHostHeader = (String) d.get(Constants.FRAGMENT_HOST);
-                if (fragmentHostHeader == null || fragmentHostHeader.trim().length() == 0) {
-                    // do not start bundles that are persistently stopped
-                    if (state.installed.contains(b)
-                            || (b.getState() != Bundle.STARTING && b.getState() != Bundle.ACTIVE
-                                    && getStartLevel().isBundlePersistentlyStarted(b))) {
-                    	// do no start bundles when user request it
-                    	Long bundleId = b.getBundleId();
-                    	BundleInfo bundleInfo = state.bundleInfos.get(bundleId);
-                        if (bundleInfo == null || bundleInfo.isStart()) {
-	                        try {
-	                            b.start();
-	                        } catch (BundleException be) {
-	                            String msg = format("Could not start bundle %s in feature(s) %s: %s", b.getLocation(), getFeaturesContainingBundleList(b), be.getMessage());
-	                            throw new Exception(msg, be);
-	                        }
-                    	}
-                    }
-                }
-            }
+            startBundles(state);
             // Clean up for batch
             if (!options.contains(Option.NoCleanIfFailure)) {
                 failure.installed.removeAll(state.bundles);
@@ -397,6 +701,8 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             }
             // rethrow exception
             throw e;
+        } finally {
+            downloads.release();
         }
         for (Feature f : features) {
             callListeners(new FeatureEvent(f, FeatureEvent.EventType.FeatureInstalled, false));
@@ -404,7 +710,246 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         for (Map.Entry<Feature, Set<Long>> e : state.features.entrySet()) {
             installed.put(e.getKey(), e.getValue());
         }
+        installedVersions = null;
         saveState();
+        return state.times;
+    }
+
+    /**
+     * Install one of the features of a batch, adding its bundles to the state of the batch,
+     * or to the failure state if it can not be installed.
+     */
+    private void installFeature(InstallationState state, InstallationState failure, Feature f,
+                                DownloadManager downloads, EnumSet<Option> options) throws Exception {
+        long t0 = System.currentTimeMillis();
+        InstallationState s = new InstallationState();
+        s.downloads = downloads;
+        s.batch = state.features.keySet();
+        try {
+            doInstallFeature(s, f, options.contains(FeaturesService.Option.Verbose));
+            state.bundleInfos.putAll(s.bundleInfos);
+            state.bundles.addAll(s.bundles);
+            state.features.putAll(s.features);
+            state.installed.addAll(s.installed);
+            long time = System.currentTimeMillis() - t0;
+            state.times.put(f, time);
+            featureTimings.record(f.getId(), time);
+            LOGGER.info("Installed feature {} {} in {} ms", new Object[] { f.getName(), f.getVersion(), time });
+        } catch (Exception e) {
+            failure.bundles.addAll(s.bundles);
+            failure.features.putAll(s.features);
+            failure.installed.addAll(s.installed);
+            if (options.contains(Option.ContinueBatchOnFailure)) {
+                LOGGER.info("Error when installing feature {}: {}", f.getName(), e);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Install independent groups of features concurrently.  The features of a group are
+     * installed in order, and the states of the groups are merged once all of them are done.
+     */
+    private void installFeatures(InstallationState state, InstallationState failure, List<List<Feature>> groups,
+                                 final DownloadManager downloads, final EnumSet<Option> options, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, groups.size()), newThreadFactory("FeaturesService-install-"));
+        try {
+            List<InstallationState[]> states = new ArrayList<InstallationState[]>();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final List<Feature> group : groups) {
+                final InstallationState groupState = new InstallationState();
+                final InstallationState groupFailure = new InstallationState();
+                states.add(new InstallationState[] { groupState, groupFailure });
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        for (Feature f : group) {
+                            installFeature(groupState, groupFailure, f, downloads, options);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            // wait for all the groups so that all the installed bundles are known if one failed
+            Exception error = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+                InstallationState groupState = states.get(i)[0];
+                InstallationState groupFailure = states.get(i)[1];
+                state.bundleInfos.putAll(groupState.bundleInfos);
+                state.bundles.addAll(groupState.bundles);
+                state.features.putAll(groupState.features);
+                state.installed.addAll(groupState.installed);
+                state.times.putAll(groupState.times);
+                failure.bundles.addAll(groupFailure.bundles);
+                failure.features.putAll(groupFailure.features);
+                failure.installed.addAll(groupFailure.installed);
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Split the given features in groups which do not share any feature, bundle, configuration
+     * or configuration file, so that the groups can be installed independently.  The features
+     * keep their relative order within a group.
+     */
+    protected List<List<Feature>> getIndependentFeatures(Set<Feature> features) {
+        // union-find of the features sharing a resource
+        Map<String, Feature> owners = new HashMap<String, Feature>();
+        final Map<Feature, Feature> parents = new HashMap<Feature, Feature>();
+        for (Feature feature : features) {
+            parents.put(feature, feature);
+            Set<Feature> closure = new HashSet<Feature>();
+            getDependencyClosure(feature, closure);
+            for (Feature f : closure) {
+                List<String> keys = new ArrayList<String>();
+                keys.add("feature:" + f.getId());
+                for (BundleInfo bundle : f.getBundles()) {
+                    keys.add("bundle:" + bundle.getLocation());
+                }
+                for (String config : f.getConfigurations().keySet()) {
+                    keys.add("config:" + parsePid(config)[0]);
+                }
+                for (ConfigFileInfo configFile : f.getConfigurationFiles()) {
+                    keys.add("configfile:" + configFile.getFinalname());
+                }
+                for (String key : keys) {
+                    Feature owner = owners.get(key);
+                    if (owner == null) {
+                        owners.put(key, feature);
+                    } else {
+                        parents.put(getRoot(parents, feature), getRoot(parents, owner));
+                    }
+                }
+            }
+        }
+        Map<Feature, List<Feature>> groups = new LinkedHashMap<Feature, List<Feature>>();
+        for (Feature feature : features) {
+            Feature root = getRoot(parents, feature);
+            List<Feature> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<Feature>();
+                groups.put(root, group);
+            }
+            group.add(feature);
+        }
+        return new ArrayList<List<Feature>>(groups.values());
+    }
+
+    private static Feature getRoot(Map<Feature, Feature> parents, Feature feature) {
+        Feature root = feature;
+        while (parents.get(root) != root) {
+            root = parents.get(root);
+        }
+        return root;
+    }
+
+    private void getDependencyClosure(Feature feature, Set<Feature> closure) {
+        if (!closure.add(feature)) {
+            return;
+        }
+        for (Feature dependency : feature.getDependencies()) {
+            try {
+                getDependencyClosure(findDependency(dependency), closure);
+            } catch (Exception e) {
+                // Ignore, the error will be reported when installing the feature
+            }
+        }
+    }
+
+    public InstallPlan plan(Set<Feature> features) throws Exception {
+        long t0 = System.currentTimeMillis();
+        Set<Feature> closure = new LinkedHashSet<Feature>();
+        for (Feature f : features) {
+            addToPlan(f, closure);
+        }
+        Set<String> locations = new HashSet<String>();
+        List<BundleInfo> toInstall = new ArrayList<BundleInfo>();
+        Set<Bundle> present = new LinkedHashSet<Bundle>();
+        List<BundleManifests.Manifest> newManifests = new ArrayList<BundleManifests.Manifest>();
+        boolean unknownManifests = false;
+        // nothing is downloaded, but the artifacts found in the cache are read
+        DownloadManager downloads = new DownloadManager(null, getBundleCache(), getLocalRepositories());
+        try {
+            for (Feature f : closure) {
+                for (BundleInfo bInfo : resolve(f)) {
+                    if (!locations.add(bInfo.getLocation())) {
+                        continue;
+                    }
+                    // only the bundles available locally are read, others are looked up by location
+                    Bundle b;
+                    Manifest m = null;
+                    File file = getLocalFile(downloads, bInfo.getLocation());
+                    if (file != null) {
+                        m = readManifest(file);
+                    }
+                    if (m != null) {
+                        String sn = m.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+                        String vStr = m.getMainAttributes().getValue(Constants.BUNDLE_VERSION);
+                        b = getBundleIndex().getBundle(sn, vStr == null ? Version.emptyVersion : Version.parseVersion(vStr));
+                    } else {
+                        b = getBundleIndex().getBundle(bInfo.getLocation());
+                    }
+                    if (b != null) {
+                        present.add(b);
+                    } else {
+                        toInstall.add(bInfo);
+                        if (m != null) {
+                            Hashtable<String, String> headers = new Hashtable<String, String>();
+                            for (Map.Entry<Object, Object> e : m.getMainAttributes().entrySet()) {
+                                headers.put(e.getKey().toString(), e.getValue().toString());
+                            }
+                            newManifests.add(new BundleManifests.Manifest(headers));
+                        } else {
+                            unknownManifests = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            downloads.release();
+        }
+        Set<Bundle> toRefresh = new LinkedHashSet<Bundle>();
+        if (!toInstall.isEmpty()) {
+            Map<String, List<Version>> exports = new HashMap<String, List<Version>>();
+            Map<String, List<Bundle>> hosts = indexBySymbolicName(present);
+            for (BundleManifests.Manifest m : newManifests) {
+                indexExports(m, exports);
+                if (m.getFragmentHost() != null) {
+                    addHosts(m, hosts, toRefresh);
+                }
+            }
+            for (Bundle b : present) {
+                List<BundleManifests.Import> imports = getBundleManifests().getManifest(b).getOptionalImports();
+                // the packages exported by bundles which are not available yet are unknown
+                if (!imports.isEmpty() && (unknownManifests || !getMatchingImports(imports, exports).isEmpty())) {
+                    toRefresh.add(b);
+                }
+            }
+        }
+        LOGGER.debug("Planned the installation of {} features in {} ms", closure.size(), System.currentTimeMillis() - t0);
+        return new InstallPlan(new ArrayList<Feature>(closure), toInstall, new ArrayList<Bundle>(present), toRefresh);
+    }
+
+    private void addToPlan(Feature feature, Set<Feature> closure) throws Exception {
+        if (closure.contains(feature)) {
+            return;
+        }
+        for (Feature dependency : feature.getDependencies()) {
+            addToPlan(findDependency(dependency), closure);
+        }
+        closure.add(feature);
     }
 
     protected static class InstallationState {
@@ -412,45 +957,272 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         final List<Bundle> bundles = new ArrayList<Bundle>();
         final Map<Long, BundleInfo> bundleInfos = new HashMap<Long, BundleInfo>();
         final Map<Feature, Set<Long>> features = new HashMap<Feature, Set<Long>>();
+        DownloadManager downloads;
+        // features already installed by the previous features of the batch
+        Set<Feature> batch = Collections.emptySet();
+        // time spent installing each feature of the batch, in milliseconds
+        final Map<Feature, Long> times = new LinkedHashMap<Feature, Long>();
+        // feature whose bundles are being installed
+        Feature feature;
     }
 
-    protected void doInstallFeature(InstallationState state, Feature feature, boolean verbose) throws Exception {
-        LOGGER.info("Installing feature " + feature.getName() + " " + feature.getVersion());
-        if (verbose) {
-            System.out.println("Installing feature " + feature.getName() + " " + feature.getVersion());
-        }
-        for (Feature dependency : feature.getDependencies()) {
-            VersionRange range = FeatureImpl.DEFAULT_VERSION.equals(dependency.getVersion())
-                        ? VersionRange.ANY_VERSION : new VersionRange(dependency.getVersion(), true, true);
-            Feature fi = null;
-            for (Feature f : installed.keySet()) {
-                if (f.getName().equals(dependency.getName())) {
-                    Version v = VersionTable.getVersion(f.getVersion());
-                    if (range.contains(v)) {
-                        if (fi == null || VersionTable.getVersion(fi.getVersion()).compareTo(v) < 0) {
-                            fi = f;
-                        }
+    /**
+     * Start the bundles installed or updated by the given installation, in start level order.
+     */
+    protected void startBundles(InstallationState state) throws Exception {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        Map<Bundle, Feature> owners = new HashMap<Bundle, Feature>();
+        for (Bundle b : state.bundles) {
+            // do not start fragment bundles
+            Dictionary d = b.getHeaders();
+            String fragmentHostHeader = (String) d.get(Constants.FRAGMENT_HOST);
+            if (fragmentHostHeader == null || fragmentHostHeader.trim().length() == 0) {
+                // do not start bundles that are persistently stopped
+                if (state.installed.contains(b)
+                        || (b.getState() != Bundle.STARTING && b.getState() != Bundle.ACTIVE
+                                && getStartLevel().isBundlePersistentlyStarted(b))) {
+                	// do no start bundles when user request it
+                	Long bundleId = b.getBundleId();
+                	BundleInfo bundleInfo = state.bundleInfos.get(bundleId);
+                    if (bundleInfo == null || bundleInfo.isStart()) {
+                        bundles.add(b);
+                        owners.put(b, getFeature(state, bundleId));
                     }
                 }
             }
-            if (fi == null) {
-                Map<String, Feature> avail = getFeatures().get(dependency.getName());
-                if (avail != null) {
-                    for (Feature f : avail.values()) {
-                        Version v = VersionTable.getVersion(f.getVersion());
-                        if (range.contains(v)) {
-                            if (fi == null || VersionTable.getVersion(fi.getVersion()).compareTo(v) < 0) {
-                                fi = f;
+        }
+        final Map<Bundle, Integer> levels = new HashMap<Bundle, Integer>();
+        if (getStartLevel() != null && bundles.size() > 1) {
+            for (Bundle b : bundles) {
+                levels.put(b, getStartLevel().getBundleStartLevel(b));
+            }
+            Collections.sort(bundles, new Comparator<Bundle>() {
+                public int compare(Bundle b1, Bundle b2) {
+                    return levels.get(b1).compareTo(levels.get(b2));
+                }
+            });
+        }
+        if (startThreads <= 1 || bundles.size() <= 1) {
+            for (Bundle b : bundles) {
+                startBundle(b, owners.get(b));
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(startThreads, bundles.size()),
+                                                                newThreadFactory("FeaturesService-start-"));
+        try {
+            int i = 0;
+            while (i < bundles.size()) {
+                Integer level = levels.get(bundles.get(i));
+                int j = i + 1;
+                while (j < bundles.size() && (level == null || level.equals(levels.get(bundles.get(j))))) {
+                    j++;
+                }
+                startBundles(executor, bundles.subList(i, j), owners);
+                i = j;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Start bundles having the same start level.  A bundle is started once the bundles
+     * it imports packages from or requires have been started, and the bundles which do
+     * not depend on each other are started in parallel.
+     */
+    private void startBundles(ExecutorService executor, List<Bundle> bundles, final Map<Bundle, Feature> owners) throws Exception {
+        Map<Bundle, Set<Bundle>> dependencies = getStartDependencies(bundles);
+        List<Bundle> remaining = new ArrayList<Bundle>(bundles);
+        Set<Bundle> started = new HashSet<Bundle>();
+        while (!remaining.isEmpty()) {
+            List<Bundle> wave = new ArrayList<Bundle>();
+            for (Bundle b : remaining) {
+                if (started.containsAll(dependencies.get(b))) {
+                    wave.add(b);
+                }
+            }
+            if (wave.isEmpty()) {
+                // cycle between the remaining bundles
+                wave.addAll(remaining);
+            }
+            // as for the installation, resolving from several threads can livelock the global lock
+            // of the Felix 3.0 framework: the bundles of the wave are resolved beforehand from this
+            // thread, so that starting them in parallel only takes the locks of the bundles themselves
+            resolveBundles(wave);
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final Bundle b : wave) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        if (b.getState() == Bundle.INSTALLED) {
+                            // not resolved, starting it resolves it again
+                            synchronized (frameworkLock) {
+                                startBundle(b, owners.get(b));
                             }
+                        } else {
+                            startBundle(b, owners.get(b));
                         }
+                        return null;
+                    }
+                }));
+            }
+            Exception failure = null;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                     }
                 }
             }
-            if (fi == null) {
-                throw new Exception("No feature named '" + dependency.getName()
-                        + "' with version '" + dependency.getVersion() + "' available");
+            if (failure != null) {
+                throw failure;
             }
-            doInstallFeature(state, fi, verbose);
+            started.addAll(wave);
+            remaining.removeAll(wave);
+        }
+    }
+
+    /**
+     * Get a feature of an installation containing the given bundle, which is charged
+     * with the time spent starting it.
+     */
+    private static Feature getFeature(InstallationState state, Long bundleId) {
+        for (Map.Entry<Feature, Set<Long>> e : state.features.entrySet()) {
+            if (e.getValue().contains(bundleId)) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    private Map<Bundle, Set<Bundle>> getStartDependencies(List<Bundle> bundles) {
+        Map<String, Bundle> exporters = new HashMap<String, Bundle>();
+        Map<String, Bundle> symbolicNames = new HashMap<String, Bundle>();
+        for (Bundle b : bundles) {
+            for (BundleManifests.Export export : getBundleManifests().getManifest(b).getExports()) {
+                exporters.put(export.getName(), b);
+            }
+            if (b.getSymbolicName() != null) {
+                symbolicNames.put(b.getSymbolicName(), b);
+            }
+        }
+        Map<Bundle, Set<Bundle>> dependencies = new HashMap<Bundle, Set<Bundle>>();
+        for (Bundle b : bundles) {
+            BundleManifests.Manifest manifest = getBundleManifests().getManifest(b);
+            Set<Bundle> deps = new HashSet<Bundle>();
+            for (String name : manifest.getImports()) {
+                Bundle exporter = exporters.get(name);
+                if (exporter != null && exporter != b) {
+                    deps.add(exporter);
+                }
+            }
+            for (String name : manifest.getRequiredBundles()) {
+                Bundle required = symbolicNames.get(name);
+                if (required != null && required != b) {
+                    deps.add(required);
+                }
+            }
+            dependencies.put(b, deps);
+        }
+        return dependencies;
+    }
+
+    /**
+     * Resolve the given bundles at once, from a single thread.
+     */
+    private void resolveBundles(List<Bundle> bundles) {
+        if (getPackageAdmin() != null) {
+            synchronized (frameworkLock) {
+                getPackageAdmin().resolveBundles(bundles.toArray(new Bundle[bundles.size()]));
+            }
+        }
+    }
+
+    protected void startBundle(Bundle b, Feature feature) throws Exception {
+        long t0 = System.currentTimeMillis();
+        try {
+            b.start();
+        } catch (BundleException be) {
+            String msg = format("Could not start bundle %s in feature(s) %s: %s", b.getLocation(), getFeaturesContainingBundleList(b), be.getMessage());
+            throw new Exception(msg, be);
+        }
+        recordPhase(feature, Timing.START, System.currentTimeMillis() - t0);
+    }
+
+    /**
+     * Record the time spent in a phase, for the phase and for the given feature if any.
+     */
+    private void recordPhase(Feature feature, String phase, long time) {
+        phaseTimings.record(phase, time);
+        if (feature != null) {
+            featurePhaseTimings.record(feature.getId() + "/" + phase, time);
+        }
+    }
+
+    /**
+     * Schedule the download of all the bundles and configuration files of the given
+     * features and of their dependencies.  Features which use a resolver are skipped,
+     * as their bundles are only known once resolved.
+     */
+    protected void prefetch(DownloadManager downloads, Set<Feature> features) {
+        Set<Feature> visited = new HashSet<Feature>();
+        for (Feature feature : features) {
+            prefetch(downloads, feature, visited);
+        }
+    }
+
+    private void prefetch(DownloadManager downloads, Feature feature, Set<Feature> visited) {
+        if (!visited.add(feature)) {
+            return;
+        }
+        for (Feature dependency : feature.getDependencies()) {
+            try {
+                prefetch(downloads, findDependency(dependency), visited);
+            } catch (Exception e) {
+                // Ignore, the error will be reported when installing the feature
+            }
+        }
+        for (ConfigFileInfo configFile : feature.getConfigurationFiles()) {
+            downloads.download(configFile.getLocation());
+        }
+        if (feature.getResolver() == null || feature.getResolver().length() == 0) {
+            for (BundleInfo bInfo : feature.getBundles()) {
+                downloads.download(bInfo.getLocation());
+            }
+        }
+    }
+
+    protected synchronized ExecutorService getDownloadExecutor() {
+        if (downloadExecutor == null && downloadThreads > 0) {
+            downloadExecutor = Executors.newFixedThreadPool(downloadThreads, newThreadFactory("FeaturesService-download-"));
+        }
+        return downloadExecutor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    protected void doInstallFeature(InstallationState state, Feature feature, boolean verbose) throws Exception {
+        // features shared by several features of the batch are only installed once
+        if (state.features.containsKey(feature) || state.batch.contains(feature)) {
+            return;
+        }
+        LOGGER.info("Installing feature " + feature.getName() + " " + feature.getVersion());
+        if (verbose) {
+            System.out.println("Installing feature " + feature.getName() + " " + feature.getVersion());
+        }
+        for (Feature dependency : feature.getDependencies()) {
+            doInstallFeature(state, findDependency(dependency), verbose);
         }
         for (String config : feature.getConfigurations().keySet()) {
             Dictionary<String,String> props = new Hashtable<String, String>(feature.getConfigurations().get(config));
@@ -467,10 +1239,14 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             }
         }
         for (ConfigFileInfo configFile : feature.getConfigurationFiles()) {
-        	installConfigurationFile(configFile.getLocation(), configFile.getFinalname(), verbose);
+        	installConfigurationFile(state.downloads, configFile.getLocation(), configFile.getFinalname(), verbose);
         }
         Set<Long> bundles = new TreeSet<Long>();
-        for (BundleInfo bInfo : resolve(feature)) {
+        long t0 = System.currentTimeMillis();
+        List<BundleInfo> bundleInfos = resolve(feature);
+        recordPhase(feature, Timing.RESOLVE, System.currentTimeMillis() - t0);
+        state.feature = feature;
+        for (BundleInfo bInfo : bundleInfos) {
             Bundle b = installBundleIfNeeded(state, bInfo, verbose);
             bundles.add(b.getBundleId());
             state.bundleInfos.put(b.getBundleId(), bInfo);
@@ -478,6 +1254,31 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         state.features.put(feature, bundles);
     }
 
+    /**
+     * Find the feature satisfying the given dependency, looking first at the installed
+     * features and then at the available ones.
+     */
+    protected Feature findDependency(Feature dependency) throws Exception {
+        VersionRange range = FeatureImpl.DEFAULT_VERSION.equals(dependency.getVersion())
+                    ? VersionRange.ANY_VERSION : new VersionRange(dependency.getVersion(), true, true);
+        Feature fi = null;
+        FeatureVersions versions = getInstalledVersions().get(dependency.getName());
+        if (versions != null) {
+            fi = versions.getLatest(range);
+        }
+        if (fi == null) {
+            Map<String, Feature> avail = getFeatures().get(dependency.getName());
+            if (avail != null && !avail.isEmpty()) {
+                fi = getFeatureVersions(dependency.getName(), avail).getLatest(range);
+            }
+        }
+        if (fi == null) {
+            throw new Exception("No feature named '" + dependency.getName()
+                    + "' with version '" + dependency.getVersion() + "' available");
+        }
+        return fi;
+    }
+
     protected List<BundleInfo> resolve(Feature feature) throws Exception {
         String resolver = feature.getResolver();
         // If no resolver is specified, we expect a list of uris
@@ -490,27 +1291,39 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             optional = true;
         }
         // Else, find the resolver
-        String filter = "(&(" + Constants.OBJECTCLASS + "=" + Resolver.class.getName() + ")(name=" + resolver + "))";
-        ServiceTracker tracker = new ServiceTracker(bundleContext, FrameworkUtil.createFilter(filter), null);
-        tracker.open();
-        try {
-            if (optional) {
-                Resolver r = (Resolver) tracker.getService();
-                if (r != null) {
-                    return r.resolve(feature);
-                } else {
-                    LOGGER.debug("Optional resolver '" + resolver + "' not found, using the default resolver");
-                    return feature.getBundles();
-                }
-            } else {
-                Resolver r = (Resolver) tracker.waitForService(resolverTimeout);
-                if (r == null) {
-                    throw new Exception("Unable to find required resolver '" + resolver + "'");
-                }
+        ServiceTracker tracker = getResolverTracker(resolver);
+        if (optional) {
+            Resolver r = (Resolver) tracker.getService();
+            if (r != null) {
                 return r.resolve(feature);
+            } else {
+                LOGGER.debug("Optional resolver '" + resolver + "' not found, using the default resolver");
+                return feature.getBundles();
             }
-        } finally {
-            tracker.close();
+        } else {
+            Resolver r = (Resolver) tracker.waitForService(resolverTimeout);
+            if (r == null) {
+                throw new Exception("Unable to find required resolver '" + resolver + "'");
+            }
+            return r.resolve(feature);
+        }
+    }
+
+    /**
+     * Get the tracker for the resolver with the given name.  Trackers are opened on first
+     * use and kept until this service is stopped, following the resolver services as they
+     * are registered and unregistered.
+     */
+    protected ServiceTracker getResolverTracker(String name) throws InvalidSyntaxException {
+        synchronized (resolverTrackers) {
+            ServiceTracker tracker = resolverTrackers.get(name);
+            if (tracker == null) {
+                String filter = "(&(" + Constants.OBJECTCLASS + "=" + Resolver.class.getName() + ")(name=" + name + "))";
+                tracker = new ServiceTracker(bundleContext, FrameworkUtil.createFilter(filter), null);
+                tracker.open();
+                resolverTrackers.put(name, tracker);
+            }
+            return tracker;
         }
     }
 
@@ -526,32 +1339,46 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         Set<Bundle> oldBundles = new HashSet<Bundle>(state.bundles);
         oldBundles.removeAll(state.installed);
         if (!oldBundles.isEmpty()) {
+            // the old bundles keyed by symbolic name, only built when a fragment is found
+            Map<String, List<Bundle>> hosts = null;
             for (Bundle b : state.installed) {
-                String hostHeader = (String) b.getHeaders().get(Constants.FRAGMENT_HOST);
-                if (hostHeader != null) {
-                    Clause[] clauses = Parser.parseHeader(hostHeader);
-                    if (clauses != null && clauses.length > 0) {
-                        Clause path = clauses[0];
-                        for (Bundle hostBundle : oldBundles) {
-                            if (hostBundle.getSymbolicName().equals(path.getName())) {
-                                String ver = path.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE);
-                                if (ver != null) {
-                                    VersionRange v = VersionRange.parseVersionRange(ver);
-                                    if (v.contains(hostBundle.getVersion())) {
-                                        bundles.add(hostBundle);
-                                    }
-                                } else {
-                                    bundles.add(hostBundle);
-                                }
-                            }
-                        }
+                BundleManifests.Manifest manifest = getBundleManifests().getManifest(b);
+                if (manifest.getFragmentHost() != null) {
+                    if (hosts == null) {
+                        hosts = indexBySymbolicName(oldBundles);
                     }
+                    addHosts(manifest, hosts, bundles);
                 }
             }
         }
         return bundles;
     }
 
+    private static Map<String, List<Bundle>> indexBySymbolicName(Collection<Bundle> bundles) {
+        Map<String, List<Bundle>> index = new HashMap<String, List<Bundle>>();
+        for (Bundle bundle : bundles) {
+            List<Bundle> list = index.get(bundle.getSymbolicName());
+            if (list == null) {
+                list = new ArrayList<Bundle>();
+                index.put(bundle.getSymbolicName(), list);
+            }
+            list.add(bundle);
+        }
+        return index;
+    }
+
+    private static void addHosts(BundleManifests.Manifest fragment, Map<String, List<Bundle>> hosts, Set<Bundle> result) {
+        List<Bundle> list = hosts.get(fragment.getFragmentHost());
+        if (list != null) {
+            VersionRange v = fragment.getFragmentHostVersion();
+            for (Bundle hostBundle : list) {
+                if (v == null || v.contains(hostBundle.getVersion())) {
+                    result.add(hostBundle);
+                }
+            }
+        }
+    }
+
     protected Set<Bundle> findBundlesWithOptionalPackagesToRefresh(InstallationState state) {
         // First pass: include all bundles contained in these features
         Set<Bundle> bundles = new HashSet<Bundle>(state.bundles);
@@ -560,11 +1387,10 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             return bundles;
         }
         // Second pass: for each bundle, check if there is any unresolved optional package that could be resolved
-        Map<Bundle, List<Clause>> imports = new HashMap<Bundle, List<Clause>>();
+        Map<Bundle, List<BundleManifests.Import>> imports = new HashMap<Bundle, List<BundleManifests.Import>>();
         for (Iterator<Bundle> it = bundles.iterator(); it.hasNext();) {
             Bundle b = it.next();
-            String importsStr = (String) b.getHeaders().get(Constants.IMPORT_PACKAGE);
-            List<Clause> importsList = getOptionalImports(importsStr);
+            List<BundleManifests.Import> importsList = getBundleManifests().getManifest(b).getOptionalImports();
             if (importsList.isEmpty()) {
                 it.remove();
             } else {
@@ -574,43 +1400,20 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         if (bundles.isEmpty()) {
             return bundles;
         }
-        // Third pass: compute a list of packages that are exported by our bundles and see if
+        // Third pass: index the packages that are exported by our bundles and see if
         //             some exported packages can be wired to the optional imports
-        List<Clause> exports = new ArrayList<Clause>();
+        Map<String, List<Version>> exports = new HashMap<String, List<Version>>();
         for (Bundle b : state.installed) {
-            String exportsStr = (String) b.getHeaders().get(Constants.EXPORT_PACKAGE);
-            if (exportsStr != null) {
-                Clause[] exportsList = Parser.parseHeader(exportsStr);
-                exports.addAll(Arrays.asList(exportsList));
-            }
+            indexExports(getBundleManifests().getManifest(b), exports);
         }
         for (Iterator<Bundle> it = bundles.iterator(); it.hasNext();) {
             Bundle b = it.next();
-            List<Clause> importsList = imports.get(b);
-            for (Iterator<Clause> itpi = importsList.iterator(); itpi.hasNext();) {
-                Clause pi = itpi.next();
-                boolean matching = false;
-                for (Clause pe : exports) {
-                    if (pi.getName().equals(pe.getName())) {
-                        String evStr = pe.getAttribute(Constants.VERSION_ATTRIBUTE);
-                        String ivStr = pi.getAttribute(Constants.VERSION_ATTRIBUTE);
-                        Version exported = evStr != null ? Version.parseVersion(evStr) : Version.emptyVersion;
-                        VersionRange imported = ivStr != null ? VersionRange.parseVersionRange(ivStr) : VersionRange.ANY_VERSION;
-                        if (imported.contains(exported)) {
-                            matching = true;
-                            break;
-                        }
-                    }
-                }
-                if (!matching) {
-                    itpi.remove();
-                }
-            }
-            if (importsList.isEmpty()) {
+            List<BundleManifests.Import> matching = getMatchingImports(imports.get(b), exports);
+            if (matching.isEmpty()) {
                 it.remove();
             } else {
                 LOGGER.debug("Refeshing bundle {} ({}) to solve the following optional imports", b.getSymbolicName(), b.getBundleId());
-                for (Clause p : importsList) {
+                for (BundleManifests.Import p : matching) {
                     LOGGER.debug("    {}", p);
                 }
 
@@ -619,67 +1422,101 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         return bundles;
     }
 
-    /*
-     * Get the list of optional imports from an OSGi Import-Package string
-     */
-    protected List<Clause> getOptionalImports(String importsStr) {
-        Clause[] imports = Parser.parseHeader(importsStr);
-        List<Clause> result = new LinkedList<Clause>();
-        for (int i = 0; i < imports.length; i++) {
-            String resolution = imports[i].getDirective(Constants.RESOLUTION_DIRECTIVE);
-            if (Constants.RESOLUTION_OPTIONAL.equals(resolution)) {
-                result.add(imports[i]);
+    private static void indexExports(BundleManifests.Manifest manifest, Map<String, List<Version>> exports) {
+        for (BundleManifests.Export export : manifest.getExports()) {
+            List<Version> versions = exports.get(export.getName());
+            if (versions == null) {
+                versions = new ArrayList<Version>();
+                exports.put(export.getName(), versions);
             }
+            versions.add(export.getVersion());
         }
-        return result;
+    }
+
+    private static List<BundleManifests.Import> getMatchingImports(List<BundleManifests.Import> imports,
+                                                                   Map<String, List<Version>> exports) {
+        List<BundleManifests.Import> matching = new ArrayList<BundleManifests.Import>();
+        for (BundleManifests.Import pi : imports) {
+            List<Version> versions = exports.get(pi.getName());
+            if (versions != null) {
+                for (Version exported : versions) {
+                    if (pi.getRange().contains(exported)) {
+                        matching.add(pi);
+                        break;
+                    }
+                }
+            }
+        }
+        return matching;
     }
 
     protected Bundle installBundleIfNeeded(InstallationState state, BundleInfo bundleInfo, boolean verbose) throws IOException, BundleException {
-        InputStream is;
+        InputStream is = null;
         String bundleLocation = bundleInfo.getLocation();
         LOGGER.debug("Checking " + bundleLocation);
+        long t0 = System.currentTimeMillis();
+        File file;
         try {
-            is = new BufferedInputStream(new URL(bundleLocation).openStream());
+            // local files are read in place rather than through a buffered stream
+            file = getLocalFile(state.downloads, bundleLocation);
+            if (file == null) {
+                is = new BufferedInputStream(openLocation(state.downloads, bundleLocation));
+            }
         } catch (RuntimeException e) {
             LOGGER.error(e.getMessage());
             throw e;
         }
+        recordPhase(state.feature, Timing.DOWNLOAD, System.currentTimeMillis() - t0);
         try {
-            is.mark(256 * 1024);
-            JarInputStream jar = new JarInputStream(is);
-            Manifest m = jar.getManifest();
+            Manifest m;
+            if (file != null) {
+                m = readManifest(file);
+            } else {
+                is.mark(256 * 1024);
+                JarInputStream jar = new JarInputStream(is);
+                m = jar.getManifest();
+            }
             if(m == null) {
                 throw new BundleException("Manifest not present in the first entry of the zip " + bundleLocation);
             }
             String sn = m.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
             String vStr = m.getMainAttributes().getValue(Constants.BUNDLE_VERSION);
             Version v = vStr == null ? Version.emptyVersion : Version.parseVersion(vStr);
-            for (Bundle b : bundleContext.getBundles()) {
-                if (b.getSymbolicName() != null && b.getSymbolicName().equals(sn)) {
-                    vStr = (String) b.getHeaders().get(Constants.BUNDLE_VERSION);
-                    Version bv = vStr == null ? Version.emptyVersion : Version.parseVersion(vStr);
-                    if (v.equals(bv)) {
-                        LOGGER.info("Found installed bundle: " + b);
-                        if (verbose) {
-                            System.out.println("Found installed bundle: " + b);
-                        }
-                        state.bundles.add(b);
-                        return b;
+            Bundle b;
+            // features installed concurrently must not install the same bundle twice
+            synchronized (installLocks[((sn + "/" + v).hashCode() & 0x7fffffff) % installLocks.length]) {
+                Bundle existing = getBundleIndex().getBundle(sn, v);
+                if (existing != null) {
+                    LOGGER.info("Found installed bundle: " + existing);
+                    if (verbose) {
+                        System.out.println("Found installed bundle: " + existing);
                     }
+                    state.bundles.add(existing);
+                    return existing;
+                }
+                if (file != null) {
+                    is = new FileInputStream(file);
+                } else {
+                    try {
+                        is.reset();
+                    } catch (IOException e) {
+                        is.close();
+                        is = new BufferedInputStream(openLocation(state.downloads, bundleLocation));
+                    }
+                }
+                LOGGER.info("Installing bundle " + bundleLocation);
+                if (verbose) {
+                    System.out.println("Installing bundle " + bundleLocation);
+                }
+                // installing bundles from several threads can livelock the global lock of the
+                // Felix 3.0 framework, so only the manifests and downloads are handled in parallel
+                synchronized (frameworkLock) {
+                    t0 = System.currentTimeMillis();
+                    b = getBundleContext().installBundle(bundleLocation, is);
+                    recordPhase(state.feature, Timing.INSTALL, System.currentTimeMillis() - t0);
                 }
             }
-            try {
-                is.reset();
-            } catch (IOException e) {
-                is.close();
-                is = new BufferedInputStream(new URL(bundleLocation).openStream());
-            }
-            LOGGER.info("Installing bundle " + bundleLocation);
-            if (verbose) {
-                System.out.println("Installing bundle " + bundleLocation);
-            }
-            Bundle b = getBundleContext().installBundle(bundleLocation, is);
-            
+
             // Define the startLevel for the bundle when defined
             int ibsl = bundleInfo.getStartLevel();
             if (ibsl > 0) {
@@ -690,11 +1527,123 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             state.installed.add(b);
             return b;
         } finally {
-            is.close();
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Read the manifest of a jar file from its central directory, without reading the
+     * whole file.
+     */
+    protected Manifest readManifest(File file) throws IOException {
+        JarFile jar = new JarFile(file, false);
+        try {
+            return jar.getManifest();
+        } finally {
+            jar.close();
         }
     }
-    
+
+    /**
+     * Get the local file holding the content of the given location, if any.
+     */
+    protected File getLocalFile(DownloadManager downloads, String location) throws IOException {
+        if (downloads != null) {
+            return downloads.getFile(location);
+        } else {
+            File file = DownloadManager.toFile(location);
+            return file != null ? file : getLocalRepositories().find(location);
+        }
+    }
+
+    protected InputStream openLocation(DownloadManager downloads, String location) throws IOException {
+        if (downloads != null) {
+            return downloads.open(location);
+        } else {
+            return new URL(location).openStream();
+        }
+    }
+
+    public ArtifactCache getArtifactCache() {
+        return getBundleCache();
+    }
+
+    protected synchronized BundleCache getBundleCache() {
+        if (bundleCache == null && bundleCacheDir != null && bundleCacheDir.length() > 0 && bundleCacheMaxSize > 0) {
+            bundleCache = new BundleCache(new File(bundleCacheDir), bundleCacheMaxSize * 1024 * 1024);
+        }
+        return bundleCache;
+    }
+
+    protected synchronized LocalRepositories getLocalRepositories() {
+        if (localRepositories == null) {
+            Map<String, String> config = getMavenConfiguration();
+            // the repositories configured for the features service override the ones of the maven url handler
+            if (defaultRepositories != null && defaultRepositories.trim().length() > 0) {
+                config.put(LocalRepositories.PROPERTY_DEFAULT_REPOSITORIES, defaultRepositories);
+            }
+            if (localRepository != null && localRepository.trim().length() > 0) {
+                config.put(LocalRepositories.PROPERTY_LOCAL_REPOSITORY, localRepository);
+            }
+            localRepositories = LocalRepositories.fromMavenConfiguration(config);
+        }
+        return localRepositories;
+    }
+
+    /**
+     * Get the configuration of the maven url handler, from the configuration admin or else
+     * from the system properties, as the handler reads it.
+     */
+    protected Map<String, String> getMavenConfiguration() {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("user.home", System.getProperty("user.home"));
+        if (System.getProperty("maven.home") != null) {
+            config.put("maven.home", System.getProperty("maven.home"));
+        }
+        if (System.getenv("M2_HOME") != null) {
+            config.put("M2_HOME", System.getenv("M2_HOME"));
+        }
+        Dictionary props = null;
+        try {
+            Configuration cfg = configAdmin != null ? findExistingConfiguration(configAdmin, MAVEN_PID, null) : null;
+            props = cfg != null ? cfg.getProperties() : null;
+        } catch (Exception e) {
+            LOGGER.debug("Unable to read the configuration of the maven url handler", e);
+        }
+        for (String key : new String[] { LocalRepositories.PROPERTY_DEFAULT_REPOSITORIES,
+                LocalRepositories.PROPERTY_LOCAL_REPOSITORY, LocalRepositories.PROPERTY_SETTINGS }) {
+            Object value = props != null ? props.get(key) : null;
+            if (value == null) {
+                value = System.getProperty(key);
+            }
+            if (value != null) {
+                config.put(key, value.toString());
+            }
+        }
+        return config;
+    }
+
+    protected synchronized BundleIndex getBundleIndex() {
+        if (bundleIndex == null) {
+            bundleIndex = new BundleIndex(bundleContext);
+        }
+        return bundleIndex;
+    }
+
+    protected synchronized BundleManifests getBundleManifests() {
+        if (bundleManifests == null) {
+            bundleManifests = new BundleManifests(bundleContext);
+        }
+        return bundleManifests;
+    }
+
     public void installConfigurationFile(String fileLocation, String finalname, boolean verbose) throws IOException {
+        installConfigurationFile(null, fileLocation, finalname, verbose);
+    }
+
+    protected void installConfigurationFile(DownloadManager downloads, String fileLocation, String finalname, boolean verbose) throws IOException {
     	LOGGER.info("Checking configuration file " + fileLocation);
         if (verbose) {
             System.out.println("Checking configuration file " + fileLocation);
@@ -722,7 +1671,7 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
     	FileOutputStream fop = new FileOutputStream(file);
         InputStream is = null;
         try {
-            is = new BufferedInputStream(new URL(fileLocation).openStream());
+            is = new BufferedInputStream(openLocation(downloads, fileLocation));
         
             int bytesRead = 0;
             byte[] buffer = new byte[1024];
@@ -775,10 +1724,12 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             throw new Exception("Feature named '" + name 
             		+ "' with version '" + version + "' is not installed");
         }
+        long t0 = System.currentTimeMillis();
         // Grab all the bundles installed by this feature
         // and remove all those who will still be in use.
         // This gives this list of bundles to uninstall.
         Set<Long> bundles = installed.remove(feature);
+        installedVersions = null;
         for (Set<Long> b : installed.values()) {
             bundles.removeAll(b);
         }
@@ -789,10 +1740,23 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             }
         }
         refreshPackages(null);
+        recordPhase(feature, Timing.UNINSTALL, System.currentTimeMillis() - t0);
         callListeners(new FeatureEvent(feature, FeatureEvent.EventType.FeatureUninstalled, false));
         saveState();
     }
 
+    public Timing[] getPhaseTimings() {
+        return phaseTimings.toArray();
+    }
+
+    public Timing[] getFeatureTimings() {
+        return featureTimings.toArray();
+    }
+
+    public Timing[] getFeaturePhaseTimings() {
+        return featurePhaseTimings.toArray();
+    }
+
     public Feature[] listFeatures() throws Exception {
         Collection<Feature> features = new ArrayList<Feature>();
         for (Map<String, Feature> featureWithDifferentVersion : getFeatures().values()) {
@@ -824,37 +1788,58 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         if (versions == null || versions.isEmpty()) {
             return null;
         } else {
-            Feature feature = versions.get(version);
-            if (feature == null) {
-                if (FeatureImpl.DEFAULT_VERSION.equals(version)) {
-                    Version latest = new Version(cleanupVersion(version));
-                    for (String available : versions.keySet()) {
-                        Version availableVersion = new Version(cleanupVersion(available));
-                        if (availableVersion.compareTo(latest) > 0) {
-                            feature = versions.get(available);
-                            latest = availableVersion;
-                        }
-                    }
-                } else {
-                    Version latest = new Version(cleanupVersion(FeatureImpl.DEFAULT_VERSION));
-                    VersionRange versionRange = new VersionRange(version, true, true);
-                    for (String available : versions.keySet()) {
-                        Version availableVersion = new Version(cleanupVersion(available));
-                        if (availableVersion.compareTo(latest) > 0 && versionRange.contains(availableVersion)) {
-                            feature = versions.get(available);
-                            latest = availableVersion;
-                        }
-                    }
+            return getFeatureVersions(name, versions).getFeature(version);
+        }
+    }
+
+    /**
+     * Get the sorted versions of the given feature, building them if the versions
+     * have changed since they were last used.
+     */
+    protected FeatureVersions getFeatureVersions(String name, Map<String, Feature> versions) {
+        FeatureVersions fv = featureVersions.get(name);
+        if (fv == null || !fv.isFor(versions)) {
+            fv = new FeatureVersions(versions);
+            featureVersions.put(name, fv);
+        }
+        return fv;
+    }
+
+    /**
+     * Get the sorted versions of the installed features, keyed by feature name.
+     */
+    protected synchronized Map<String, FeatureVersions> getInstalledVersions() {
+        Map<String, FeatureVersions> result = installedVersions;
+        if (result == null) {
+            Map<String, Map<String, Feature>> byName = new HashMap<String, Map<String, Feature>>();
+            for (Feature f : installed.keySet()) {
+                Map<String, Feature> versions = byName.get(f.getName());
+                if (versions == null) {
+                    versions = new HashMap<String, Feature>();
+                    byName.put(f.getName(), versions);
                 }
+                versions.put(f.getVersion(), f);
             }
-            return feature;
+            result = new HashMap<String, FeatureVersions>();
+            for (Map.Entry<String, Map<String, Feature>> e : byName.entrySet()) {
+                result.put(e.getKey(), new FeatureVersions(e.getValue()));
+            }
+            installedVersions = result;
         }
+        return result;
     }
 
     protected Map<String, Map<String, Feature>> getFeatures() throws Exception {
-        if (features == null) {
+        Map<String, Map<String, Feature>> map = features;
+        if (map != null) {
+            return map;
+        }
+        synchronized (featuresLock) {
+            if (features != null) {
+                return features;
+            }
         	//the outer map's key is feature name, the inner map's key is feature version       
-            Map<String, Map<String, Feature>> map = new HashMap<String, Map<String, Feature>>();
+            map = new HashMap<String, Map<String, Feature>>();
             // Two phase load:
             // * first load dependent repositories
             for (;;) {
@@ -872,8 +1857,10 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
                 }
             }
             // * then load all features
+            Map<String, List<Feature>> providers = new HashMap<String, List<Feature>>();
             for (Repository repo : repositories.values()) {
                 for (Feature f : repo.getFeatures()) {
+                    addProvider(providers, f);
                 	if (map.get(f.getName()) == null) {
                 		Map<String, Feature> versionMap = new HashMap<String, Feature>();
                 		versionMap.put(f.getVersion(), f);
@@ -883,14 +1870,20 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
                 	}
                 }
             }
+            featureProviders = providers;
             features = map;
+            featuresRebuildCount.incrementAndGet();
+            LOGGER.debug("Rebuilt the features map from " + repositories.size() + " repositories");
+            return map;
         }
-        return features;
     }
 
     public void start() throws Exception {
         // Register FrameworkEventListener
         bundleContext.addFrameworkListener(this);
+        // Keep track of installed bundles
+        getBundleIndex().open();
+        getBundleManifests().open();
         // Register EventAdmin listener
         EventAdminListener listener = null;
         try {
@@ -901,6 +1894,11 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             LOGGER.debug("EventAdmin package is not available, just don't use it");
         }
         this.eventAdminListener = listener;
+        // Use a persistent cache of the parsed repositories
+        String karafData = System.getProperty("karaf.data");
+        if (karafData != null) {
+            repositoryCache = new RepositoryCache(new File(karafData, "features-cache"));
+        }
         // Load State
         if (!loadState()) {
             if (uris != null) {
@@ -955,7 +1953,9 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
                         }
                     }
                     try {
-                        installFeatures(features, EnumSet.of(Option.NoCleanIfFailure, Option.ContinueBatchOnFailure));
+                        long t0 = System.currentTimeMillis();
+                        Map<Feature, Long> times = installFeatures(features, EnumSet.of(Option.NoCleanIfFailure, Option.ContinueBatchOnFailure), bootThreads);
+                        logBootTimes(times, System.currentTimeMillis() - t0);
                     } catch (Exception e) {
                         LOGGER.error("Error installing boot features", e);
                     }
@@ -966,12 +1966,46 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
         }
     }
 
+    private void logBootTimes(Map<Feature, Long> times, long total) {
+        List<Map.Entry<Feature, Long>> entries = new ArrayList<Map.Entry<Feature, Long>>(times.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Feature, Long>>() {
+            public int compare(Map.Entry<Feature, Long> e1, Map.Entry<Feature, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Feature, Long> e : entries) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(e.getKey().getName()).append(" (").append(e.getValue()).append(" ms)");
+        }
+        LOGGER.info("Boot features installed in {} ms: {}", total, sb.toString());
+    }
+
     public void stop() throws Exception {
         bundleContext.removeFrameworkListener(this);
+        getBundleIndex().close();
+        getBundleManifests().close();
+        synchronized (resolverTrackers) {
+            for (ServiceTracker tracker : resolverTrackers.values()) {
+                tracker.close();
+            }
+            resolverTrackers.clear();
+        }
+        synchronized (this) {
+            if (downloadExecutor != null) {
+                downloadExecutor.shutdownNow();
+                downloadExecutor = null;
+            }
+        }
         uris = new HashSet<URI>(repositories.keySet());
+        features = null;
         while (!repositories.isEmpty()) {
             internalRemoveRepository(repositories.keySet().iterator().next());
         }
+        // write the last changes to the state, and the later ones synchronously
+        getStateWriter().close();
     }
 
     public void frameworkEvent(FrameworkEvent event) {
@@ -984,10 +2018,12 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
 
     protected void refreshPackages(Bundle[] bundles) throws InterruptedException {
         if (getPackageAdmin() != null) {
+            long t0 = System.currentTimeMillis();
             synchronized (refreshLock) {
                 getPackageAdmin().refreshPackages(bundles);
                 refreshLock.wait(refreshTimeout);
             }
+            phaseTimings.record(Timing.REFRESH, System.currentTimeMillis() - t0);
         }
     }
 
@@ -1037,17 +2073,19 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             saveSet(props, "repositories.", repositories.keySet());
             saveMap(props, "features.", installed);
             props.put("bootFeaturesInstalled", Boolean.toString(bootFeaturesInstalled));
-            OutputStream os = new FileOutputStream(file);
-            try {
-                props.store(new FileOutputStream(file), "FeaturesService State");
-            } finally {
-                os.close();
-            }
+            getStateWriter().write(file, props);
         } catch (Exception e) {
             LOGGER.error("Error persisting FeaturesService state", e);
         }
     }
 
+    protected synchronized StateWriter getStateWriter() {
+        if (stateWriter == null) {
+            stateWriter = new StateWriter(saveStateDelay);
+        }
+        return stateWriter;
+    }
+
     protected boolean loadState() {
         try {
             File file = bundleContext.getDataFile("FeaturesServiceState.properties");
@@ -1070,6 +2108,7 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
             	}
             }
             installed = loadMap(props, "features.");
+            installedVersions = null;
             for (Feature f : installed.keySet()) {
                 callListeners(new FeatureEvent(f, FeatureEvent.EventType.FeatureInstalled, true));
             }
@@ -1224,18 +2263,21 @@ public class FeaturesServiceImpl implements FeaturesService, FrameworkListener {
     }
 
     public Set<Feature> getFeaturesContainingBundle (Bundle bundle) throws Exception {
-        Set<Feature> features = new HashSet<Feature>();
-        for (Map<String, Feature> featureMap : this.getFeatures().values()) {
-            for (Feature f : featureMap.values()) {
-                for (BundleInfo bi : f.getBundles()) {
-                    if (bi.getLocation().equals(bundle.getLocation())) {
-                        features.add(f);
-                        break;
-                    }
-                }
-            }
-        }
-        return features;
+        return getFeatureLocations().getFeatures(bundle.getLocation());
+    }
+
+    /**
+     * Get the index of the available features by bundle location, building it if the
+     * features map has been rebuilt since.
+     */
+    protected FeatureLocations getFeatureLocations() throws Exception {
+        Map<String, Map<String, Feature>> map = getFeatures();
+        FeatureLocations locations = featureLocations;
+        if (locations == null || !locations.isFor(map)) {
+            locations = new FeatureLocations(map);
+            featureLocations = locations;
+        }
+        return locations;
     }
 
     private String getFeaturesContainingBundleList(Bundle bundle) throws Exception {
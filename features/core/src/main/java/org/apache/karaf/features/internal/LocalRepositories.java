@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * The local repositories in which <code>mvn:</code> urls are looked up before being downloaded,
+ * so that the artifacts they already hold are read in place.
+ * As with the maven url handler, the default repositories, such as the <code>system</code>
+ * directory, are looked up first and may hold snapshots.  The local maven repository is only
+ * used for released versions, as a newer snapshot may be available remotely.
+ * The repositories are usually those of the <code>org.ops4j.pax.url.mvn</code> configuration,
+ * see {@link #fromMavenConfiguration(Map)}, so that an artifact is only read in place when
+ * the maven url handler would read it from the same file.
+ */
+public class LocalRepositories {
+
+    public static final String PROPERTY_DEFAULT_REPOSITORIES = "org.ops4j.pax.url.mvn.defaultRepositories";
+    public static final String PROPERTY_LOCAL_REPOSITORY = "org.ops4j.pax.url.mvn.localRepository";
+    public static final String PROPERTY_SETTINGS = "org.ops4j.pax.url.mvn.settings";
+
+    private final List<Repository> defaultRepositories;
+    private final File localRepository;
+
+    /**
+     * @param defaultRepositories the directories looked up first, in order, holding both
+     *                            released and snapshot artifacts
+     * @param localRepository     the local maven repository, or <code>null</code>
+     */
+    public LocalRepositories(List<File> defaultRepositories, File localRepository) {
+        this.defaultRepositories = new ArrayList<Repository>();
+        for (File dir : defaultRepositories) {
+            this.defaultRepositories.add(new Repository(dir, true, true));
+        }
+        this.localRepository = localRepository;
+    }
+
+    /**
+     * @param defaultRepositories the comma separated urls of the repositories looked up first, in
+     *                            the format of the maven url handler: only the <code>file:</code>
+     *                            urls and plain directories are used, and the
+     *                            <code>@snapshots</code> and <code>@noreleases</code> flags are honoured
+     * @param localRepository     the local maven repository, or <code>null</code>
+     */
+    public LocalRepositories(String defaultRepositories, File localRepository) {
+        this.defaultRepositories = new ArrayList<Repository>();
+        if (defaultRepositories != null) {
+            for (String spec : defaultRepositories.split(",")) {
+                Repository repository = Repository.parse(spec);
+                if (repository != null) {
+                    this.defaultRepositories.add(repository);
+                }
+            }
+        }
+        this.localRepository = localRepository;
+    }
+
+    /**
+     * Create the local repositories used by the maven url handler with the given configuration.
+     * The local repository is the one configured, or the one of the maven settings, or the
+     * <code>.m2/repository</code> directory of the user, in this order.
+     *
+     * @param config the properties of the <code>org.ops4j.pax.url.mvn</code> configuration,
+     *               along with the <code>user.home</code>, <code>maven.home</code> and
+     *               <code>M2_HOME</code> properties used to find the maven settings
+     */
+    public static LocalRepositories fromMavenConfiguration(Map<String, String> config) {
+        String local = config.get(PROPERTY_LOCAL_REPOSITORY);
+        if (local == null || local.trim().length() == 0) {
+            local = getSettingsLocalRepository(config);
+        }
+        if (local == null || local.trim().length() == 0) {
+            String home = config.get("user.home");
+            local = home != null ? home + "/.m2/repository" : null;
+        }
+        return new LocalRepositories(config.get(PROPERTY_DEFAULT_REPOSITORIES), local != null ? toFile(local.trim()) : null);
+    }
+
+    /**
+     * Find the artifact of the given location in the local repositories.
+     *
+     * @return the file, or <code>null</code> if the location is not a <code>mvn:</code> url
+     *         of a given version or if none of the repositories holds it
+     */
+    public File find(String location) {
+        String path = getPath(location);
+        if (path == null) {
+            return null;
+        }
+        boolean snapshot = path.contains("SNAPSHOT");
+        for (Repository repository : defaultRepositories) {
+            if (snapshot ? repository.snapshots : repository.releases) {
+                File file = new File(repository.dir, path);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        }
+        if (localRepository != null && BundleCache.isCacheable(location)) {
+            File file = new File(localRepository, path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the local repository of the maven settings, looked up as the maven url handler does.
+     */
+    private static String getSettingsLocalRepository(Map<String, String> config) {
+        List<String> candidates = new ArrayList<String>();
+        candidates.add(config.get(PROPERTY_SETTINGS));
+        if (config.get("user.home") != null) {
+            candidates.add(config.get("user.home") + "/.m2/settings.xml");
+        }
+        if (config.get("maven.home") != null) {
+            candidates.add(config.get("maven.home") + "/conf/settings.xml");
+        }
+        if (config.get("M2_HOME") != null) {
+            candidates.add(config.get("M2_HOME") + "/conf/settings.xml");
+        }
+        for (String candidate : candidates) {
+            if (candidate == null || candidate.trim().length() == 0) {
+                continue;
+            }
+            File settings = toFile(candidate.trim());
+            if (settings != null && settings.isFile()) {
+                try {
+                    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(settings);
+                    NodeList nodes = doc.getElementsByTagName("localRepository");
+                    if (nodes.getLength() == 0) {
+                        return null;
+                    }
+                    String local = nodes.item(0).getTextContent().trim();
+                    String home = config.get("user.home");
+                    return home != null ? local.replace("${user.home}", home) : local;
+                } catch (Exception e) {
+                    // Ignore, the maven url handler does not use an unreadable settings file either
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Convert a <code>file:</code> url or a path to a file.
+     *
+     * @return the file, or <code>null</code> if the location is a remote url
+     */
+    private static File toFile(String location) {
+        if (location.startsWith("file:")) {
+            try {
+                return new File(new URI(location));
+            } catch (Exception e) {
+                return new File(location.substring("file:".length()));
+            }
+        }
+        if (location.indexOf("://") > 0) {
+            return null;
+        }
+        return new File(location);
+    }
+
+    /**
+     * Convert a <code>mvn:group/artifact/version[/type[/classifier]]</code> url to the path
+     * of its artifact in a maven repository.
+     *
+     * @return the path, or <code>null</code> if the location is not such an url, names its own
+     *         repository or does not have a fixed version
+     */
+    static String getPath(String location) {
+        if (location == null || !location.startsWith("mvn:") || location.indexOf('!') >= 0) {
+            return null;
+        }
+        String[] segments = location.substring("mvn:".length()).trim().split("/");
+        if (segments.length < 3 || segments.length > 5) {
+            return null;
+        }
+        String group = segments[0];
+        String artifact = segments[1];
+        String version = segments[2];
+        if (group.length() == 0 || artifact.length() == 0 || version.length() == 0
+                || "LATEST".equals(version) || "RELEASE".equals(version)
+                || version.startsWith("[") || version.startsWith("(") || version.contains(",")) {
+            return null;
+        }
+        String type = segments.length > 3 && segments[3].length() > 0 ? segments[3] : "jar";
+        String classifier = segments.length > 4 && segments[4].length() > 0 ? "-" + segments[4] : "";
+        return group.replace('.', '/') + "/" + artifact + "/" + version + "/"
+                + artifact + "-" + version + classifier + "." + type;
+    }
+
+    /**
+     * A default repository, with the kinds of artifacts it holds.
+     */
+    static class Repository {
+        final File dir;
+        final boolean releases;
+        final boolean snapshots;
+
+        Repository(File dir, boolean releases, boolean snapshots) {
+            this.dir = dir;
+            this.releases = releases;
+            this.snapshots = snapshots;
+        }
+
+        /**
+         * Parse a repository of the maven url handler, such as
+         * <code>file:/opt/karaf/system@snapshots</code>.
+         *
+         * @return the repository, or <code>null</code> if it is not a local directory
+         */
+        static Repository parse(String spec) {
+            String[] parts = spec.trim().split("@");
+            if (parts[0].length() == 0) {
+                return null;
+            }
+            File dir = toFile(parts[0]);
+            if (dir == null) {
+                return null;
+            }
+            boolean releases = true;
+            boolean snapshots = false;
+            for (int i = 1; i < parts.length; i++) {
+                if ("snapshots".equals(parts[i])) {
+                    snapshots = true;
+                } else if ("noreleases".equals(parts[i])) {
+                    releases = false;
+                }
+            }
+            return new Repository(dir, releases, snapshots);
+        }
+    }
+
+}
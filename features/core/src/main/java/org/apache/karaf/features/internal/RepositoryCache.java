@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.ConfigFileInfo;
+import org.apache.karaf.features.Feature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of the parsed features repositories.
+ * Each repository is stored in a compact binary file named after the SHA-1 of its uri,
+ * along with the last modification date and the SHA-1 of the descriptor it has been
+ * parsed from.
+ * Repositories with an immutable location, i.e. the maven urls of released artifacts as
+ * defined by {@link BundleCache#isCacheable(String)}, are always served from the cache, while
+ * all the others are revalidated against the last modification date or, if not available,
+ * the checksum of their current content.
+ */
+public class RepositoryCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryCache.class);
+
+    private static final int MAGIC = 0x4b524331;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File directory;
+
+    public RepositoryCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Initialize the given repository from the cache.
+     *
+     * @return <code>true</code> if the repository has been loaded from the cache,
+     *         <code>false</code> if it is not cached or the cached copy is out of date
+     */
+    public boolean load(RepositoryImpl repo) {
+        File file = getFile(repo.getURI());
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                        || !repo.getURI().toString().equals(readString(in))) {
+                    return false;
+                }
+                long lastModified = in.readLong();
+                String checksum = readString(in);
+                if (!isImmutable(repo.getURI()) && !isUpToDate(repo.getURI(), lastModified, checksum)) {
+                    return false;
+                }
+                read(in, repo, lastModified, checksum);
+                LOGGER.debug("Loaded features repository " + repo.getURI() + " from cache");
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Unable to load features repository " + repo.getURI() + " from cache", e);
+            file.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Store the given loaded repository in the cache.
+     */
+    public void store(RepositoryImpl repo) {
+        if (!repo.isValid()) {
+            return;
+        }
+        File file = getFile(repo.getURI());
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try {
+            directory.mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, repo.getURI().toString());
+                out.writeLong(repo.getLastModified());
+                writeString(out, repo.getChecksum());
+                write(out, repo);
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Unable to cache features repository " + repo.getURI(), e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Remove the given repository from the cache.
+     */
+    public void remove(URI uri) {
+        getFile(uri).delete();
+    }
+
+    protected boolean isImmutable(URI uri) {
+        return BundleCache.isCacheable(uri.toString());
+    }
+
+    protected boolean isUpToDate(URI uri, long lastModified, String checksum) throws IOException {
+        URLConnection conn = uri.toURL().openConnection();
+        conn.setDefaultUseCaches(false);
+        long current = conn.getLastModified();
+        if (current != 0) {
+            conn.getInputStream().close();
+            return current == lastModified;
+        }
+        return checksum != null && checksum.equals(checksum(RepositoryImpl.readFully(conn.getInputStream())));
+    }
+
+    protected File getFile(URI uri) {
+        return new File(directory, checksum(uri.toString().getBytes()));
+    }
+
+    private void write(DataOutputStream out, RepositoryImpl repo) throws Exception {
+        writeString(out, repo.getName());
+        URI[] repositories = repo.getRepositories();
+        out.writeInt(repositories.length);
+        for (URI uri : repositories) {
+            writeString(out, uri.toString());
+        }
+        Feature[] features = repo.getFeatures();
+        out.writeInt(features.length);
+        for (Feature f : features) {
+            writeString(out, f.getName());
+            writeString(out, f.getVersion());
+            writeString(out, f.getDescription());
+            writeString(out, f.getDetails());
+            writeString(out, f.getResolver());
+            out.writeInt(f.getDependencies().size());
+            for (Feature dependency : f.getDependencies()) {
+                writeString(out, dependency.getName());
+                writeString(out, dependency.getVersion());
+            }
+            Map<String, String> configData = repo.getConfigData(f);
+            out.writeInt(configData.size());
+            for (Map.Entry<String, String> config : configData.entrySet()) {
+                writeString(out, config.getKey());
+                writeString(out, config.getValue());
+            }
+            out.writeInt(f.getConfigurationFiles().size());
+            for (ConfigFileInfo configFile : f.getConfigurationFiles()) {
+                writeString(out, configFile.getLocation());
+                writeString(out, configFile.getFinalname());
+            }
+            out.writeInt(f.getBundles().size());
+            for (BundleInfo bundle : f.getBundles()) {
+                writeString(out, bundle.getLocation());
+                out.writeInt(bundle.getStartLevel());
+                out.writeBoolean(bundle.isStart());
+                out.writeBoolean(bundle.isDependency());
+            }
+        }
+    }
+
+    private void read(DataInputStream in, RepositoryImpl repo, long lastModified, String checksum) throws IOException, URISyntaxException {
+        String name = readString(in);
+        int nb = in.readInt();
+        List<URI> repositories = new ArrayList<URI>(nb);
+        for (int i = 0; i < nb; i++) {
+            repositories.add(new URI(readString(in)));
+        }
+        repo.restore(name, repositories, lastModified, checksum);
+        nb = in.readInt();
+        for (int i = 0; i < nb; i++) {
+            FeatureImpl f = new FeatureImpl(readString(in), readString(in));
+            f.setDescription(readString(in));
+            f.setDetails(readString(in));
+            f.setResolver(readString(in));
+            int nbDependencies = in.readInt();
+            for (int j = 0; j < nbDependencies; j++) {
+                f.addDependency(new FeatureImpl(readString(in), readString(in)));
+            }
+            int nbConfigs = in.readInt();
+            for (int j = 0; j < nbConfigs; j++) {
+                repo.addConfig(f, readString(in), readString(in));
+            }
+            int nbConfigFiles = in.readInt();
+            for (int j = 0; j < nbConfigFiles; j++) {
+                f.addConfigurationFile(new ConfigFileInfoImpl(readString(in), readString(in)));
+            }
+            int nbBundles = in.readInt();
+            for (int j = 0; j < nbBundles; j++) {
+                f.addBundle(new BundleInfoImpl(readString(in), in.readInt(), in.readBoolean(), in.readBoolean()));
+            }
+            repo.addFeature(f);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Compute the hexadecimal SHA-1 checksum of the given data.
+     */
+    static String checksum(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0x0f, 16));
+                sb.append(Character.forDigit(b & 0x0f, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+}
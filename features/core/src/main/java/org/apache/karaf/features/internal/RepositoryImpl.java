@@ -21,16 +21,15 @@ import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLConnection;
@@ -40,16 +39,22 @@ import java.util.regex.Pattern;
 
 /**
  * The repository implementation.
+ * The descriptor is read in a single pass with a StAX reader, building the features
+ * as their elements are encountered rather than loading the whole document in memory.
  */
 public class RepositoryImpl implements Repository {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryImpl.class);
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
     private int unnamedRepoId = 0;
     private String name;
     private URI uri;
     private List<Feature> features;
     private List<URI> repositories;
     private boolean valid;
+    private long lastModified;
+    private String checksum;
+    private Map<String, Map<String, String>> configData;
 
     public RepositoryImpl(URI uri) {
         this.uri = uri;
@@ -82,141 +87,315 @@ public class RepositoryImpl implements Repository {
             valid = true;
             repositories = new ArrayList<URI>();
             features = new ArrayList<Feature>();
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            configData = new HashMap<String, Map<String, String>>();
             URLConnection conn = uri.toURL().openConnection();
             conn.setDefaultUseCaches(false);
-            Document doc = factory.newDocumentBuilder().parse(conn.getInputStream());
-            String temp = doc.getDocumentElement().getAttribute("name");
-            if ("".equals(temp)) {
-                name = "repo-" + String.valueOf(unnamedRepoId++);
+            lastModified = conn.getLastModified();
+            byte[] content = readFully(conn.getInputStream());
+            checksum = RepositoryCache.checksum(content);
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(content));
+            try {
+                parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            valid = false;
+            throw (IOException) new IOException().initCause(e);
+        } catch (IllegalArgumentException e) {
+            valid = false;
+            throw (IOException) new IOException(e.getMessage() + " : " + uri).initCause(e);
+        } catch (Exception e) {
+            valid = false;
+            throw (IOException) new IOException(e.getMessage() + " : " + uri).initCause(e);
+        }
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException, IOException {
+        while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            // skip the prolog
+        }
+        String temp = getAttribute(reader, "name");
+        if ("".equals(temp)) {
+            name = "repo-" + String.valueOf(unnamedRepoId++);
+        } else {
+            name = temp;
+        }
+        if (uri.toString().startsWith("bundle")) {
+            name += "*";
+        }
+
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String nodeName = getNodeName(reader);
+            if ("repository".equals(nodeName)) {
+                try {
+                    URI newrepo = new URI(getTextContent(reader).trim());
+                    repositories.add(newrepo);
+                } catch (URISyntaxException ex) {
+                    LOGGER.error("Could not load feature repository: " + ex.getMessage() + " in feature repository " + uri);
+                }
+            } else if ("feature".equals(nodeName)) {
+                features.add(parseFeature(reader));
             } else {
-                name = temp;
+                getTextContent(reader);
             }
-            if (uri.toString().startsWith("bundle")) {
-                name += "*";
+        }
+        // make sure the rest of the document is well formed
+        while (reader.hasNext()) {
+            reader.next();
+        }
+    }
+
+    private FeatureImpl parseFeature(XMLStreamReader reader) throws XMLStreamException, IOException {
+        String name = getAttribute(reader, "name");
+        String version = getAttribute(reader, "version");
+        FeatureImpl f;
+        if (version.length() > 0) {
+            f = new FeatureImpl(name, version);
+        } else {
+            f = new FeatureImpl(name);
+        }
+
+        String resolver = getAttribute(reader, "resolver");
+        if (resolver.length() > 0) {
+            f.setResolver(resolver);
+        }
+
+        String description = getAttribute(reader, "description");
+        if (description.length() > 0) {
+            f.setDescription(description);
+        }
+
+        // Collect the details, feature, config, configfile and bundle elements found at
+        // any depth below the feature, in document order.  The text of an element includes
+        // the text of its own children, so it is appended to all the enclosing elements.
+        List<Child> children = new ArrayList<Child>();
+        List<Child> open = new ArrayList<Child>();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String nodeName = getNodeName(reader);
+                if ("details".equals(nodeName) || "feature".equals(nodeName) || "config".equals(nodeName)
+                        || "configfile".equals(nodeName) || "bundle".equals(nodeName)) {
+                    Child child = new Child(reader, nodeName, depth);
+                    children.add(child);
+                    open.add(child);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (!open.isEmpty() && open.get(open.size() - 1).depth == depth) {
+                    open.remove(open.size() - 1);
+                }
+                depth--;
+            } else if (isText(event)) {
+                for (Child child : open) {
+                    child.text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
             }
+        }
+
+        StringBuilder detailsBuffer = new StringBuilder();
+        for (Child child : children) {
+            String text = child.text.toString();
+            if ("details".equals(child.name)) {
+                detailsBuffer.append(text.trim()).append("\n");
+            } else if ("feature".equals(child.name)) {
+                String dependencyFeatureVersion = child.getAttribute("version");
+                if (dependencyFeatureVersion.length() > 0) {
+                    f.addDependency(new FeatureImpl(text, dependencyFeatureVersion));
+                } else {
+                    f.addDependency(new FeatureImpl(text));
+                }
+            } else if ("config".equals(child.name)) {
+                addConfig(f, child.getAttribute("name"), text);
+            } else if ("configfile".equals(child.name)) {
+                f.addConfigurationFile(new ConfigFileInfoImpl(text.trim(), child.getAttribute("finalname")));
+            } else {
+                String bStartLevel = child.getAttribute("start-level");
+                String bStart = child.getAttribute("start");
+                String bDependency = child.getAttribute("dependency");
+                boolean bs = true;
+                boolean bd = false;
+                int bsl = 0;
 
-            NodeList nodes = doc.getDocumentElement().getChildNodes();
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Node node = nodes.item(i);
-                if (!(node instanceof Element)) {
-                    continue;
+                // Check the value of the "start" attribute
+                if (bStart.length() > 0) {
+                    bs = Boolean.parseBoolean(bStart);
+                }
+                // Check the value of the "dependency" attribute
+                if (bDependency.length() > 0) {
+                    bd = Boolean.parseBoolean(bDependency);
                 }
-                if ("repository".equals(node.getNodeName())) {
-                    Element e = (Element) nodes.item(i);
+                // Check start level
+                if (bStartLevel.length() > 0) {
                     try {
-                        URI newrepo = new URI(e.getTextContent().trim());
-                        repositories.add(newrepo);
-                    } catch (URISyntaxException ex) {
-                        LOGGER.error("Could not load feature repository: " + ex.getMessage() + " in feature repository " + uri);
-                    }
-                } else if ("feature".equals(node.getNodeName())) {
-                    Element e = (Element) nodes.item(i);
-                    String name = e.getAttribute("name");
-                    String version = e.getAttribute("version");
-                    FeatureImpl f;
-                    if (version != null && version.length() > 0) {
-                        f = new FeatureImpl(name, version);
-                    } else {
-                        f = new FeatureImpl(name);
+                        bsl = Integer.parseInt(bStartLevel);
+                    } catch (Exception ex) {
+                        LOGGER.error("The start-level is not an int value for the bundle : " + text);
                     }
+                }
+                f.addBundle(new BundleInfoImpl(text.trim(), bsl, bs, bd));
+            }
+        }
+        String details = detailsBuffer.toString();
+        if (details.length() > 0) {
+            f.setDetails(details);
+        }
+        return f;
+    }
 
-                    String resolver = e.getAttribute("resolver");
-                    if (resolver != null && resolver.length() > 0) {
-                        f.setResolver(resolver);
-                    }
+    /**
+     * Read the text content of the current element, including the text of its
+     * children, and move the reader to the end of the element.
+     */
+    private static String getTextContent(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (isText(event)) {
+                sb.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        return sb.toString();
+    }
 
-                    String description = e.getAttribute("description");
-                    if (description != null && description.length() > 0) {
-                        f.setDescription(description);
-                    }
+    private static boolean isText(int event) {
+        return event == XMLStreamConstants.CHARACTERS
+                || event == XMLStreamConstants.CDATA
+                || event == XMLStreamConstants.SPACE;
+    }
 
-                    NodeList detailsNodes = e.getElementsByTagName("details");
-                    StringBuffer detailsBuffer = new StringBuffer();
-                    for (int j = 0; j < detailsNodes.getLength(); j++) {
-                        Element b = (Element) detailsNodes.item(j);
-                        String detail = b.getTextContent().trim();
-                        detailsBuffer.append(detail).append("\n");
-                    }
-                    String details = detailsBuffer.toString();
-                    if (details != null && details.length() > 0)
-                        f.setDetails(details);
-
-                    NodeList featureNodes = e.getElementsByTagName("feature");
-                    for (int j = 0; j < featureNodes.getLength(); j++) {
-                        Element b = (Element) featureNodes.item(j);
-                        String dependencyFeatureVersion = b.getAttribute("version");
-                        if (dependencyFeatureVersion != null && dependencyFeatureVersion.length() > 0) {
-                            f.addDependency(new FeatureImpl(b.getTextContent(), dependencyFeatureVersion));
-                        } else {
-                            f.addDependency(new FeatureImpl(b.getTextContent()));
-                        }
-                    }
-                    NodeList configNodes = e.getElementsByTagName("config");
-                    for (int j = 0; j < configNodes.getLength(); j++) {
-                        Element c = (Element) configNodes.item(j);
-                        String cfgName = c.getAttribute("name");
-                        String data = c.getTextContent();
-                        Properties properties = new Properties();
-                        properties.load(new ByteArrayInputStream(data.getBytes()));
-                        interpolation(properties);
-                        Map<String, String> hashtable = new Hashtable<String, String>();
-                        for (Object key : properties.keySet()) {
-                            String n = key.toString();
-                            hashtable.put(n, properties.getProperty(n));
-                        }
-                        f.addConfig(cfgName, hashtable);
-                    }
-                    NodeList configurationFiles = e.getElementsByTagName("configfile");
-                    for (int j = 0; j < configurationFiles.getLength(); j++) {
-                    	Element cf = (Element) configurationFiles.item(j);
-                    	String finalname = cf.getAttribute("finalname");
-                    	String location = cf.getTextContent().trim();
-                    	f.addConfigurationFile(new ConfigFileInfoImpl(location, finalname));
-                    }
-                    NodeList bundleNodes = e.getElementsByTagName("bundle");
-                    for (int j = 0; j < bundleNodes.getLength(); j++) {
-                        Element b = (Element) bundleNodes.item(j);
-                        String bStartLevel = b.getAttribute("start-level");
-                        String bStart = b.getAttribute("start");
-                        String bDependency = b.getAttribute("dependency");
-                        boolean bs = true;
-                        boolean bd = false;
-                        int bsl = 0;
-
-                        // Check the value of the "start" attribute
-                        if (bStart != null && bStart.length() > 0) {
-                            bs = Boolean.parseBoolean(bStart);
-                        }
-                        // Check the value of the "dependency" attribute
-                        if (bDependency != null && bDependency.length() > 0) {
-                            bd = Boolean.parseBoolean(bDependency);
-                        }
-                        // Check start level
-                        if (bStartLevel != null && bStartLevel.length() > 0) {
-                            try {
-                                bsl = Integer.parseInt(bStartLevel);
-                            } catch (Exception ex) {
-                                LOGGER.error("The start-level is not an int value for the bundle : " + b.getTextContent());
-                            }
-                        }
-                        f.addBundle(new BundleInfoImpl(b.getTextContent().trim(), bsl, bs, bd));
-                    }
-                    features.add(f);
-                }
+    /**
+     * Qualified name of the current element, as elements are matched without
+     * taking their namespace into account.
+     */
+    private static String getNodeName(XMLStreamReader reader) {
+        return getQualifiedName(reader.getPrefix(), reader.getLocalName());
+    }
+
+    private static String getQualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * Value of the given attribute of the current element, or an empty string if not set.
+     */
+    private static String getAttribute(XMLStreamReader reader, String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (name.equals(getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)))) {
+                return reader.getAttributeValue(i);
             }
-        } catch (SAXException e) {
-            valid = false;
-            throw (IOException) new IOException().initCause(e);
-        } catch (ParserConfigurationException e) {
-            valid = false;
-            throw (IOException) new IOException().initCause(e);
-        } catch (IllegalArgumentException e) {
-            valid = false;
-            throw (IOException) new IOException(e.getMessage() + " : " + uri).initCause(e);
-        } catch (Exception e) {
-            valid = false;
-            throw (IOException) new IOException(e.getMessage() + " : " + uri).initCause(e);
+        }
+        return "";
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
+    /**
+     * Element of interest nested in a feature, along with its attributes and text content.
+     */
+    private static class Child {
+        final String name;
+        final int depth;
+        final Map<String, String> attributes = new HashMap<String, String>();
+        final StringBuilder text = new StringBuilder();
+
+        Child(XMLStreamReader reader, String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.put(getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                               reader.getAttributeValue(i));
+            }
+        }
+
+        String getAttribute(String name) {
+            String value = attributes.get(name);
+            return value != null ? value : "";
+        }
+    }
+
+    /**
+     * Add the configuration defined by the given properties text to the feature.
+     * The raw text is retained so that the configuration can be interpolated again
+     * when the repository is restored from the {@link RepositoryCache}.
+     */
+    protected void addConfig(FeatureImpl f, String cfgName, String data) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(data.getBytes()));
+        interpolation(properties);
+        Map<String, String> hashtable = new Hashtable<String, String>();
+        for (Object key : properties.keySet()) {
+            String n = key.toString();
+            hashtable.put(n, properties.getProperty(n));
+        }
+        f.addConfig(cfgName, hashtable);
+        Map<String, String> featureData = configData.get(f.getId());
+        if (featureData == null) {
+            featureData = new HashMap<String, String>();
+            configData.put(f.getId(), featureData);
+        }
+        featureData.put(cfgName, data);
+    }
+
+    /**
+     * Raw text of the configurations of the given feature, keyed by configuration name.
+     */
+    Map<String, String> getConfigData(Feature f) {
+        Map<String, String> data = configData != null ? configData.get(f.getId()) : null;
+        return data != null ? data : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * Initialize the content of this repository from the {@link RepositoryCache}.
+     */
+    void restore(String name, List<URI> repositories, long lastModified, String checksum) {
+        this.valid = true;
+        this.name = name;
+        this.repositories = repositories;
+        this.features = new ArrayList<Feature>();
+        this.configData = new HashMap<String, Map<String, String>>();
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+    }
+
+    void addFeature(Feature feature) {
+        features.add(feature);
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    String getChecksum() {
+        return checksum;
+    }
+
+    static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, bytesRead);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
         }
     }
 
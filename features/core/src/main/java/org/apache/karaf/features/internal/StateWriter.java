@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the state of the features service to a properties file.
+ * Writes are delayed so that a burst of changes results in a single write of the
+ * latest state, and each write goes to a temporary file which is then renamed, so
+ * that the previous state is kept intact if the process dies while writing.
+ * Writes never run concurrently, whether they are delayed or not.  Once the writer is
+ * closed, the states still written are written synchronously.
+ */
+public class StateWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateWriter.class);
+    private static final boolean WINDOWS = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+    private final long delay;
+    private ScheduledExecutorService executor;
+    private File pendingFile;
+    private Properties pendingProps;
+    private long writes;
+    private boolean closed;
+
+    /**
+     * @param delay the delay in milliseconds before writing a new state, 0 to write synchronously
+     */
+    public StateWriter(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Schedule the write of the given state, replacing any state not written yet.
+     */
+    public void write(File file, Properties props) {
+        synchronized (this) {
+            if (delay <= 0 || closed) {
+                // concurrent writes would share the temporary file
+                doWrite(file, props);
+                return;
+            }
+            boolean scheduled = pendingProps != null;
+            pendingFile = file;
+            pendingProps = props;
+            if (!scheduled) {
+                if (executor == null) {
+                    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "FeaturesService-state");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write the pending state, if any.
+     */
+    public void flush() {
+        File file;
+        Properties props;
+        synchronized (this) {
+            file = pendingFile;
+            props = pendingProps;
+            pendingFile = null;
+            pendingProps = null;
+            if (props != null) {
+                // keep the state written in order if a scheduled flush races with an explicit one
+                doWrite(file, props);
+            }
+        }
+    }
+
+    /**
+     * Write the pending state and stop the writer thread.
+     */
+    public synchronized void close() {
+        closed = true;
+        flush();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Number of times the state has been written.
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    private void doWrite(File file, Properties props) {
+        try {
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                props.store(os, "FeaturesService State");
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // windows can not rename over an existing file, elsewhere the rename replaces
+                // the file atomically and deleting it first would leave no state at all
+                if (!WINDOWS || !file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+            synchronized (this) {
+                writes++;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error persisting FeaturesService state", e);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.Arrays;
+
+import org.apache.karaf.features.Timing;
+
+/**
+ * Timing statistics, keeping the last samples in a ring buffer to compute percentiles.
+ * The buffer grows with the number of samples, so that rarely used timings stay small.
+ */
+public class TimingImpl implements Timing {
+
+    static final int SAMPLES = 1024;
+    static final int INITIAL_SAMPLES = 8;
+
+    private final String name;
+    private long[] samples = new long[INITIAL_SAMPLES];
+    private long count;
+    private long total;
+    private long min;
+    private long max;
+
+    public TimingImpl(String name) {
+        this.name = name;
+    }
+
+    public synchronized void record(long time) {
+        if (count == samples.length && count < SAMPLES) {
+            long[] grown = new long[Math.min(samples.length * 2, SAMPLES)];
+            System.arraycopy(samples, 0, grown, 0, samples.length);
+            samples = grown;
+        }
+        samples[(int) (count % SAMPLES)] = time;
+        if (count == 0 || time < min) {
+            min = time;
+        }
+        if (time > max) {
+            max = time;
+        }
+        count++;
+        total += time;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    synchronized int getCapacity() {
+        return samples.length;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotalTime() {
+        return total;
+    }
+
+    public synchronized long getMinTime() {
+        return min;
+    }
+
+    public synchronized long getMaxTime() {
+        return max;
+    }
+
+    public synchronized long getMeanTime() {
+        return count > 0 ? total / count : 0;
+    }
+
+    public long getPercentile(int percent) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = new long[(int) Math.min(count, SAMPLES)];
+            System.arraycopy(samples, 0, sorted, 0, sorted.length);
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        // nearest rank
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    public String toString() {
+        return name + "[count=" + getCount() + ", total=" + getTotalTime() + "ms]";
+    }
+
+}
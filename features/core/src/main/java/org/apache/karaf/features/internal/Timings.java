@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.karaf.features.Timing;
+
+/**
+ * A set of timing statistics, keyed by name.
+ */
+public class Timings {
+
+    private final Map<String, TimingImpl> timings = new ConcurrentHashMap<String, TimingImpl>();
+
+    public void record(String name, long time) {
+        TimingImpl timing = timings.get(name);
+        if (timing == null) {
+            synchronized (this) {
+                timing = timings.get(name);
+                if (timing == null) {
+                    timing = new TimingImpl(name);
+                    timings.put(name, timing);
+                }
+            }
+        }
+        timing.record(time);
+    }
+
+    public Timing get(String name) {
+        return timings.get(name);
+    }
+
+    public Timing[] toArray() {
+        return timings.values().toArray(new Timing[0]);
+    }
+
+}
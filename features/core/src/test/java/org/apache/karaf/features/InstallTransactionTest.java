@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+
+import junit.framework.TestCase;
+
+import org.apache.karaf.features.internal.FeatureImpl;
+
+public class InstallTransactionTest extends TestCase {
+
+    public void testCommitInstallsAllFeaturesAtOnce() throws Exception {
+        Feature f1 = new FeatureImpl("f1", "1.0");
+        Feature f2 = new FeatureImpl("f2", "1.0");
+        EnumSet<FeaturesService.Option> options = EnumSet.of(FeaturesService.Option.ContinueBatchOnFailure);
+        FeaturesService featuresService = createMock(FeaturesService.class);
+        expect(featuresService.getFeature("f2", "1.0")).andReturn(f2);
+        featuresService.installFeatures(new LinkedHashSet<Feature>(Arrays.asList(f1, f2)), options);
+        replay(featuresService);
+
+        InstallTransaction transaction = new InstallTransaction(featuresService, options);
+        transaction.add(f1);
+        transaction.add("f2", "1.0");
+        transaction.add(f1);
+        assertEquals(2, transaction.getFeatures().size());
+        transaction.commit();
+        verify(featuresService);
+
+        try {
+            transaction.commit();
+            fail("Transaction should not be committed twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testUnknownFeature() throws Exception {
+        FeaturesService featuresService = createMock(FeaturesService.class);
+        expect(featuresService.getFeature("f1", "1.0")).andReturn(null);
+        replay(featuresService);
+
+        InstallTransaction transaction = new InstallTransaction(featuresService, EnumSet.noneOf(FeaturesService.Option.class));
+        try {
+            transaction.add("f1", "1.0");
+            fail("Unknown feature should not be added");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("f1"));
+        }
+        verify(featuresService);
+    }
+
+}
@@ -66,6 +66,40 @@ public class RepositoryTest extends TestCase {
         assertEquals("cfloc", features[2].getConfigurationFiles().get(0).getLocation());
     }
     
+    public void testLoadFeatureContent() throws Exception {
+        System.setProperty("repository.test", "interpolated");
+        try {
+            RepositoryImpl r = new RepositoryImpl(getClass().getResource("repo2.xml").toURI());
+            assertEquals(0, r.getRepositories().length);
+            assertEquals("repo2", r.getName());
+            Feature[] features = r.getFeatures();
+            assertEquals(1, features.length);
+            Feature f1 = features[0];
+            assertEquals("f1", f1.getName());
+            assertEquals("1.0", f1.getVersion());
+            assertEquals("Feature & details", f1.getDescription());
+            assertEquals("First line\n<second>\n", f1.getDetails());
+            assertEquals("(obr)", f1.getResolver());
+            assertEquals(1, f1.getDependencies().size());
+            assertEquals("f2", f1.getDependencies().get(0).getName());
+            assertEquals("[1,2)", f1.getDependencies().get(0).getVersion());
+            assertEquals("interpolated", f1.getConfigurations().get("c1").get("k"));
+            assertEquals(1, f1.getConfigurationFiles().size());
+            assertEquals("cfloc", f1.getConfigurationFiles().get(0).getLocation());
+            assertEquals("etc/cf1.cfg", f1.getConfigurationFiles().get(0).getFinalname());
+            assertEquals(2, f1.getBundles().size());
+            assertEquals("b1", f1.getBundles().get(0).getLocation());
+            assertEquals(30, f1.getBundles().get(0).getStartLevel());
+            assertFalse(f1.getBundles().get(0).isStart());
+            assertFalse(f1.getBundles().get(0).isDependency());
+            assertEquals("b2", f1.getBundles().get(1).getLocation());
+            assertTrue(f1.getBundles().get(1).isStart());
+            assertTrue(f1.getBundles().get(1).isDependency());
+        } finally {
+            System.clearProperty("repository.test");
+        }
+    }
+
     public void testShowWrongUriInException() throws Exception {
         String uri = "src/test/resources/org/apache/karaf/shell/features/repo1.xml";
         RepositoryImpl r = new RepositoryImpl(new URI(uri));
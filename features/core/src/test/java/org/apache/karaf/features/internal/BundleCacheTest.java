@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+public class BundleCacheTest extends TestCase {
+
+    File dir;
+
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("cache", null, null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    protected void tearDown() {
+        delete(dir);
+    }
+
+    public void testContentAddressed() throws Exception {
+        BundleCache cache = new BundleCache(dir, 1024);
+        File f1 = cache.put("mvn:org.apache.karaf/test/1.0", stream("content"));
+        File f2 = cache.put(stream("content"));
+        assertEquals(f1, f2);
+        assertEquals("040f06fd774092478d450774f5ba30c5da78acc8", f1.getName());
+        assertEquals(7, cache.getSize());
+
+        assertEquals(f1, cache.get("mvn:org.apache.karaf/test/1.0"));
+        assertNull(cache.get("mvn:org.apache.karaf/test/2.0"));
+        // snapshots may change and are not indexed
+        cache.put("mvn:org.apache.karaf/test/1.1-SNAPSHOT", stream("snapshot"));
+        assertNull(cache.get("mvn:org.apache.karaf/test/1.1-SNAPSHOT"));
+    }
+
+    public void testOnlyReleasedVersionsAreCacheable() throws Exception {
+        assertTrue(BundleCache.isCacheable("mvn:org.apache.karaf/test/1.0"));
+        assertTrue(BundleCache.isCacheable("mvn:org.apache.karaf/test/1.0/xml/features"));
+        assertTrue(BundleCache.isCacheable("mvn:http://repo1.maven.org/maven2!org.apache.karaf/test/1.0"));
+        assertFalse(BundleCache.isCacheable("file:/tmp/test.jar"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/1.1-SNAPSHOT"));
+        // resolved to the latest version
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test//xml/features"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/LATEST"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/RELEASE"));
+        assertFalse(BundleCache.isCacheable("mvn:http://repo1.maven.org/maven2!org.apache.karaf/test"));
+        // version ranges
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/[1,2)"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/(1.0,2.0]"));
+        assertFalse(BundleCache.isCacheable("mvn:org.apache.karaf/test/[1.0]"));
+    }
+
+    public void testUnversionedLocationIsNotIndexed() throws Exception {
+        BundleCache cache = new BundleCache(dir, 1024);
+        File f = cache.put("mvn:org.apache.karaf/test", stream("latest"));
+        assertTrue(f.isFile());
+        assertNull(cache.get("mvn:org.apache.karaf/test"));
+        cache.put("mvn:org.apache.karaf/test/[1,2)", stream("range"));
+        assertNull(cache.get("mvn:org.apache.karaf/test/[1,2)"));
+    }
+
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        BundleCache cache = new BundleCache(dir, 20);
+        File f1 = cache.put("mvn:org.apache.karaf/test1/1.0", stream("content1"));
+        f1.setLastModified(System.currentTimeMillis() - 20000);
+        File f2 = cache.put("mvn:org.apache.karaf/test2/1.0", stream("content2"));
+        f2.setLastModified(System.currentTimeMillis() - 10000);
+        // using f1 makes f2 the least recently used
+        assertEquals(f1, cache.get("mvn:org.apache.karaf/test1/1.0"));
+        File f3 = cache.put(stream("content3"));
+
+        assertTrue(f1.isFile());
+        assertFalse(f2.isFile());
+        assertTrue(f3.isFile());
+        assertEquals(16, cache.getSize());
+        assertNull(cache.get("mvn:org.apache.karaf/test2/1.0"));
+    }
+
+    public void testAddedArtifactIsKept() throws Exception {
+        BundleCache cache = new BundleCache(dir, 10);
+        File f1 = cache.put("mvn:org.apache.karaf/test1/1.0", stream("content1"));
+        // used by another instance after the artifact below has been added
+        f1.setLastModified(System.currentTimeMillis() + 60000);
+        File f2 = cache.put(stream("content2"));
+
+        assertFalse(f1.isFile());
+        assertTrue(f2.isFile());
+        assertEquals(8, cache.getSize());
+    }
+
+    public void testCheckoutSurvivesEviction() throws Exception {
+        BundleCache cache = new BundleCache(dir, 1024);
+        File stored = cache.store("mvn:org.apache.karaf/test/1.0", stream("content"));
+        File checkout = cache.checkout("mvn:org.apache.karaf/test/1.0");
+        assertFalse(stored.equals(checkout));
+        assertTrue(cache.get("mvn:org.apache.karaf/test/1.0").delete());
+        assertEquals("content", read(stored));
+        assertEquals("content", read(checkout));
+        assertNull(cache.checkout("mvn:org.apache.karaf/test/1.0"));
+    }
+
+    public void testStaleTemporaryFilesAreRemoved() throws Exception {
+        BundleCache cache = new BundleCache(dir, 1024);
+        File stale = new File(dir, "tmp/artifact1.tmp");
+        File recent = new File(dir, "tmp/artifact2.tmp");
+        stale.getParentFile().mkdirs();
+        assertTrue(stale.createNewFile());
+        assertTrue(recent.createNewFile());
+        stale.setLastModified(System.currentTimeMillis() - 2L * 24L * 60L * 60L * 1000L);
+        cache.evict();
+        assertFalse(stale.exists());
+        assertTrue(recent.exists());
+    }
+
+    public void testLink() throws Exception {
+        BundleCache cache = new BundleCache(dir, 1024);
+        File object = cache.put(stream("content"));
+        File target = new File(dir, "repo/org/test/test.jar");
+        cache.link(object, target);
+        assertTrue(target.isFile());
+        assertEquals("content", read(target));
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes());
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = is.read()) != -1) {
+                sb.append((char) c);
+            }
+            return sb.toString();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
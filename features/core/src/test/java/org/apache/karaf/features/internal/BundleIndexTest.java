@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * Test cases for {@link BundleIndex}
+ */
+public class BundleIndexTest extends TestCase {
+
+    public void testIndexUpdatedFromBundleEvents() {
+        Bundle bundle1 = createBundle(1L, "bundle1", "1.0.0");
+        Bundle bundle2 = createBundle(2L, "bundle2", "2.0.0");
+        BundleContext bundleContext = EasyMock.createMock(BundleContext.class);
+        bundleContext.addBundleListener(EasyMock.<BundleListener>anyObject());
+        // the bundles are only scanned once
+        expect(bundleContext.getBundles()).andReturn(new Bundle[] { bundle1 });
+        replay(bundleContext, bundle1, bundle2);
+
+        BundleIndex index = new BundleIndex(bundleContext);
+        index.open();
+        assertSame(bundle1, index.getBundle("bundle1", new Version("1.0.0")));
+        assertNull(index.getBundle("bundle1", new Version("1.0.1")));
+        assertNull(index.getBundle("bundle2", new Version("2.0.0")));
+
+        index.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, bundle2));
+        assertSame(bundle2, index.getBundle("bundle2", new Version("2.0.0")));
+
+        index.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle1));
+        assertNull(index.getBundle("bundle1", new Version("1.0.0")));
+        assertSame(bundle2, index.getBundle("bundle2", new Version("2.0.0")));
+        verify(bundleContext);
+    }
+
+    public void testLocationIndexUpdatedFromBundleEvents() {
+        Bundle bundle1 = createBundle(1L, "bundle1", "1.0.0");
+        Bundle bundle2 = createBundle(2L, "bundle2", "2.0.0");
+        BundleContext bundleContext = EasyMock.createMock(BundleContext.class);
+        bundleContext.addBundleListener(EasyMock.<BundleListener>anyObject());
+        expect(bundleContext.getBundles()).andReturn(new Bundle[] { bundle1 });
+        replay(bundleContext, bundle1, bundle2);
+
+        BundleIndex index = new BundleIndex(bundleContext);
+        index.open();
+        assertSame(bundle1, index.getBundle("mvn:test/bundle1/1.0.0"));
+        assertNull(index.getBundle("mvn:test/bundle2/2.0.0"));
+
+        index.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, bundle2));
+        assertSame(bundle2, index.getBundle("mvn:test/bundle2/2.0.0"));
+
+        index.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle1));
+        assertNull(index.getBundle("mvn:test/bundle1/1.0.0"));
+        verify(bundleContext);
+    }
+
+    public void testScanWhenNotOpened() {
+        Bundle bundle1 = createBundle(1L, "bundle1", "1.0.0");
+        BundleContext bundleContext = EasyMock.createMock(BundleContext.class);
+        expect(bundleContext.getBundles()).andReturn(new Bundle[] { bundle1 }).times(2);
+        replay(bundleContext, bundle1);
+
+        BundleIndex index = new BundleIndex(bundleContext);
+        assertSame(bundle1, index.getBundle("bundle1", new Version("1.0.0")));
+        assertNull(index.getBundle("bundle1", new Version("2.0.0")));
+        verify(bundleContext);
+    }
+
+    private Bundle createBundle(long id, String symbolicName, String version) {
+        Bundle bundle = EasyMock.createMock(Bundle.class);
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        headers.put(Constants.BUNDLE_VERSION, version);
+        expect(bundle.getBundleId()).andReturn(id).anyTimes();
+        expect(bundle.getSymbolicName()).andReturn(symbolicName).anyTimes();
+        expect(bundle.getLocation()).andReturn("mvn:test/" + symbolicName + "/" + version).anyTimes();
+        expect(bundle.getHeaders()).andReturn(headers).anyTimes();
+        return bundle;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * Test cases for {@link BundleManifests}
+ */
+public class BundleManifestsTest extends TestCase {
+
+    public void testParseHeaders() {
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put(Constants.IMPORT_PACKAGE, "p1;resolution:=optional;version=\"[1,2)\",p2,p3;resolution:=optional");
+        headers.put(Constants.EXPORT_PACKAGE, "p4;version=1.1,p5");
+        headers.put(Constants.FRAGMENT_HOST, "host;bundle-version=\"[1,2)\"");
+        headers.put(Constants.REQUIRE_BUNDLE, "b1;bundle-version=1.0,b2");
+        Bundle bundle = EasyMock.createMock(Bundle.class);
+        expect(bundle.getHeaders()).andReturn(headers);
+        replay(bundle);
+
+        BundleManifests.Manifest manifest = new BundleManifests(null).getManifest(bundle);
+        assertEquals(2, manifest.getOptionalImports().size());
+        assertEquals("p1", manifest.getOptionalImports().get(0).getName());
+        assertTrue(manifest.getOptionalImports().get(0).getRange().contains(new Version("1.5")));
+        assertFalse(manifest.getOptionalImports().get(0).getRange().contains(new Version("2.0")));
+        assertEquals("p3", manifest.getOptionalImports().get(1).getName());
+        assertEquals(Arrays.asList("p1", "p2", "p3"), manifest.getImports());
+        assertEquals(Arrays.asList("b1", "b2"), manifest.getRequiredBundles());
+        assertTrue(manifest.getOptionalImports().get(1).getRange().contains(Version.emptyVersion));
+        assertEquals(2, manifest.getExports().size());
+        assertEquals(new Version("1.1"), manifest.getExports().get(0).getVersion());
+        assertEquals(Version.emptyVersion, manifest.getExports().get(1).getVersion());
+        assertEquals("host", manifest.getFragmentHost());
+        assertTrue(manifest.getFragmentHostVersion().contains(new Version("1.0")));
+        verify(bundle);
+    }
+
+    public void testManifestsKeptUntilBundleUpdated() {
+        Bundle bundle = EasyMock.createMock(Bundle.class);
+        // the headers are parsed once per revision
+        expect(bundle.getHeaders()).andReturn(new Hashtable()).times(2);
+        BundleContext bundleContext = EasyMock.createMock(BundleContext.class);
+        bundleContext.addBundleListener(EasyMock.<BundleListener>anyObject());
+        replay(bundleContext, bundle);
+
+        BundleManifests manifests = new BundleManifests(bundleContext);
+        manifests.open();
+        BundleManifests.Manifest manifest = manifests.getManifest(bundle);
+        assertNull(manifest.getFragmentHost());
+        assertTrue(manifest.getOptionalImports().isEmpty());
+        assertSame(manifest, manifests.getManifest(bundle));
+
+        manifests.bundleChanged(new BundleEvent(BundleEvent.UPDATED, bundle));
+        assertNotSame(manifest, manifests.getManifest(bundle));
+        verify(bundleContext, bundle);
+    }
+
+}
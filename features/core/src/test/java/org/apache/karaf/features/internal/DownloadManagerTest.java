@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link DownloadManager}
+ */
+public class DownloadManagerTest extends TestCase {
+
+    File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("bundle", ".jar", null);
+        FileWriter writer = new FileWriter(file);
+        writer.write("content");
+        writer.close();
+    }
+
+    public void testLocationNotPrefetched() throws Exception {
+        DownloadManager downloads = new DownloadManager(null);
+        downloads.download(file.toURI().toString());
+        assertEquals("content", read(downloads.open(file.toURI().toString())));
+    }
+
+    public void testPrefetch() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicInteger count = new AtomicInteger();
+            DownloadManager downloads = new DownloadManager(executor) {
+                protected File doDownload(String location) throws IOException {
+                    count.incrementAndGet();
+                    return file;
+                }
+            };
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            assertEquals("content", read(downloads.open("mvn:org.apache.karaf/test/1.0")));
+            assertEquals(1, count.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testDownloadFailureIsReportedOnOpen() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DownloadManager downloads = new DownloadManager(executor) {
+                protected File doDownload(String location) throws IOException {
+                    throw new IOException("Unable to resolve " + location);
+                }
+            };
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            try {
+                downloads.open("mvn:org.apache.karaf/test/1.0");
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                assertEquals("Unable to resolve mvn:org.apache.karaf/test/1.0", e.getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testRelease() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final File downloaded = File.createTempFile("download", null, null);
+            final AtomicInteger count = new AtomicInteger();
+            DownloadManager downloads = new DownloadManager(executor) {
+                protected File doDownload(String location) throws IOException {
+                    count.incrementAndGet();
+                    return downloaded;
+                }
+            };
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            downloads.open("mvn:org.apache.karaf/test/1.0").close();
+            downloads.release();
+            assertFalse(downloaded.exists());
+            // no download is scheduled once released
+            downloads.download("mvn:org.apache.karaf/test/2.0");
+            assertEquals(1, count.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testLocalFile() throws Exception {
+        DownloadManager downloads = new DownloadManager(null);
+        assertEquals(file, downloads.getFile(file.toURI().toString()));
+        assertNull(downloads.getFile(file.toURI().toString() + ".missing"));
+        assertNull(downloads.getFile("mvn:org.apache.karaf/test/1.0"));
+    }
+
+    public void testDownloadedFile() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final File downloaded = File.createTempFile("download", null, null);
+            DownloadManager downloads = new DownloadManager(executor) {
+                protected File doDownload(String location) throws IOException {
+                    return downloaded;
+                }
+            };
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            assertEquals(downloaded, downloads.getFile("mvn:org.apache.karaf/test/1.0"));
+            // local files are not copied
+            downloads.download(file.toURI().toString());
+            assertEquals(file, downloads.getFile(file.toURI().toString()));
+            downloads.release();
+            assertFalse(downloaded.exists());
+            assertTrue(file.exists());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testCachedFile() throws Exception {
+        File dir = File.createTempFile("cache", null, null);
+        dir.delete();
+        BundleCache cache = new BundleCache(dir, BundleCache.DEFAULT_MAX_SIZE);
+        File cached = cache.put("mvn:org.apache.karaf/test/1.0", new ByteArrayInputStream("content".getBytes()));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DownloadManager downloads = new DownloadManager(executor, cache) {
+                protected File doDownload(String location) throws IOException {
+                    throw new IOException("Should not download " + location);
+                }
+            };
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            File checkout = downloads.getFile("mvn:org.apache.karaf/test/1.0");
+            assertFalse(cached.equals(checkout));
+            // the private link is not affected by the removal of the cached file
+            assertTrue(cached.delete());
+            assertEquals("content", read(new FileInputStream(checkout)));
+            downloads.release();
+            assertFalse(checkout.exists());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testMavenLocationInLocalRepository() throws Exception {
+        File system = File.createTempFile("system", null, null);
+        system.delete();
+        File artifact = new File(system, "org/apache/karaf/test/1.0/test-1.0.jar");
+        artifact.getParentFile().mkdirs();
+        assertTrue(file.renameTo(artifact));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            LocalRepositories repositories = new LocalRepositories(Collections.singletonList(system), null);
+            DownloadManager downloads = new DownloadManager(executor, null, repositories) {
+                protected File doDownload(String location) throws IOException {
+                    throw new IOException("Should not download " + location);
+                }
+            };
+            // the artifact is read in place
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            assertEquals(artifact, downloads.getFile("mvn:org.apache.karaf/test/1.0"));
+            downloads.release();
+            assertTrue(artifact.exists());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testLocalArtifactsAreNotCached() throws Exception {
+        File dir = File.createTempFile("cache", null, null);
+        dir.delete();
+        BundleCache cache = new BundleCache(dir, BundleCache.DEFAULT_MAX_SIZE);
+        File system = File.createTempFile("system", null, null);
+        system.delete();
+        File artifact = new File(system, "org/apache/karaf/test/1.0/test-1.0.jar");
+        artifact.getParentFile().mkdirs();
+        assertTrue(file.renameTo(artifact));
+        LocalRepositories repositories = new LocalRepositories(Collections.singletonList(system), null);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DownloadManager downloads = new DownloadManager(executor, cache, repositories);
+            downloads.download("mvn:org.apache.karaf/test/1.0");
+            assertEquals(artifact, downloads.getFile("mvn:org.apache.karaf/test/1.0"));
+            downloads = new DownloadManager(null, cache, repositories);
+            assertEquals("content", read(downloads.open("mvn:org.apache.karaf/test/1.0")));
+            assertNull(cache.get("mvn:org.apache.karaf/test/1.0"));
+            assertEquals(0, cache.getSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+}
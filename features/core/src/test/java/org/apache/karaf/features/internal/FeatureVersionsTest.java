@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.utils.version.VersionRange;
+import org.apache.karaf.features.Feature;
+
+/**
+ * Test cases for {@link FeatureVersions}
+ */
+public class FeatureVersionsTest extends TestCase {
+
+    public void testGetFeature() {
+        FeatureVersions versions = createVersions("1.0.0", "1.2", "2.0.0.SNAPSHOT", "10.0.0");
+        assertEquals("1.2", versions.getFeature("1.2").getVersion());
+        assertEquals("10.0.0", versions.getFeature(FeatureImpl.DEFAULT_VERSION).getVersion());
+        assertEquals("1.2", versions.getFeature("[1,2)").getVersion());
+        assertEquals("2.0.0.SNAPSHOT", versions.getFeature("[1,10)").getVersion());
+        assertEquals("1.0.0", versions.getFeature("1.0").getVersion());
+        assertNull(versions.getFeature("[3,4]"));
+        assertNull(versions.getFeature("1.1"));
+    }
+
+    public void testDefaultVersionOnlyMatchedExplicitly() {
+        FeatureVersions versions = createVersions("0.0.0");
+        assertEquals("0.0.0", versions.getFeature(FeatureImpl.DEFAULT_VERSION).getVersion());
+        assertNull(versions.getFeature("[0,1]"));
+        assertEquals("0.0.0", versions.getLatest(VersionRange.ANY_VERSION).getVersion());
+    }
+
+    public void testGetLatest() {
+        FeatureVersions versions = createVersions("1.0.0", "1.5.0", "2.0.0");
+        assertEquals("2.0.0", versions.getLatest(VersionRange.ANY_VERSION).getVersion());
+        assertEquals("1.5.0", versions.getLatest(new VersionRange("[1,2)")).getVersion());
+        assertEquals("2.0.0", versions.getLatest(new VersionRange("[1,2]")).getVersion());
+        assertEquals("1.0.0", versions.getLatest(new VersionRange("[0,1.5)")).getVersion());
+        assertNull(versions.getLatest(new VersionRange("(2,3]")));
+        assertNull(versions.getLatest(new VersionRange("[0,1)")));
+    }
+
+    private FeatureVersions createVersions(String... versions) {
+        Map<String, Feature> features = new HashMap<String, Feature>();
+        for (String version : versions) {
+            features.put(version, new FeatureImpl("f", version));
+        }
+        return new FeatureVersions(features);
+    }
+
+}
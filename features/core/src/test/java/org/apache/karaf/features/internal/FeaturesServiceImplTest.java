@@ -19,20 +19,40 @@ package org.apache.karaf.features.internal;
 import static org.easymock.EasyMock.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import junit.framework.TestCase;
 
-import org.apache.felix.utils.manifest.Clause;
 import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.InstallPlan;
+import org.apache.karaf.features.Timing;
 import org.easymock.EasyMock;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkListener;
+import org.osgi.service.packageadmin.PackageAdmin;
 
 /**
  * Test cases for {@link FeaturesServiceImpl}
@@ -103,11 +123,129 @@ public class FeaturesServiceImplTest extends TestCase {
         assertSame("2.0.0", impl.getFeature("transaction", FeatureImpl.DEFAULT_VERSION).getVersion());
     }
 
+    public void testFeaturesUpdatedOnRepositoryChanges() throws Exception {
+        URI uri1 = createRepository("<feature name='f' version='1.0'><bundle>b1</bundle></feature>");
+        URI uri2 = createRepository("<feature name='f' version='1.0'><bundle>b2</bundle></feature>"
+                                    + "<feature name='g' version='2.0'/>");
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.internalAddRepository(uri1);
+        assertEquals("b1", impl.getFeature("f").getBundles().get(0).getLocation());
+        assertNull(impl.getFeature("g"));
+
+        impl.internalAddRepository(uri2);
+        assertEquals("b2", impl.getFeature("f").getBundles().get(0).getLocation());
+        assertEquals("2.0", impl.getFeature("g", "[2,3)").getVersion());
+
+        impl.internalRemoveRepository(uri2);
+        assertEquals("b1", impl.getFeature("f").getBundles().get(0).getLocation());
+        assertNull(impl.getFeature("g"));
+        assertEquals(1, impl.listFeatures().length);
+        assertEquals(1, impl.getFeaturesRebuildCount());
+    }
+
+    public void testRemovedFeatureReplacedByLastProvider() throws Exception {
+        URI uri1 = createRepository("<feature name='f' version='1.0'><bundle>b1</bundle></feature>");
+        URI uri2 = createRepository("<feature name='f' version='1.0'><bundle>b2</bundle></feature>");
+        URI uri3 = createRepository("<feature name='f' version='1.0'><bundle>b3</bundle></feature>");
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.internalAddRepository(uri1);
+        impl.getFeatures();
+        impl.internalAddRepository(uri2);
+        impl.internalAddRepository(uri3);
+        assertEquals("b3", impl.getFeature("f").getBundles().get(0).getLocation());
+
+        // removing a repository whose feature is not used keeps the current one
+        impl.internalRemoveRepository(uri2);
+        assertEquals("b3", impl.getFeature("f").getBundles().get(0).getLocation());
+        impl.internalAddRepository(uri2);
+        impl.internalRemoveRepository(uri2);
+        assertEquals("b3", impl.getFeature("f").getBundles().get(0).getLocation());
+        impl.internalRemoveRepository(uri3);
+        assertEquals("b1", impl.getFeature("f").getBundles().get(0).getLocation());
+        // a reloaded repository replaces its previous features
+        impl.internalAddRepository(uri1);
+        impl.internalRemoveRepository(uri1);
+        assertNull(impl.getFeature("f"));
+        assertEquals(1, impl.getFeaturesRebuildCount());
+    }
+
+    public void testPublishedFeaturesAreNotModified() throws Exception {
+        URI uri1 = createRepository("<feature name='f' version='1.0'><bundle>b1</bundle></feature>");
+        URI uri2 = createRepository("<feature name='f' version='1.0'><bundle>b2</bundle></feature>"
+                                    + "<feature name='g' version='2.0'/>");
+        Bundle b1 = EasyMock.createMock(Bundle.class);
+        expect(b1.getLocation()).andReturn("b1").anyTimes();
+        replay(b1);
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.internalAddRepository(uri1);
+        Map<String, Map<String, Feature>> features = impl.getFeatures();
+        FeatureLocations locations = impl.getFeatureLocations();
+
+        // readers of the previous map and index are not affected by the changes
+        impl.internalAddRepository(uri2);
+        assertEquals(1, features.size());
+        assertEquals("b1", features.get("f").get("1.0").getBundles().get(0).getLocation());
+        assertEquals(1, locations.getFeatures("b1").size());
+        assertTrue(impl.getFeaturesContainingBundle(b1).isEmpty());
+
+        Map<String, Map<String, Feature>> updated = impl.getFeatures();
+        impl.internalRemoveRepository(uri2);
+        assertEquals(2, updated.size());
+        assertEquals("b2", updated.get("f").get("1.0").getBundles().get(0).getLocation());
+        assertEquals(1, impl.getFeaturesRebuildCount());
+    }
+
+    public void testFeaturesContainingBundleUpdatedOnRepositoryChanges() throws Exception {
+        URI uri1 = createRepository("<feature name='f' version='1.0'><bundle>b1</bundle></feature>"
+                                    + "<feature name='g' version='1.0'><bundle>b1</bundle></feature>");
+        URI uri2 = createRepository("<feature name='f' version='1.0'><bundle>b2</bundle></feature>");
+        Bundle b1 = EasyMock.createMock(Bundle.class);
+        expect(b1.getLocation()).andReturn("b1").anyTimes();
+        Bundle b2 = EasyMock.createMock(Bundle.class);
+        expect(b2.getLocation()).andReturn("b2").anyTimes();
+        replay(b1, b2);
+
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.internalAddRepository(uri1);
+        assertEquals(2, impl.getFeaturesContainingBundle(b1).size());
+        assertTrue(impl.getFeaturesContainingBundle(b2).isEmpty());
+
+        impl.internalAddRepository(uri2);
+        assertEquals(1, impl.getFeaturesContainingBundle(b1).size());
+        assertEquals("g", impl.getFeaturesContainingBundle(b1).iterator().next().getName());
+        assertEquals(1, impl.getFeaturesContainingBundle(b2).size());
+
+        impl.internalRemoveRepository(uri2);
+        assertEquals(2, impl.getFeaturesContainingBundle(b1).size());
+        assertTrue(impl.getFeaturesContainingBundle(b2).isEmpty());
+        assertEquals(1, impl.getFeaturesRebuildCount());
+    }
+
+    public void testReferencedRepositoriesAddedIncrementally() throws Exception {
+        URI uri1 = createRepository("<feature name='f'/>");
+        URI child = createRepository("<feature name='h' version='1.0'/>");
+        URI uri2 = createRepository("<repository>" + child + "</repository><feature name='g'/>");
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.internalAddRepository(uri1);
+        assertNotNull(impl.getFeature("f"));
+
+        impl.internalAddRepository(uri2);
+        assertNotNull(impl.getFeature("g"));
+        assertNotNull(impl.getFeature("h", "1.0"));
+        assertEquals(3, impl.listRepositories().length);
+        assertEquals(1, impl.getFeaturesRebuildCount());
+    }
+
     public void testStartDoesNotFailWithOneInvalidUri()  {
         BundleContext bundleContext = EasyMock.createMock(BundleContext.class);
         expect(bundleContext.getDataFile(EasyMock.<String>anyObject())).andReturn(dataFile).anyTimes();
         bundleContext.addFrameworkListener(EasyMock.<FrameworkListener>anyObject());
         bundleContext.removeFrameworkListener(EasyMock.<FrameworkListener>anyObject());
+        // the bundle index and the bundle manifests
+        bundleContext.addBundleListener(EasyMock.<BundleListener>anyObject());
+        expectLastCall().times(2);
+        bundleContext.removeBundleListener(EasyMock.<BundleListener>anyObject());
+        expectLastCall().times(2);
         replay(bundleContext);
         FeaturesServiceImpl service = new FeaturesServiceImpl();
         service.setBundleContext(bundleContext);
@@ -164,15 +302,165 @@ public class FeaturesServiceImplTest extends TestCase {
         }
     }
 
-    public void testGetOptionalImportsOnly() {
-        FeaturesServiceImpl service = new FeaturesServiceImpl();
+    public void testIndependentFeatures() throws Exception {
+        FeatureImpl http = new FeatureImpl("http", "1.0");
+        http.addBundle(new BundleInfoImpl("b1"));
+        FeatureImpl web = new FeatureImpl("web", "1.0");
+        web.addDependency(new FeatureImpl("http", "1.0"));
+        FeatureImpl messaging = new FeatureImpl("messaging", "1.0");
+        messaging.addBundle(new BundleInfoImpl("b2"));
+        FeatureImpl console = new FeatureImpl("console", "1.0");
+        console.addBundle(new BundleInfoImpl("b1"));
+        final Map<String, Map<String, Feature>> features = new HashMap<String, Map<String, Feature>>();
+        for (Feature f : new Feature[] { http, web, messaging, console }) {
+            Map<String, Feature> versions = new HashMap<String, Feature>();
+            versions.put(f.getVersion(), f);
+            features.put(f.getName(), versions);
+        }
+        FeaturesServiceImpl impl = new FeaturesServiceImpl() {
+            protected Map<String,Map<String,Feature>> getFeatures() throws Exception {
+                return features;
+            };
+        };
+
+        List<List<Feature>> groups = impl.getIndependentFeatures(new LinkedHashSet<Feature>(Arrays.<Feature>asList(web, messaging, console)));
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.<Feature>asList(web, console), groups.get(0));
+        assertEquals(Arrays.<Feature>asList(messaging), groups.get(1));
+    }
+
+    public void testStartBundlesInDependencyOrder() throws Exception {
+        List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        FeaturesServiceImpl.InstallationState state = new FeaturesServiceImpl.InstallationState();
+        state.bundles.add(createBundle("c", null, "p.a", started));
+        state.bundles.add(createBundle("b", "p.b", "p.a", started));
+        state.bundles.add(createBundle("a", "p.a", null, started));
+        state.bundles.add(createBundle("d", null, null, started));
+        state.installed.addAll(state.bundles);
+
+        // each wave of bundles is resolved at once before being started
+        PackageAdmin packageAdmin = EasyMock.createMock(PackageAdmin.class);
+        expect(packageAdmin.resolveBundles(EasyMock.<Bundle[]>anyObject())).andReturn(true).times(2);
+        replay(packageAdmin);
+
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.setPackageAdmin(packageAdmin);
+        impl.setStartThreads(4);
+        impl.startBundles(state);
+
+        assertEquals(4, started.size());
+        assertTrue(started.indexOf("a") < started.indexOf("b"));
+        assertTrue(started.indexOf("a") < started.indexOf("c"));
+        verify(packageAdmin);
+    }
+
+    public void testStartTimingsPerFeature() throws Exception {
+        List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        FeaturesServiceImpl.InstallationState state = new FeaturesServiceImpl.InstallationState();
+        state.bundles.add(createBundle("a", null, null, started));
+        state.bundles.add(createBundle("b", null, null, started));
+        state.installed.addAll(state.bundles);
+        state.features.put(new FeatureImpl("web", "1.0"), Collections.singleton((long) 'a'));
+        state.features.put(new FeatureImpl("http", "1.0"), Collections.singleton((long) 'b'));
+
+        FeaturesServiceImpl impl = new FeaturesServiceImpl();
+        impl.startBundles(state);
+
+        Map<String, Timing> timings = new HashMap<String, Timing>();
+        for (Timing t : impl.getFeaturePhaseTimings()) {
+            timings.put(t.getName(), t);
+        }
+        assertEquals(2, timings.size());
+        assertEquals(1, timings.get("web-1.0/" + Timing.START).getCount());
+        assertEquals(1, timings.get("http-1.0/" + Timing.START).getCount());
+        assertEquals(2, impl.getPhaseTimings()[0].getCount());
+    }
+
+    public void testPlan() throws Exception {
+        File jar = File.createTempFile("lib", ".jar", null);
+        jar.deleteOnExit();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue(Constants.BUNDLE_SYMBOLICNAME, "lib");
+        manifest.getMainAttributes().putValue(Constants.EXPORT_PACKAGE, "p.a;version=1.0");
+        new JarOutputStream(new FileOutputStream(jar), manifest).close();
+
+        FeatureImpl lib = new FeatureImpl("lib", "1.0");
+        lib.addBundle(new BundleInfoImpl(jar.toURI().toString()));
+        FeatureImpl app = new FeatureImpl("app", "1.0");
+        app.addDependency(new FeatureImpl("lib", "1.0"));
+        app.addBundle(new BundleInfoImpl("mvn:test/app"));
+        final Map<String, Map<String, Feature>> features = new HashMap<String, Map<String, Feature>>();
+        for (Feature f : new Feature[] { lib, app }) {
+            Map<String, Feature> versions = new HashMap<String, Feature>();
+            versions.put(f.getVersion(), f);
+            features.put(f.getName(), versions);
+        }
+        final Bundle appBundle = createBundle("app", null, "p.a;resolution:=optional", null);
+        final BundleContext bundleContext = (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { BundleContext.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getBundles".equals(method.getName())) {
+                    return new Bundle[] { appBundle };
+                }
+                return null;
+            }
+        });
+        FeaturesServiceImpl impl = new FeaturesServiceImpl() {
+            protected Map<String,Map<String,Feature>> getFeatures() throws Exception {
+                return features;
+            };
+        };
+        impl.setBundleContext(bundleContext);
 
-        List<Clause> result = service.getOptionalImports("org.apache.karaf,org.apache.karaf.optional;resolution:=optional");
-        assertEquals("One optional import expected", 1, result.size());
-        assertEquals("org.apache.karaf.optional", result.get(0).getName());
+        InstallPlan plan = impl.plan(Collections.<Feature>singleton(app));
+        assertEquals(Arrays.<Feature>asList(lib, app), plan.getFeatures());
+        assertEquals(1, plan.getBundlesToInstall().size());
+        assertEquals(jar.toURI().toString(), plan.getBundlesToInstall().get(0).getLocation());
+        assertEquals(Arrays.asList(appBundle), plan.getInstalledBundles());
+        assertEquals(Collections.singleton(appBundle), plan.getBundlesToRefresh());
+    }
+
+    private URI createRepository(String features) throws IOException {
+        File file = File.createTempFile("repo", ".xml", null);
+        file.deleteOnExit();
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        pw.println("<features>" + features + "</features>");
+        pw.close();
+        return file.toURI();
+    }
 
-        result = service.getOptionalImports(null);
-        assertNotNull(result);
-        assertEquals("No optional imports expected", 0, result.size());
+    private Bundle createBundle(final String name, String exports, String imports, final List<String> started) {
+        final Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, name);
+        if (exports != null) {
+            headers.put(Constants.EXPORT_PACKAGE, exports);
+        }
+        if (imports != null) {
+            headers.put(Constants.IMPORT_PACKAGE, imports);
+        }
+        return (Bundle) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Bundle.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("start".equals(method.getName())) {
+                    Thread.sleep(10);
+                    started.add(name);
+                    return null;
+                } else if ("getHeaders".equals(method.getName())) {
+                    return headers;
+                } else if ("getSymbolicName".equals(method.getName())) {
+                    return name;
+                } else if ("getState".equals(method.getName())) {
+                    return Bundle.RESOLVED;
+                } else if ("getLocation".equals(method.getName())) {
+                    return "mvn:test/" + name;
+                } else if ("getBundleId".equals(method.getName())) {
+                    return (long) name.charAt(0);
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                }
+                return null;
+            }
+        });
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link LocalRepositories}
+ */
+public class LocalRepositoriesTest extends TestCase {
+
+    public void testPath() {
+        assertEquals("org/apache/karaf/test/1.0/test-1.0.jar",
+                LocalRepositories.getPath("mvn:org.apache.karaf/test/1.0"));
+        assertEquals("org/apache/karaf/test/1.0/test-1.0.xml",
+                LocalRepositories.getPath("mvn:org.apache.karaf/test/1.0/xml"));
+        assertEquals("org/apache/karaf/test/1.0/test-1.0-features.xml",
+                LocalRepositories.getPath("mvn:org.apache.karaf/test/1.0/xml/features"));
+        assertEquals("org/apache/karaf/test/1.0-SNAPSHOT/test-1.0-SNAPSHOT.jar",
+                LocalRepositories.getPath("mvn:org.apache.karaf/test/1.0-SNAPSHOT"));
+        assertNull(LocalRepositories.getPath("mvn:org.apache.karaf/test"));
+        assertNull(LocalRepositories.getPath("mvn:org.apache.karaf/test/LATEST"));
+        assertNull(LocalRepositories.getPath("mvn:org.apache.karaf/test/[1.0,2.0)"));
+        assertNull(LocalRepositories.getPath("mvn:http://repo!org.apache.karaf/test/1.0"));
+        assertNull(LocalRepositories.getPath("file:/test-1.0.jar"));
+    }
+
+    public void testFind() throws Exception {
+        File system = createDirectory("system");
+        File local = createDirectory("repository");
+        File released = createArtifact(local, "org/apache/karaf/test/1.0/test-1.0.jar");
+        createArtifact(local, "org/apache/karaf/test/2.0-SNAPSHOT/test-2.0-SNAPSHOT.jar");
+        File snapshot = createArtifact(system, "org/apache/karaf/test/3.0-SNAPSHOT/test-3.0-SNAPSHOT.jar");
+
+        LocalRepositories repositories = new LocalRepositories(Collections.singletonList(system), local);
+        assertEquals(released, repositories.find("mvn:org.apache.karaf/test/1.0"));
+        // a newer snapshot may be available remotely
+        assertNull(repositories.find("mvn:org.apache.karaf/test/2.0-SNAPSHOT"));
+        assertEquals(snapshot, repositories.find("mvn:org.apache.karaf/test/3.0-SNAPSHOT"));
+        assertNull(repositories.find("mvn:org.apache.karaf/other/1.0"));
+
+        // the default repositories come first
+        File system1 = createArtifact(system, "org/apache/karaf/test/1.0/test-1.0.jar");
+        assertEquals(system1, repositories.find("mvn:org.apache.karaf/test/1.0"));
+    }
+
+    public void testRepositoryFlags() throws Exception {
+        File system = createDirectory("system");
+        File releases = createDirectory("releases");
+        File snapshots = createDirectory("snapshots");
+        createArtifact(releases, "org/apache/karaf/test/1.0-SNAPSHOT/test-1.0-SNAPSHOT.jar");
+        createArtifact(snapshots, "org/apache/karaf/test/1.0/test-1.0.jar");
+        File snapshot = createArtifact(snapshots, "org/apache/karaf/test/1.0-SNAPSHOT/test-1.0-SNAPSHOT.jar");
+        File released = createArtifact(system, "org/apache/karaf/test/1.0/test-1.0.jar");
+
+        LocalRepositories repositories = new LocalRepositories(releases.toURI() + ", "
+                + snapshots.toURI() + "@snapshots@noreleases, http://repo1.maven.org/maven2, "
+                + system.getPath(), null);
+        assertEquals(snapshot, repositories.find("mvn:org.apache.karaf/test/1.0-SNAPSHOT"));
+        assertEquals(released, repositories.find("mvn:org.apache.karaf/test/1.0"));
+    }
+
+    public void testMavenConfiguration() throws Exception {
+        File home = createDirectory("home");
+        File configured = createDirectory("configured");
+        File settings = createDirectory("settings");
+        File system = createDirectory("system");
+        File artifact = createArtifact(system, "org/apache/karaf/test/1.0-SNAPSHOT/test-1.0-SNAPSHOT.jar");
+        File inHome = createArtifact(home, ".m2/repository/org/apache/karaf/test/1.0/test-1.0.jar");
+        File inConfigured = createArtifact(configured, "org/apache/karaf/test/1.0/test-1.0.jar");
+        File inSettings = createArtifact(settings, "org/apache/karaf/test/1.0/test-1.0.jar");
+        Writer writer = new FileWriter(new File(home, ".m2/settings.xml"));
+        writer.write("<settings xmlns=\"http://maven.apache.org/SETTINGS/1.0.0\">"
+                + "<localRepository>" + settings.getPath() + "</localRepository></settings>");
+        writer.close();
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("user.home", home.getPath());
+        config.put(LocalRepositories.PROPERTY_DEFAULT_REPOSITORIES, system.toURI() + "@snapshots");
+        config.put(LocalRepositories.PROPERTY_SETTINGS, new File(home, "missing.xml").getPath());
+        assertEquals(artifact, LocalRepositories.fromMavenConfiguration(config).find("mvn:org.apache.karaf/test/1.0-SNAPSHOT"));
+        // the local repository of the settings is used when none is configured
+        assertEquals(inSettings, LocalRepositories.fromMavenConfiguration(config).find("mvn:org.apache.karaf/test/1.0"));
+        config.put(LocalRepositories.PROPERTY_LOCAL_REPOSITORY, configured.getPath());
+        assertEquals(inConfigured, LocalRepositories.fromMavenConfiguration(config).find("mvn:org.apache.karaf/test/1.0"));
+        config.remove(LocalRepositories.PROPERTY_LOCAL_REPOSITORY);
+        assertTrue(new File(home, ".m2/settings.xml").delete());
+        assertEquals(inHome, LocalRepositories.fromMavenConfiguration(config).find("mvn:org.apache.karaf/test/1.0"));
+    }
+
+    private File createDirectory(String name) throws IOException {
+        File dir = File.createTempFile(name, null, null);
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private File createArtifact(File repository, String path) throws IOException {
+        File file = new File(repository, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return file;
+    }
+
+}
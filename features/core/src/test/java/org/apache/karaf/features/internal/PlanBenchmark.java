@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.InstallPlan;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the time needed by {@link FeaturesServiceImpl#plan(Set)} to compute the installation
+ * of all the features of the given descriptors in a framework without any bundle installed.
+ * Resolvers are bypassed so that only the closure and the index lookups are measured, and the
+ * features whose dependencies can not be found, such as the ones using unfiltered version
+ * properties, are left out.
+ *
+ * This is not run as part of the build.  From features/core, run it with the test
+ * classpath, optionally passing the descriptors to load, which default to the ones
+ * of assemblies/features:
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=org.apache.karaf.features.internal.PlanBenchmark
+ * </pre>
+ */
+public class PlanBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 10000;
+    private static final int ITERATIONS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            args = new String[] {
+                    "../../assemblies/features/standard/src/main/resources/features.xml",
+                    "../../assemblies/features/enterprise/src/main/resources/features.xml"
+            };
+        }
+        final Map<String, Map<String, Feature>> features = new HashMap<String, Map<String, Feature>>();
+        for (String arg : args) {
+            RepositoryImpl repository = new RepositoryImpl(new File(arg).toURI());
+            repository.load();
+            for (Feature f : repository.getFeatures()) {
+                Map<String, Feature> versions = features.get(f.getName());
+                if (versions == null) {
+                    versions = new HashMap<String, Feature>();
+                    features.put(f.getName(), versions);
+                }
+                versions.put(f.getVersion(), f);
+            }
+        }
+        BundleContext bundleContext = (BundleContext) Proxy.newProxyInstance(PlanBenchmark.class.getClassLoader(),
+                new Class[] { BundleContext.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getBundles".equals(method.getName())) {
+                    return new Bundle[0];
+                }
+                return null;
+            }
+        });
+        FeaturesServiceImpl service = new FeaturesServiceImpl() {
+            protected Map<String, Map<String, Feature>> getFeatures() throws Exception {
+                return features;
+            }
+            protected List<BundleInfo> resolve(Feature feature) throws Exception {
+                return feature.getBundles();
+            }
+        };
+        service.setBundleContext(bundleContext);
+        service.getBundleIndex().open();
+        service.getBundleManifests().open();
+
+        Set<Feature> all = new LinkedHashSet<Feature>();
+        for (Map<String, Feature> versions : features.values()) {
+            for (Feature f : versions.values()) {
+                try {
+                    service.plan(Collections.singleton(f));
+                    all.add(f);
+                } catch (Exception e) {
+                    System.out.println("Skipping " + f.getId() + ": " + e.getMessage());
+                }
+            }
+        }
+        InstallPlan plan = service.plan(all);
+        System.out.println(all.size() + " features, " + plan.getFeatures().size() + " in the closure, "
+                + plan.getBundlesToInstall().size() + " bundles");
+
+        run(service, all, WARMUP_ITERATIONS, false);
+        run(service, all, ITERATIONS, true);
+    }
+
+    private static void run(FeaturesServiceImpl service, Set<Feature> features, int iterations, boolean report) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            service.plan(features);
+        }
+        long time = System.nanoTime() - start;
+        if (report) {
+            System.out.println("  plan : " + (time / iterations / 1000) + " us/op");
+        }
+    }
+
+}
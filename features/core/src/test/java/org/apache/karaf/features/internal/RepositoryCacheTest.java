@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+
+import junit.framework.TestCase;
+
+import org.apache.karaf.features.Feature;
+
+/**
+ * Test cases for {@link RepositoryCache}
+ */
+public class RepositoryCacheTest extends TestCase {
+
+    File cacheDir;
+    File repoFile;
+
+    protected void setUp() throws IOException {
+        cacheDir = File.createTempFile("cache", null, null);
+        cacheDir.delete();
+        repoFile = File.createTempFile("repo", ".xml", null);
+        writeRepository("b1");
+    }
+
+    public void testStoreAndLoad() throws Exception {
+        RepositoryCache cache = new RepositoryCache(cacheDir);
+        RepositoryImpl repo = new RepositoryImpl(repoFile.toURI());
+        assertFalse(cache.load(repo));
+        repo.load();
+        cache.store(repo);
+
+        System.setProperty("repository.cache.test", "interpolated");
+        RepositoryImpl cached = new RepositoryImpl(repoFile.toURI());
+        assertTrue(cache.load(cached));
+        assertEquals("test", cached.getName());
+        assertEquals(1, cached.getRepositories().length);
+        assertEquals(URI.create("urn:r1"), cached.getRepositories()[0]);
+        Feature[] features = cached.getFeatures();
+        assertEquals(2, features.length);
+        Feature f1 = features[0];
+        assertEquals("f1", f1.getName());
+        assertEquals("1.0", f1.getVersion());
+        assertEquals("desc", f1.getDescription());
+        assertEquals("obr", f1.getResolver());
+        assertEquals("interpolated", f1.getConfigurations().get("c1").get("k"));
+        assertEquals(1, f1.getConfigurationFiles().size());
+        assertEquals("cfloc", f1.getConfigurationFiles().get(0).getLocation());
+        assertEquals("etc/cf1", f1.getConfigurationFiles().get(0).getFinalname());
+        assertEquals(1, f1.getBundles().size());
+        assertEquals("b1", f1.getBundles().get(0).getLocation());
+        assertEquals(30, f1.getBundles().get(0).getStartLevel());
+        assertFalse(f1.getBundles().get(0).isStart());
+        assertTrue(f1.getBundles().get(0).isDependency());
+        Feature f2 = features[1];
+        assertEquals(1, f2.getDependencies().size());
+        assertEquals(new FeatureImpl("f1", "1.0"), f2.getDependencies().get(0));
+    }
+
+    public void testModifiedFileIsReloaded() throws Exception {
+        RepositoryCache cache = new RepositoryCache(cacheDir);
+        RepositoryImpl repo = new RepositoryImpl(repoFile.toURI());
+        repo.load();
+        cache.store(repo);
+
+        writeRepository("b2");
+        repoFile.setLastModified(repo.getLastModified() + 10000);
+        assertFalse(cache.load(new RepositoryImpl(repoFile.toURI())));
+    }
+
+    public void testImmutableRepositoryNotRevalidated() throws Exception {
+        RepositoryCache cache = new RepositoryCache(cacheDir) {
+            protected boolean isImmutable(URI uri) {
+                return true;
+            }
+        };
+        RepositoryImpl repo = new RepositoryImpl(repoFile.toURI());
+        repo.load();
+        cache.store(repo);
+
+        repoFile.delete();
+        RepositoryImpl cached = new RepositoryImpl(repoFile.toURI());
+        assertTrue(cache.load(cached));
+        assertEquals("b1", cached.getFeatures()[0].getBundles().get(0).getLocation());
+    }
+
+    public void testIsImmutable() {
+        RepositoryCache cache = new RepositoryCache(cacheDir);
+        assertTrue(cache.isImmutable(URI.create("mvn:org.apache.karaf/features/2.2.0/xml/features")));
+        assertFalse(cache.isImmutable(URI.create("mvn:org.apache.karaf/features/2.2.0-SNAPSHOT/xml/features")));
+        assertFalse(cache.isImmutable(URI.create("file:/tmp/features.xml")));
+        assertFalse(cache.isImmutable(URI.create("http://repo1.maven.org/maven2/features.xml")));
+        assertFalse(cache.isImmutable(URI.create("mvn:org.apache.karaf/features//xml/features")));
+        assertFalse(cache.isImmutable(URI.create("mvn:org.apache.karaf/features/LATEST/xml/features")));
+        assertFalse(cache.isImmutable(URI.create("mvn:org.apache.karaf/features/RELEASE/xml/features")));
+    }
+
+    private void writeRepository(String bundle) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(repoFile));
+        pw.println("<features name='test'>");
+        pw.println("  <repository>urn:r1</repository>");
+        pw.println("  <feature name='f1' version='1.0' description='desc' resolver='obr'>");
+        pw.println("    <config name='c1'>k=${repository.cache.test}</config>");
+        pw.println("    <configfile finalname='etc/cf1'>cfloc</configfile>");
+        pw.println("    <bundle start-level='30' start='false' dependency='true'>" + bundle + "</bundle>");
+        pw.println("  </feature>");
+        pw.println("  <feature name='f2'>");
+        pw.println("    <feature version='1.0'>f1</feature>");
+        pw.println("  </feature>");
+        pw.println("</features>");
+        pw.close();
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.ConfigFileInfo;
+import org.apache.karaf.features.Feature;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares the time needed to load features descriptors with {@link RepositoryImpl}
+ * against the DOM based parsing it used to rely on.
+ * The DOM baseline is a copy of the former loader, which walks the document with
+ * <code>getElementsByTagName</code> for each feature, and builds the same features.
+ *
+ * This is not run as part of the build.  From features/core, run it with the test
+ * classpath, optionally passing the descriptors to load, which default to all the
+ * ones found under assemblies/features:
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=org.apache.karaf.features.internal.RepositoryLoadBenchmark
+ * </pre>
+ */
+public class RepositoryLoadBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 10000;
+    private static final int ITERATIONS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        List<URI> uris = new ArrayList<URI>();
+        if (args.length == 0) {
+            File[] assemblies = new File("../../assemblies/features").listFiles();
+            if (assemblies != null) {
+                Arrays.sort(assemblies);
+                for (File assembly : assemblies) {
+                    File descriptor = new File(assembly, "src/main/resources/features.xml");
+                    if (descriptor.isFile()) {
+                        uris.add(descriptor.toURI());
+                    }
+                }
+            }
+        }
+        for (String arg : args) {
+            uris.add(new File(arg).toURI());
+        }
+
+        for (URI uri : uris) {
+            System.out.println(uri);
+            check(uri);
+            run("  dom  ", new DomLoader(uri), WARMUP_ITERATIONS, false);
+            run("  stax ", new StaxLoader(uri), WARMUP_ITERATIONS, false);
+            run("  dom  ", new DomLoader(uri), ITERATIONS, true);
+            run("  stax ", new StaxLoader(uri), ITERATIONS, true);
+        }
+    }
+
+    private static void run(String name, Runnable loader, int iterations, boolean report) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            loader.run();
+        }
+        long time = System.nanoTime() - start;
+        if (report) {
+            System.out.println(name + ": " + (time / iterations / 1000) + " us/op");
+        }
+    }
+
+    /**
+     * Check that both loaders build the same features, down to their bundles,
+     * dependencies, configurations and configuration files.
+     */
+    private static void check(URI uri) throws Exception {
+        List<Feature> dom = new DomLoader(uri).load();
+        RepositoryImpl stax = new RepositoryImpl(uri);
+        Feature[] features = stax.getFeatures();
+        compare(uri.toString(), "features", dom.size(), features.length);
+        for (int i = 0; i < features.length; i++) {
+            Feature d = dom.get(i);
+            Feature f = features[i];
+            String id = d.getId();
+            compare(id, "id", d.getId(), f.getId());
+            compare(id, "description", d.getDescription(), f.getDescription());
+            compare(id, "details", d.getDetails(), f.getDetails());
+            compare(id, "resolver", d.getResolver(), f.getResolver());
+            compare(id, "dependencies", d.getDependencies().size(), f.getDependencies().size());
+            for (int j = 0; j < d.getDependencies().size(); j++) {
+                Feature dd = d.getDependencies().get(j);
+                Feature fd = f.getDependencies().get(j);
+                compare(id, "dependency " + j + " name", dd.getName(), fd.getName());
+                compare(id, "dependency " + j + " version", dd.getVersion(), fd.getVersion());
+            }
+            compare(id, "configurations", d.getConfigurations(), f.getConfigurations());
+            compare(id, "configuration files", d.getConfigurationFiles().size(), f.getConfigurationFiles().size());
+            for (int j = 0; j < d.getConfigurationFiles().size(); j++) {
+                ConfigFileInfo dc = d.getConfigurationFiles().get(j);
+                ConfigFileInfo fc = f.getConfigurationFiles().get(j);
+                compare(id, "configuration file " + j + " location", dc.getLocation(), fc.getLocation());
+                compare(id, "configuration file " + j + " final name", dc.getFinalname(), fc.getFinalname());
+            }
+            compare(id, "bundles", d.getBundles().size(), f.getBundles().size());
+            for (int j = 0; j < d.getBundles().size(); j++) {
+                BundleInfo db = d.getBundles().get(j);
+                BundleInfo fb = f.getBundles().get(j);
+                compare(id, "bundle " + j + " location", db.getLocation(), fb.getLocation());
+                compare(id, "bundle " + j + " start level", db.getStartLevel(), fb.getStartLevel());
+                compare(id, "bundle " + j + " start", db.isStart(), fb.isStart());
+                compare(id, "bundle " + j + " dependency", db.isDependency(), fb.isDependency());
+            }
+        }
+    }
+
+    private static void compare(String id, String what, Object dom, Object stax) {
+        if (dom == null ? stax != null : !dom.equals(stax)) {
+            throw new IllegalStateException(id + ": " + what + " differs between dom (" + dom + ") and stax (" + stax + ")");
+        }
+    }
+
+    private static class DomLoader implements Runnable {
+        private final URI uri;
+        private final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+
+        DomLoader(URI uri) {
+            this.uri = uri;
+        }
+
+        public void run() {
+            try {
+                load();
+            } catch (Exception e) {
+                throw new IllegalStateException(e.toString());
+            }
+        }
+
+        List<Feature> load() throws Exception {
+            URLConnection conn = uri.toURL().openConnection();
+            conn.setDefaultUseCaches(false);
+            conn.getLastModified();
+            byte[] content = RepositoryImpl.readFully(conn.getInputStream());
+            RepositoryCache.checksum(content);
+            Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+            List<URI> repositories = new ArrayList<URI>();
+            List<Feature> features = new ArrayList<Feature>();
+            doc.getDocumentElement().getAttribute("name");
+
+            NodeList nodes = doc.getDocumentElement().getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item(i);
+                if (!(node instanceof Element)) {
+                    continue;
+                }
+                if ("repository".equals(node.getNodeName())) {
+                    Element e = (Element) nodes.item(i);
+                    try {
+                        repositories.add(new URI(e.getTextContent().trim()));
+                    } catch (URISyntaxException ex) {
+                        // ignored, as by the former loader
+                    }
+                } else if ("feature".equals(node.getNodeName())) {
+                    Element e = (Element) nodes.item(i);
+                    String name = e.getAttribute("name");
+                    String version = e.getAttribute("version");
+                    FeatureImpl f;
+                    if (version != null && version.length() > 0) {
+                        f = new FeatureImpl(name, version);
+                    } else {
+                        f = new FeatureImpl(name);
+                    }
+
+                    String resolver = e.getAttribute("resolver");
+                    if (resolver != null && resolver.length() > 0) {
+                        f.setResolver(resolver);
+                    }
+
+                    String description = e.getAttribute("description");
+                    if (description != null && description.length() > 0) {
+                        f.setDescription(description);
+                    }
+
+                    NodeList detailsNodes = e.getElementsByTagName("details");
+                    StringBuffer detailsBuffer = new StringBuffer();
+                    for (int j = 0; j < detailsNodes.getLength(); j++) {
+                        Element b = (Element) detailsNodes.item(j);
+                        String detail = b.getTextContent().trim();
+                        detailsBuffer.append(detail).append("\n");
+                    }
+                    String details = detailsBuffer.toString();
+                    if (details != null && details.length() > 0)
+                        f.setDetails(details);
+
+                    NodeList featureNodes = e.getElementsByTagName("feature");
+                    for (int j = 0; j < featureNodes.getLength(); j++) {
+                        Element b = (Element) featureNodes.item(j);
+                        String dependencyFeatureVersion = b.getAttribute("version");
+                        if (dependencyFeatureVersion != null && dependencyFeatureVersion.length() > 0) {
+                            f.addDependency(new FeatureImpl(b.getTextContent(), dependencyFeatureVersion));
+                        } else {
+                            f.addDependency(new FeatureImpl(b.getTextContent()));
+                        }
+                    }
+                    NodeList configNodes = e.getElementsByTagName("config");
+                    for (int j = 0; j < configNodes.getLength(); j++) {
+                        Element c = (Element) configNodes.item(j);
+                        String cfgName = c.getAttribute("name");
+                        String data = c.getTextContent();
+                        Properties properties = new Properties();
+                        properties.load(new ByteArrayInputStream(data.getBytes()));
+                        interpolation(properties);
+                        Map<String, String> hashtable = new Hashtable<String, String>();
+                        for (Object key : properties.keySet()) {
+                            String n = key.toString();
+                            hashtable.put(n, properties.getProperty(n));
+                        }
+                        f.addConfig(cfgName, hashtable);
+                    }
+                    NodeList configurationFiles = e.getElementsByTagName("configfile");
+                    for (int j = 0; j < configurationFiles.getLength(); j++) {
+                        Element cf = (Element) configurationFiles.item(j);
+                        String finalname = cf.getAttribute("finalname");
+                        String location = cf.getTextContent().trim();
+                        f.addConfigurationFile(new ConfigFileInfoImpl(location, finalname));
+                    }
+                    NodeList bundleNodes = e.getElementsByTagName("bundle");
+                    for (int j = 0; j < bundleNodes.getLength(); j++) {
+                        Element b = (Element) bundleNodes.item(j);
+                        String bStartLevel = b.getAttribute("start-level");
+                        String bStart = b.getAttribute("start");
+                        String bDependency = b.getAttribute("dependency");
+                        boolean bs = true;
+                        boolean bd = false;
+                        int bsl = 0;
+
+                        if (bStart != null && bStart.length() > 0) {
+                            bs = Boolean.parseBoolean(bStart);
+                        }
+                        if (bDependency != null && bDependency.length() > 0) {
+                            bd = Boolean.parseBoolean(bDependency);
+                        }
+                        if (bStartLevel != null && bStartLevel.length() > 0) {
+                            try {
+                                bsl = Integer.parseInt(bStartLevel);
+                            } catch (Exception ex) {
+                                // ignored, as by the former loader
+                            }
+                        }
+                        f.addBundle(new BundleInfoImpl(b.getTextContent().trim(), bsl, bs, bd));
+                    }
+                    features.add(f);
+                }
+            }
+            return features;
+        }
+
+        private void interpolation(Properties properties) {
+            for (Enumeration e = properties.propertyNames(); e.hasMoreElements();) {
+                String key = (String) e.nextElement();
+                String val = properties.getProperty(key);
+                Matcher matcher = Pattern.compile("\\$\\{([^}]+)\\}").matcher(val);
+                while (matcher.find()) {
+                    String rep = System.getProperty(matcher.group(1));
+                    if (rep != null) {
+                        val = val.replace(matcher.group(0), rep);
+                        matcher.reset(val);
+                    }
+                }
+                properties.put(key, val);
+            }
+        }
+    }
+
+    private static class StaxLoader implements Runnable {
+        private final URI uri;
+
+        StaxLoader(URI uri) {
+            this.uri = uri;
+        }
+
+        public void run() {
+            try {
+                new RepositoryImpl(uri).load();
+            } catch (Exception e) {
+                throw new IllegalStateException(e.toString());
+            }
+        }
+    }
+
+}
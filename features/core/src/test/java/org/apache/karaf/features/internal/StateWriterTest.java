@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link StateWriter}
+ */
+public class StateWriterTest extends TestCase {
+
+    File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("state", ".properties", null);
+    }
+
+    public void testSynchronousWrite() throws Exception {
+        StateWriter writer = new StateWriter(0);
+        writer.write(file, createProperties("1"));
+        assertEquals("1", load().get("value"));
+        writer.write(file, createProperties("2"));
+        assertEquals("2", load().get("value"));
+        assertEquals(2, writer.getWrites());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    public void testConcurrentSynchronousWrites() throws Exception {
+        final StateWriter writer = new StateWriter(0);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final Properties props = new Properties();
+            // large enough for unsynchronized writes to interleave
+            for (int j = 0; j < 1000; j++) {
+                props.put("key" + j, Integer.toString(i));
+            }
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int k = 0; k < 20; k++) {
+                        writer.write(file, props);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80, writer.getWrites());
+        Properties props = load();
+        assertEquals(1000, props.size());
+        assertEquals(1, new HashSet<Object>(props.values()).size());
+    }
+
+    public void testWritesCoalesced() throws Exception {
+        StateWriter writer = new StateWriter(60000);
+        for (int i = 0; i < 10; i++) {
+            writer.write(file, createProperties(Integer.toString(i)));
+        }
+        assertEquals(0, writer.getWrites());
+        writer.close();
+        assertEquals(1, writer.getWrites());
+        assertEquals("9", load().get("value"));
+    }
+
+    public void testDelayedWrite() throws Exception {
+        StateWriter writer = new StateWriter(10);
+        writer.write(file, createProperties("1"));
+        for (int i = 0; i < 500 && writer.getWrites() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, writer.getWrites());
+        assertEquals("1", load().get("value"));
+        writer.close();
+        assertEquals(1, writer.getWrites());
+    }
+
+    public void testWriteAfterCloseIsSynchronous() throws Exception {
+        StateWriter writer = new StateWriter(60000);
+        writer.write(file, createProperties("1"));
+        writer.close();
+        writer.write(file, createProperties("2"));
+        assertEquals(2, writer.getWrites());
+        assertEquals("2", load().get("value"));
+    }
+
+    private Properties createProperties(String value) {
+        Properties props = new Properties();
+        props.put("value", value);
+        return props;
+    }
+
+    private Properties load() throws IOException {
+        Properties props = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            props.load(is);
+        } finally {
+            is.close();
+        }
+        return props;
+    }
+
+}
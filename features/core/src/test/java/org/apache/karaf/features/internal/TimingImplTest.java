@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link TimingImpl}
+ */
+public class TimingImplTest extends TestCase {
+
+    public void testStatistics() {
+        TimingImpl timing = new TimingImpl("install");
+        assertEquals(0, timing.getPercentile(50));
+        for (int i = 100; i >= 1; i--) {
+            timing.record(i);
+        }
+        assertEquals(100, timing.getCount());
+        assertEquals(5050, timing.getTotalTime());
+        assertEquals(1, timing.getMinTime());
+        assertEquals(100, timing.getMaxTime());
+        assertEquals(50, timing.getMeanTime());
+        assertEquals(50, timing.getPercentile(50));
+        assertEquals(90, timing.getPercentile(90));
+        assertEquals(100, timing.getPercentile(100));
+        assertEquals(1, timing.getPercentile(0));
+    }
+
+    public void testSampleBufferGrowsOnDemand() {
+        TimingImpl timing = new TimingImpl("install");
+        assertEquals(TimingImpl.INITIAL_SAMPLES, timing.getCapacity());
+        timing.record(1);
+        assertEquals(TimingImpl.INITIAL_SAMPLES, timing.getCapacity());
+        for (int i = 0; i < TimingImpl.INITIAL_SAMPLES; i++) {
+            timing.record(2);
+        }
+        assertEquals(TimingImpl.INITIAL_SAMPLES * 2, timing.getCapacity());
+        assertEquals(1, timing.getPercentile(0));
+        for (int i = 0; i < 3 * TimingImpl.SAMPLES; i++) {
+            timing.record(3);
+        }
+        assertEquals(TimingImpl.SAMPLES, timing.getCapacity());
+        assertEquals(3, timing.getPercentile(0));
+    }
+
+    public void testPercentilesUseRecentSamples() {
+        TimingImpl timing = new TimingImpl("install");
+        for (int i = 0; i < TimingImpl.SAMPLES; i++) {
+            timing.record(1000);
+        }
+        for (int i = 0; i < TimingImpl.SAMPLES; i++) {
+            timing.record(1);
+        }
+        assertEquals(1000, timing.getMaxTime());
+        assertEquals(1, timing.getPercentile(99));
+    }
+
+}
@@ -24,6 +24,28 @@ public interface FeaturesServiceMBean {
 
     TabularData getRepositories() throws Exception;
 
+    /**
+     * Timing statistics of the phases of the installation of features.
+     */
+    TabularData getPhaseTimings() throws Exception;
+
+    /**
+     * Timing statistics of the installation of each feature.
+     */
+    TabularData getFeatureTimings() throws Exception;
+
+    /**
+     * Timing statistics of the phases of the installation of each feature, named
+     * <code>&lt;feature id&gt;/&lt;phase&gt;</code>.
+     */
+    TabularData getFeaturePhaseTimings() throws Exception;
+
+    /**
+     * Number of times the map of available features has been fully rebuilt from the
+     * repositories, as opposed to being updated when a repository is added or removed.
+     */
+    long getFeaturesRebuildCount() throws Exception;
+
     void addRepository(String url) throws Exception;
 
     void removeRepository(String url) throws Exception;
@@ -119,4 +141,30 @@ public interface FeaturesServiceMBean {
      */
     String[] REPOSITORY_EVENT = { REPOSITORY_NAME, REPOSITORY_URI, REPOSITORY_EVENT_EVENT_TYPE };
 
+
+    String TIMING_NAME = "Name";
+
+    String TIMING_COUNT = "Count";
+
+    String TIMING_TOTAL = "Total";
+
+    String TIMING_MIN = "Min";
+
+    String TIMING_MAX = "Max";
+
+    String TIMING_MEAN = "Mean";
+
+    String TIMING_P50 = "50th Percentile";
+
+    String TIMING_P90 = "90th Percentile";
+
+    String TIMING_P99 = "99th Percentile";
+
+    /**
+     * The item names in the CompositeData representing the timing statistics
+     * of a phase or of a feature, in milliseconds
+     */
+    String[] TIMING = { TIMING_NAME, TIMING_COUNT, TIMING_TOTAL, TIMING_MIN, TIMING_MAX, TIMING_MEAN,
+                        TIMING_P50, TIMING_P90, TIMING_P99 };
+
 }
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.management.codec;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.karaf.features.Timing;
+import org.apache.karaf.features.management.FeaturesServiceMBean;
+
+public class JmxTiming {
+
+    public final static CompositeType TIMING;
+
+    public final static TabularType TIMING_TABLE;
+
+    private final CompositeData data;
+
+    public JmxTiming(Timing timing) {
+        try {
+            String[] itemNames = FeaturesServiceMBean.TIMING;
+            Object[] itemValues = new Object[itemNames.length];
+            itemValues[0] = timing.getName();
+            itemValues[1] = timing.getCount();
+            itemValues[2] = timing.getTotalTime();
+            itemValues[3] = timing.getMinTime();
+            itemValues[4] = timing.getMaxTime();
+            itemValues[5] = timing.getMeanTime();
+            itemValues[6] = timing.getPercentile(50);
+            itemValues[7] = timing.getPercentile(90);
+            itemValues[8] = timing.getPercentile(99);
+            data = new CompositeDataSupport(TIMING, itemNames, itemValues);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot form timing open data", e);
+        }
+    }
+
+    public CompositeData asCompositeData() {
+        return data;
+    }
+
+    public static TabularData tableFrom(Timing[] timings) {
+        TabularDataSupport table = new TabularDataSupport(TIMING_TABLE);
+        for (Timing timing : timings) {
+            table.put(new JmxTiming(timing).asCompositeData());
+        }
+        return table;
+    }
+
+    static {
+        TIMING = createTimingType();
+        TIMING_TABLE = createTimingTableType();
+    }
+
+    private static CompositeType createTimingType() {
+        try {
+            String description = "This type identify the timing statistics of a features operation";
+            String[] itemNames = FeaturesServiceMBean.TIMING;
+            OpenType[] itemTypes = new OpenType[itemNames.length];
+            String[] itemDescriptions = new String[itemNames.length];
+            itemTypes[0] = SimpleType.STRING;
+            for (int i = 1; i < itemTypes.length; i++) {
+                itemTypes[i] = SimpleType.LONG;
+            }
+
+            itemDescriptions[0] = "The name of the phase, the id of the feature or both";
+            itemDescriptions[1] = "The number of operations";
+            itemDescriptions[2] = "The total time in milliseconds";
+            itemDescriptions[3] = "The minimum time in milliseconds";
+            itemDescriptions[4] = "The maximum time in milliseconds";
+            itemDescriptions[5] = "The mean time in milliseconds";
+            itemDescriptions[6] = "The median time of the recent operations in milliseconds";
+            itemDescriptions[7] = "The 90th percentile of the recent operations in milliseconds";
+            itemDescriptions[8] = "The 99th percentile of the recent operations in milliseconds";
+
+            return new CompositeType("Timing", description, itemNames,
+                    itemDescriptions, itemTypes);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Unable to build timing type", e);
+        }
+    }
+
+    private static TabularType createTimingTableType() {
+        try {
+            return new TabularType("Timings", "The table of timing statistics",
+                    TIMING, new String[] { FeaturesServiceMBean.TIMING_NAME });
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Unable to build timing table type", e);
+        }
+    }
+
+}
@@ -39,6 +39,7 @@ import org.apache.karaf.features.management.codec.JmxFeature;
 import org.apache.karaf.features.management.codec.JmxFeatureEvent;
 import org.apache.karaf.features.management.codec.JmxRepository;
 import org.apache.karaf.features.management.codec.JmxRepositoryEvent;
+import org.apache.karaf.features.management.codec.JmxTiming;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 
@@ -119,6 +120,34 @@ public class FeaturesServiceMBeanImpl extends StandardEmitterMBean implements
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public TabularData getPhaseTimings() throws Exception {
+        return JmxTiming.tableFrom(featuresService.getPhaseTimings());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public TabularData getFeatureTimings() throws Exception {
+        return JmxTiming.tableFrom(featuresService.getFeatureTimings());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public TabularData getFeaturePhaseTimings() throws Exception {
+        return JmxTiming.tableFrom(featuresService.getFeaturePhaseTimings());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getFeaturesRebuildCount() throws Exception {
+        return featuresService.getFeaturesRebuildCount();
+    }
+
     public void addRepository(String uri) throws Exception {
         featuresService.addRepository(new URI(uri));
     }
@@ -13,6 +13,15 @@
  */
 package org.apache.karaf.features.management.internal;
 
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Timing;
+import org.apache.karaf.features.management.FeaturesServiceMBean;
 import org.junit.Test;
 
 public class FeaturesServiceMBeanImplTest {
@@ -21,4 +30,69 @@ public class FeaturesServiceMBeanImplTest {
     public void testInstantiation() throws Exception {
         new FeaturesServiceMBeanImpl();
     }
+
+    @Test
+    public void testPhaseTimings() throws Exception {
+        Timing timing = createMock(Timing.class);
+        expect(timing.getName()).andReturn(Timing.INSTALL).anyTimes();
+        expect(timing.getCount()).andReturn(2L);
+        expect(timing.getTotalTime()).andReturn(30L);
+        expect(timing.getMinTime()).andReturn(10L);
+        expect(timing.getMaxTime()).andReturn(20L);
+        expect(timing.getMeanTime()).andReturn(15L);
+        expect(timing.getPercentile(50)).andReturn(10L);
+        expect(timing.getPercentile(90)).andReturn(20L);
+        expect(timing.getPercentile(99)).andReturn(20L);
+        FeaturesService featuresService = createMock(FeaturesService.class);
+        expect(featuresService.getPhaseTimings()).andReturn(new Timing[] { timing });
+        replay(timing, featuresService);
+
+        FeaturesServiceMBeanImpl mbean = new FeaturesServiceMBeanImpl();
+        mbean.setFeaturesService(featuresService);
+        TabularData table = mbean.getPhaseTimings();
+        assertEquals(1, table.size());
+        CompositeData data = table.get(new Object[] { Timing.INSTALL });
+        assertEquals(2L, data.get(FeaturesServiceMBean.TIMING_COUNT));
+        assertEquals(30L, data.get(FeaturesServiceMBean.TIMING_TOTAL));
+        assertEquals(20L, data.get(FeaturesServiceMBean.TIMING_P90));
+        verify(timing, featuresService);
+    }
+
+    @Test
+    public void testFeaturePhaseTimings() throws Exception {
+        Timing timing = createMock(Timing.class);
+        expect(timing.getName()).andReturn("web-1.0/" + Timing.DOWNLOAD).anyTimes();
+        expect(timing.getCount()).andReturn(3L);
+        expect(timing.getTotalTime()).andReturn(90L);
+        expect(timing.getMinTime()).andReturn(10L);
+        expect(timing.getMaxTime()).andReturn(50L);
+        expect(timing.getMeanTime()).andReturn(30L);
+        expect(timing.getPercentile(50)).andReturn(30L);
+        expect(timing.getPercentile(90)).andReturn(50L);
+        expect(timing.getPercentile(99)).andReturn(50L);
+        FeaturesService featuresService = createMock(FeaturesService.class);
+        expect(featuresService.getFeaturePhaseTimings()).andReturn(new Timing[] { timing });
+        replay(timing, featuresService);
+
+        FeaturesServiceMBeanImpl mbean = new FeaturesServiceMBeanImpl();
+        mbean.setFeaturesService(featuresService);
+        TabularData table = mbean.getFeaturePhaseTimings();
+        assertEquals(1, table.size());
+        CompositeData data = table.get(new Object[] { "web-1.0/" + Timing.DOWNLOAD });
+        assertEquals(3L, data.get(FeaturesServiceMBean.TIMING_COUNT));
+        assertEquals(90L, data.get(FeaturesServiceMBean.TIMING_TOTAL));
+        verify(timing, featuresService);
+    }
+
+    @Test
+    public void testFeaturesRebuildCount() throws Exception {
+        FeaturesService featuresService = createMock(FeaturesService.class);
+        expect(featuresService.getFeaturesRebuildCount()).andReturn(3L);
+        replay(featuresService);
+
+        FeaturesServiceMBeanImpl mbean = new FeaturesServiceMBeanImpl();
+        mbean.setFeaturesService(featuresService);
+        assertEquals(3L, mbean.getFeaturesRebuildCount());
+        verify(featuresService);
+    }
 }
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -39,8 +40,21 @@ import org.osgi.framework.InvalidSyntaxException;
 
 public class ObrResolver implements Resolver {
 
+    private static final int MAX_RESOLUTIONS = 256;
+
     private RepositoryAdmin repositoryAdmin;
 
+    /**
+     * Results of the previous resolutions, keyed by feature id.  A result is only reused
+     * for the same feature and as long as the local and remote repositories have not
+     * been modified.
+     */
+    private final Map<String, Resolution> resolutions = new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+            return size() > MAX_RESOLUTIONS;
+        }
+    };
+
     public RepositoryAdmin getRepositoryAdmin() {
         return repositoryAdmin;
     }
@@ -50,6 +64,37 @@ public class ObrResolver implements Resolver {
     }
 
     public List<BundleInfo> resolve(Feature feature) throws Exception {
+        Repository systemRepository = repositoryAdmin.getSystemRepository();
+        Repository localRepository = repositoryAdmin.getLocalRepository();
+        Repository[] repositories = repositoryAdmin.listRepositories();
+        String state = getState(localRepository, repositories);
+        synchronized (resolutions) {
+            Resolution resolution = resolutions.get(feature.getId());
+            if (resolution != null && resolution.feature == feature && resolution.state.equals(state)) {
+                return new ArrayList<BundleInfo>(resolution.bundles);
+            }
+        }
+        List<BundleInfo> bundles = doResolve(feature, systemRepository, localRepository, repositories);
+        synchronized (resolutions) {
+            resolutions.put(feature.getId(), new Resolution(feature, state, bundles));
+        }
+        return new ArrayList<BundleInfo>(bundles);
+    }
+
+    /**
+     * Build a string identifying the state of the given repositories.
+     */
+    protected String getState(Repository localRepository, Repository[] repositories) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(localRepository.getLastModified());
+        for (Repository repository : repositories) {
+            sb.append(',').append(repository.getURI()).append('@').append(repository.getLastModified());
+        }
+        return sb.toString();
+    }
+
+    protected List<BundleInfo> doResolve(Feature feature, Repository systemRepository, Repository localRepository,
+                                         Repository[] repositories) throws Exception {
         List<Requirement> reqs = new ArrayList<Requirement>();
         List<Resource> ress = new ArrayList<Resource>();
         List<Resource> deploy = new ArrayList<Resource>();
@@ -69,10 +114,10 @@ public class ObrResolver implements Resolver {
 
         Repository repository = repositoryAdmin.getHelper().repository(ress.toArray(new Resource[ress.size()]));
         List<Repository> repos = new ArrayList<Repository>();
-        repos.add(repositoryAdmin.getSystemRepository());
-        repos.add(repositoryAdmin.getLocalRepository());
+        repos.add(systemRepository);
+        repos.add(localRepository);
         repos.add(repository);
-        repos.addAll(Arrays.asList(repositoryAdmin.listRepositories()));
+        repos.addAll(Arrays.asList(repositories));
         org.apache.felix.bundlerepository.Resolver resolver = repositoryAdmin.resolver(repos.toArray(new Repository[repos.size()]));
 
         for (Resource res : ress) {
@@ -156,4 +201,16 @@ public class ObrResolver implements Resolver {
         return repositoryAdmin.getHelper().requirement(name, filter);
     }
 
+    private static class Resolution {
+        final Feature feature;
+        final String state;
+        final List<BundleInfo> bundles;
+
+        Resolution(Feature feature, String state, List<BundleInfo> bundles) {
+            this.feature = feature;
+            this.state = state;
+            this.bundles = bundles;
+        }
+    }
+
 }
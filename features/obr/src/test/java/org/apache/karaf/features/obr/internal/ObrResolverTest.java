@@ -81,4 +81,37 @@ public class ObrResolverTest {
         verify(admin, resolver, resource);
     }
 
+    @Test
+    public void testResolutionReused() throws Exception {
+        final FeatureImpl f = new FeatureImpl("f1", "1.0");
+        f.setResolver("obr");
+        f.addBundle(new BundleInfoImpl("bundle:(symbolicname=foo)"));
+        final RepositoryAdmin admin = createMock(RepositoryAdmin.class);
+        final org.apache.felix.bundlerepository.Repository local = createMock(org.apache.felix.bundlerepository.Repository.class);
+        final Resolver resolver = createMock(Resolver.class);
+        final ObrResolver obrResolver = new ObrResolver();
+        obrResolver.setRepositoryAdmin(admin);
+
+        expect(admin.getHelper()).andReturn(new DataModelHelperImpl()).anyTimes();
+        expect(admin.getSystemRepository()).andReturn(createMock(org.apache.felix.bundlerepository.Repository.class)).times(3);
+        expect(admin.getLocalRepository()).andReturn(local).times(3);
+        expect(admin.listRepositories()).andReturn(new org.apache.felix.bundlerepository.Repository[0]).times(3);
+        expect(local.getLastModified()).andReturn(1L).times(2);
+        expect(local.getLastModified()).andReturn(2L);
+        // the second resolution is served from the previous result
+        expect(admin.resolver(EasyMock.<org.apache.felix.bundlerepository.Repository[]>anyObject())).andReturn(resolver).times(2);
+        resolver.add(EasyMock.<Requirement>anyObject());
+        EasyMock.expectLastCall().times(2);
+        expect(resolver.resolve(Resolver.NO_OPTIONAL_RESOURCES)).andReturn(true).times(2);
+        expect(resolver.getAddedResources()).andReturn(new Resource[0]).times(2);
+        expect(resolver.getRequiredResources()).andReturn(new Resource[0]).times(2);
+        replay(admin, local, resolver);
+
+        obrResolver.resolve(f);
+        assertEquals(0, obrResolver.resolve(f).size());
+        // the local repository has changed
+        obrResolver.resolve(f);
+        verify(admin, local, resolver);
+    }
+
 }
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+/**
+ * A {@link Lock} which can wait for the lock to be released by its current owner,
+ * so that a standby instance acquires it as soon as it is available instead of
+ * polling for it.
+ */
+public interface BlockingLock extends Lock {
+
+    /**
+     * Blocks until the lock is acquired.
+     * The wait ends with an exception when the lock is released or the thread interrupted.
+     *
+     * @return true if the lock has been acquired, false otherwise.
+     * @throws Exception
+     */
+    boolean waitForLock() throws Exception;
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The outcome of the configuration phase of a previous boot: the properties set from
+ * <tt>etc/system.properties</tt>, the configuration properties with their variables substituted
+ * and the startup bundles located, and the class path of the framework.
+ * <p>
+ * The plan records the files it was computed from and a fingerprint of these files and of
+ * the system properties in effect before <tt>etc/system.properties</tt> was applied.  A stored
+ * plan is only used when the fingerprint still matches, so that a change to any of the
+ * configuration files, to the <tt>lib</tt> directory or to the command line falls back to a
+ * regular boot, which then writes a new plan.
+ * </p>
+ */
+public class BootPlan {
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String INPUT = "input.";
+    private static final String SYSTEM = "system.";
+    private static final String CONFIG = "config.";
+    private static final String CLASSPATH = "classpath.";
+
+    private final Properties systemProps;
+    private final Properties configProps;
+    private final List<URL> classPath;
+    private final List<File> inputs;
+    private final String fingerprint;
+
+    /**
+     * @param systemProps the properties set from <tt>etc/system.properties</tt>
+     * @param configProps the resolved configuration properties
+     * @param classPath   the class path of the framework
+     * @param inputs      the files the plan has been computed from
+     * @param fingerprint the fingerprint of the inputs, see {@link #fingerprint(Properties, List)}
+     */
+    public BootPlan(Properties systemProps, Properties configProps, List<URL> classPath, List<File> inputs, String fingerprint) {
+        this.systemProps = systemProps;
+        this.configProps = configProps;
+        this.classPath = classPath;
+        this.inputs = inputs;
+        this.fingerprint = fingerprint;
+    }
+
+    public Properties getSystemProperties() {
+        return systemProps;
+    }
+
+    public Properties getConfigProperties() {
+        return configProps;
+    }
+
+    public List<URL> getClassPath() {
+        return Collections.unmodifiableList(classPath);
+    }
+
+    public List<File> getInputs() {
+        return Collections.unmodifiableList(inputs);
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Compute the fingerprint of the given system properties and of the size and
+     * modification time of the given files.  Directories are included through their
+     * modification time, which changes when an entry is added or removed.  The content of
+     * the properties files is included too, as an edit may keep their size and, on file
+     * systems with a coarse time resolution, their modification time.
+     */
+    public static String fingerprint(Properties system, List<File> inputs) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Enumeration e = system.propertyNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            sorted.put(name, system.getProperty(name));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        for (File input : inputs) {
+            sb.append(input.getPath()).append('|').append(input.length()).append('|').append(input.lastModified());
+            if (input.isFile() && input.getName().endsWith(".properties")) {
+                sb.append('|').append(toHex(digest(input)));
+            }
+            sb.append('\n');
+        }
+        return toHex(digest.digest(sb.toString().getBytes("UTF-8")));
+    }
+
+    private static byte[] digest(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return digest.digest();
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load the plan stored in the given file.
+     *
+     * @param file   the file to load the plan from
+     * @param system the current system properties
+     * @return the plan, or <tt>null</tt> if there is no plan or if it does not match the current inputs
+     */
+    public static BootPlan load(File file, Properties system) throws Exception {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            props.load(is);
+        } finally {
+            is.close();
+        }
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; props.getProperty(INPUT + i) != null; i++) {
+            inputs.add(new File(props.getProperty(INPUT + i)));
+        }
+        String fingerprint = props.getProperty(FINGERPRINT);
+        if (fingerprint == null || inputs.isEmpty() || !fingerprint.equals(fingerprint(system, inputs))) {
+            return null;
+        }
+        List<URL> classPath = new ArrayList<URL>();
+        for (int i = 0; props.getProperty(CLASSPATH + i) != null; i++) {
+            classPath.add(new URL(props.getProperty(CLASSPATH + i)));
+        }
+        Properties systemProps = new Properties();
+        Properties configProps = new Properties();
+        for (Enumeration e = props.propertyNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            if (name.startsWith(SYSTEM)) {
+                systemProps.setProperty(name.substring(SYSTEM.length()), props.getProperty(name));
+            } else if (name.startsWith(CONFIG)) {
+                configProps.setProperty(name.substring(CONFIG.length()), props.getProperty(name));
+            }
+        }
+        return new BootPlan(systemProps, configProps, classPath, inputs, fingerprint);
+    }
+
+    /**
+     * Store the plan in the given file.  The plan is written to a temporary file which is
+     * then renamed, so that a launcher never reads a partially written plan.
+     */
+    public void store(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(FINGERPRINT, fingerprint);
+        for (int i = 0; i < inputs.size(); i++) {
+            props.setProperty(INPUT + i, inputs.get(i).getPath());
+        }
+        for (int i = 0; i < classPath.size(); i++) {
+            props.setProperty(CLASSPATH + i, classPath.get(i).toExternalForm());
+        }
+        for (Enumeration e = systemProps.propertyNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            props.setProperty(SYSTEM + name, systemProps.getProperty(name));
+        }
+        for (Enumeration e = configProps.propertyNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            props.setProperty(CONFIG + name, configProps.getProperty(name));
+        }
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            props.store(os, "Karaf boot plan");
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+}
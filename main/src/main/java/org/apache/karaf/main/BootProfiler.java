@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Records a timeline of the startup of Karaf: the phases of the launcher, the start level
+ * changes, the start of each bundle and the creation of the blueprint containers.
+ * Times are in milliseconds since the start of the JVM.  Once the final start level has been
+ * reached, the profiler waits for the bundles started asynchronously, such as the ones of the
+ * boot features, to settle, then writes the timeline as a CSV file and prints a summary of the
+ * slowest phases and bundles.
+ */
+public class BootProfiler implements SynchronousBundleListener, FrameworkListener, ServiceListener {
+
+    public static final String PHASE = "phase";
+    public static final String BUNDLE = "bundle";
+    public static final String BLUEPRINT = "blueprint";
+
+    private static final String BLUEPRINT_CONTAINER = "org.osgi.service.blueprint.container.BlueprintContainer";
+    private static final int SUMMARY_SIZE = 10;
+
+    private final File file;
+    private final long settleTime;
+    private final long maxWait;
+    private final long origin;
+    private final List<Event> events = new ArrayList<Event>();
+    private final Map<String, Long> phases = new HashMap<String, Long>();
+    private final Map<Long, Long> starting = new HashMap<Long, Long>();
+    private final Map<Long, Long> started = new HashMap<Long, Long>();
+    private BundleContext context;
+    private String startLevelPhase;
+    private boolean finalStartLevel;
+    private long lastEvent;
+    private Timer timer;
+    private boolean written;
+
+    /**
+     * @param file       the file to write the timeline to
+     * @param settleTime the time without any bundle started after which the boot is considered complete
+     * @param maxWait    the maximum time to wait for the boot to complete once the final start level is reached
+     */
+    public BootProfiler(File file, long settleTime, long maxWait) {
+        this.file = file;
+        this.settleTime = settleTime;
+        this.maxWait = maxWait;
+        this.origin = ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * The current time relative to the start of the JVM.
+     */
+    public long now() {
+        return System.currentTimeMillis() - origin;
+    }
+
+    public synchronized void begin(String phase) {
+        phases.put(phase, now());
+    }
+
+    public synchronized void end(String phase) {
+        Long start = phases.remove(phase);
+        if (start != null) {
+            record(PHASE, phase, start, now());
+        }
+    }
+
+    public synchronized void record(String type, String name, long start, long end) {
+        events.add(new Event(type, name, start, end));
+        lastEvent = System.currentTimeMillis();
+    }
+
+    /**
+     * Follow the bundles and blueprint containers of the given framework.
+     */
+    public synchronized void attach(BundleContext context) {
+        this.context = context;
+        context.addBundleListener(this);
+        context.addFrameworkListener(this);
+        try {
+            context.addServiceListener(this, "(objectClass=" + BLUEPRINT_CONTAINER + ")");
+        } catch (Exception e) {
+            // Ignore, the blueprint containers are not recorded
+        }
+    }
+
+    /**
+     * Record a change of the start level of the framework, which completes when the
+     * framework fires a start level changed event.
+     */
+    public synchronized void startLevel(int level, boolean isFinal) {
+        startLevelPhase = "start-level-" + level;
+        finalStartLevel = isFinal;
+        begin(startLevelPhase);
+    }
+
+    public synchronized void bundleChanged(BundleEvent event) {
+        Bundle bundle = event.getBundle();
+        switch (event.getType()) {
+            case BundleEvent.STARTING:
+                starting.put(bundle.getBundleId(), now());
+                break;
+            case BundleEvent.STARTED:
+                Long start = starting.remove(bundle.getBundleId());
+                long end = now();
+                if (start != null) {
+                    record(BUNDLE, getName(bundle), start, end);
+                }
+                started.put(bundle.getBundleId(), end);
+                break;
+        }
+    }
+
+    public synchronized void serviceChanged(ServiceEvent event) {
+        if (event.getType() == ServiceEvent.REGISTERED) {
+            Bundle bundle = event.getServiceReference().getBundle();
+            if (bundle != null) {
+                // the container is created asynchronously once the bundle is started
+                Long start = started.get(bundle.getBundleId());
+                long end = now();
+                record(BLUEPRINT, getName(bundle), start != null ? start : end, end);
+            }
+        }
+    }
+
+    public synchronized void frameworkEvent(FrameworkEvent event) {
+        if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED && startLevelPhase != null) {
+            end(startLevelPhase);
+            startLevelPhase = null;
+            if (finalStartLevel && timer == null) {
+                final long reached = System.currentTimeMillis();
+                timer = new Timer("Karaf-boot-profiler", true);
+                timer.schedule(new TimerTask() {
+                    public void run() {
+                        long now = System.currentTimeMillis();
+                        boolean settled;
+                        synchronized (BootProfiler.this) {
+                            settled = now - lastEvent >= settleTime || now - reached >= maxWait;
+                        }
+                        if (settled) {
+                            cancel();
+                            complete();
+                        }
+                    }
+                }, settleTime / 4, settleTime / 4);
+            }
+        }
+    }
+
+    /**
+     * Stop following the framework, write the timeline and print the summary.
+     * Only the first call has any effect.
+     */
+    public void complete() {
+        List<Event> timeline;
+        synchronized (this) {
+            if (written) {
+                return;
+            }
+            written = true;
+            if (timer != null) {
+                timer.cancel();
+            }
+            if (context != null) {
+                try {
+                    context.removeBundleListener(this);
+                    context.removeFrameworkListener(this);
+                    context.removeServiceListener(this);
+                } catch (IllegalStateException e) {
+                    // Ignore, the framework has been stopped
+                }
+            }
+            timeline = new ArrayList<Event>(events);
+        }
+        Collections.sort(timeline, new Comparator<Event>() {
+            public int compare(Event e1, Event e2) {
+                return e1.start < e2.start ? -1 : e1.start > e2.start ? 1 : 0;
+            }
+        });
+        try {
+            write(timeline);
+        } catch (IOException e) {
+            System.err.println("Unable to write the boot timeline to " + file + ": " + e);
+        }
+        printSummary(timeline);
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<Event>(events);
+    }
+
+    private void write(List<Event> timeline) throws IOException {
+        file.getParentFile().mkdirs();
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        try {
+            pw.println("type,name,start,end,duration");
+            for (Event e : timeline) {
+                pw.println(e.type + "," + quote(e.name) + "," + e.start + "," + e.end + "," + e.getDuration());
+            }
+        } finally {
+            pw.close();
+        }
+    }
+
+    private void printSummary(List<Event> timeline) {
+        long end = 0;
+        List<Event> slowestPhases = new ArrayList<Event>();
+        List<Event> slowestBundles = new ArrayList<Event>();
+        for (Event e : timeline) {
+            end = Math.max(end, e.end);
+            if (PHASE.equals(e.type)) {
+                slowestPhases.add(e);
+            } else {
+                slowestBundles.add(e);
+            }
+        }
+        System.out.println("Karaf boot completed in " + end + " ms, timeline written to " + file);
+        print("Slowest phases:", slowestPhases);
+        print("Slowest bundles:", slowestBundles);
+    }
+
+    private static void print(String title, List<Event> events) {
+        Collections.sort(events, new Comparator<Event>() {
+            public int compare(Event e1, Event e2) {
+                return e1.getDuration() > e2.getDuration() ? -1 : e1.getDuration() < e2.getDuration() ? 1 : 0;
+            }
+        });
+        System.out.println(title);
+        for (int i = 0; i < events.size() && i < SUMMARY_SIZE; i++) {
+            Event e = events.get(i);
+            System.out.println("  " + e.getDuration() + " ms  " + e.name + (BLUEPRINT.equals(e.type) ? " (blueprint)" : ""));
+        }
+    }
+
+    private static String getName(Bundle bundle) {
+        String name = bundle.getSymbolicName();
+        return (name != null ? name : bundle.getLocation()) + " (" + bundle.getBundleId() + ")";
+    }
+
+    private static String quote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * A timed event of the boot timeline.
+     */
+    public static class Event {
+        private final String type;
+        private final String name;
+        private final long start;
+        private final long end;
+
+        Event(String type, String name, long start, long end) {
+            this.type = type;
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getDuration() {
+            return end - start;
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listens on the control ports of the container, such as the shutdown port, from a single
+ * selector thread.
+ * <p>
+ * Each connection sends one command, terminated by a control character or by the end of the
+ * stream, which is passed to the {@link Handler} of the port.  The response of the handler, if
+ * any, is written back before the connection is closed.  A connection which does not complete its
+ * command within the read timeout, or sends a command longer than the maximum length, is closed
+ * without calling the handler, so that a slow or hostile client can not hold the other ones.
+ * </p>
+ */
+public class ControlServer {
+
+    private static final Logger LOG = Logger.getLogger(ControlServer.class.getName());
+
+    /**
+     * Handles the commands received on a port.
+     */
+    public interface Handler {
+
+        /**
+         * @return the response to send back, or <tt>null</tt>
+         */
+        String handle(String command) throws Exception;
+    }
+
+    private final long readTimeout;
+    private final int maxCommandLength;
+    private final Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param readTimeout the time in milliseconds allowed to a connection to send its command
+     * @param maxCommandLength the maximum length of a command
+     */
+    public ControlServer(long readTimeout, int maxCommandLength) throws IOException {
+        LOG.addHandler(BootstrapLogManager.getDefaultHandler());
+        this.readTimeout = readTimeout;
+        this.maxCommandLength = maxCommandLength;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Listen on the given address, 0 meaning any free port.
+     *
+     * @return the port listened on
+     */
+    public int listen(String host, int port, Handler handler) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName(host), port), 1);
+            server.configureBlocking(false);
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The control server is closed");
+                }
+                // the selector thread must not be blocked in select while registering
+                selector.wakeup();
+                server.register(selector, SelectionKey.OP_ACCEPT, handler);
+                if (thread == null) {
+                    thread = new Thread("Karaf control") {
+                        public void run() {
+                            select();
+                        }
+                    };
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+            return server.socket().getLocalPort();
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop listening and close all the connections.  The key set of the selector is not thread
+     * safe, so the selector thread is woken up to close them itself.
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+        }
+        if (t == null) {
+            closeSelector();
+            return;
+        }
+        selector.wakeup();
+        if (t != Thread.currentThread()) {
+            try {
+                t.join(readTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                synchronized (this) {
+                    // wait for the registrations in progress
+                }
+                selector.select(Math.max(1, readTimeout / 2));
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, "Karaf control socket: " + e.getMessage(), e);
+                        key.channel().close();
+                    }
+                }
+                expire();
+            }
+        } catch (ClosedSelectorException e) {
+            // closed
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Karaf control socket: ", e);
+        } finally {
+            closeSelector();
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection((Handler) key.attachment()));
+    }
+
+    private void read(SelectionKey key) throws Exception {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        int n = channel.read(connection.buffer);
+        boolean complete = n < 0;
+        for (int i = connection.buffer.position() - Math.max(n, 0); i < connection.buffer.position(); i++) {
+            if ((connection.buffer.get(i) & 0xFF) < 32) {
+                // Control character terminates the command
+                connection.buffer.position(i);
+                complete = true;
+                break;
+            }
+        }
+        if (!complete) {
+            if (!connection.buffer.hasRemaining()) {
+                LOG.warning("Karaf control socket: command longer than " + maxCommandLength + " characters received");
+                channel.close();
+            }
+            return;
+        }
+        connection.buffer.flip();
+        byte[] bytes = new byte[connection.buffer.remaining()];
+        connection.buffer.get(bytes);
+        String response = connection.handler.handle(new String(bytes, "ISO-8859-1"));
+        if (response == null) {
+            channel.close();
+            return;
+        }
+        connection.buffer = ByteBuffer.wrap(response.getBytes("UTF-8"));
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(connection.buffer);
+        if (!connection.buffer.hasRemaining()) {
+            channel.close();
+        }
+    }
+
+    private void expire() throws IOException {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection
+                    && now - ((Connection) key.attachment()).start > readTimeout * 1000000L) {
+                LOG.warning("Karaf control socket: connection timed out after " + readTimeout + " ms");
+                key.channel().close();
+            }
+        }
+    }
+
+    private class Connection {
+        final Handler handler;
+        final long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocate(maxCommandLength + 1);
+
+        Connection(Handler handler) {
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Represents an exclusive lock on a database based on a lease.
+ * <p>
+ * A row of the lock table records the owner of the lease and a version which the owner
+ * increments each time it renews the lease, which happens on each check of the lock.  The
+ * other instances take the lease over when its version has not changed for the duration of
+ * the lease, as measured on their own monotonic clock: the clocks of the instances do not need
+ * to be synchronized, only to run at the same rate.  The take over is a conditional update on
+ * the observed version, so that only one instance wins when several of them try at once.
+ * </p>
+ * <p>
+ * No database lock is held between two checks, and the statements are prepared once for the
+ * lifetime of the connection.  The round-trip times of the renewals are registered as the
+ * <tt>org.apache.karaf:type=lock</tt> MBean.
+ * </p>
+ * <p>
+ * With a grace period, a renewal failing with an error, such as a broken connection, is retried
+ * a few times on a new connection.  If the database is still not reachable, the lock is kept
+ * until the end of the grace period, instead of stopping the container on the first error.  The
+ * grace period is bounded so that the check which ends it, delayed by the jitter and by its own
+ * retries, still happens before another instance can take the lease over.
+ * </p>
+ * <p>
+ * Each time the lease is acquired, its version is published as the <tt>karaf.lock.token</tt>
+ * system property.  This fencing token is greater than the tokens of all the previous owners,
+ * so that the systems the master talks to can reject the requests of a former master.
+ * </p>
+ */
+public class LeaseJDBCLock extends DefaultJDBCLock {
+
+    private static final String PROPERTY_LOCK_JDBC_TABLE = "karaf.lock.jdbc.table";
+    private static final String PROPERTY_LOCK_JDBC_LEASE = "karaf.lock.jdbc.lease";
+    private static final String PROPERTY_LOCK_JDBC_OWNER = "karaf.lock.jdbc.owner";
+    private static final String PROPERTY_LOCK_JDBC_GRACE = "karaf.lock.jdbc.grace";
+    private static final String PROPERTY_LOCK_KEEPALIVE_DELAY = "karaf.lock.keepalive.delay";
+    private static final String PROPERTY_LOCK_DELAY = "karaf.lock.delay";
+    private static final String PROPERTY_LOCK_JITTER = "karaf.lock.jitter";
+
+    /**
+     * The system property holding the fencing token of the current lease
+     */
+    public static final String PROPERTY_LOCK_TOKEN = "karaf.lock.token";
+
+    private static final String DEFAULT_TABLE = "KARAF_LEASE";
+    private static final String DEFAULT_LEASE = "10000"; // in milliseconds
+    private static final String DEFAULT_GRACE = "0"; // in milliseconds
+    private static final String DEFAULT_JITTER = "0.1";
+    private static final int RECONNECT_ATTEMPTS = 3;
+    private static final long RECONNECT_DELAY = 100; // in milliseconds
+
+    final String owner;
+    final long lease;
+    final long grace;
+    /**
+     * The longest time from a check to the end of the next one, in milliseconds
+     */
+    final long margin;
+    final LockStatistics statistics = new LockStatistics();
+
+    private Connection preparedConnection;
+    private PreparedStatement selectStatement;
+    private PreparedStatement insertStatement;
+    private PreparedStatement takeOverStatement;
+    private PreparedStatement renewStatement;
+    private PreparedStatement releaseStatement;
+
+    private long observedVersion = -1;
+    private long observedTime;
+    private long lastRenewal;
+    private long token = -1;
+
+    public LeaseJDBCLock(Properties props) {
+        super(withDefaults(props));
+        String name = System.getProperty("karaf.name", props.getProperty("karaf.name", "karaf"));
+        this.owner = props.getProperty(PROPERTY_LOCK_JDBC_OWNER, name + "@" + ManagementFactory.getRuntimeMXBean().getName());
+        this.lease = Long.parseLong(props.getProperty(PROPERTY_LOCK_JDBC_LEASE, DEFAULT_LEASE));
+        long grace = Long.parseLong(props.getProperty(PROPERTY_LOCK_JDBC_GRACE, DEFAULT_GRACE));
+        // the end of the grace period is only noticed by the next check, which may be delayed by
+        // the jitter and which retries before giving up, so all of that must fit in the lease
+        long keepAliveDelay = Long.parseLong(props.getProperty(PROPERTY_LOCK_KEEPALIVE_DELAY,
+                props.getProperty(PROPERTY_LOCK_DELAY, "1000")));
+        double jitter = Math.max(0, Math.min(Double.parseDouble(props.getProperty(PROPERTY_LOCK_JITTER, DEFAULT_JITTER)), 1));
+        this.margin = (long) Math.ceil(keepAliveDelay * (1 + jitter)) + getRetryBudget();
+        if (grace > 0 && timeout <= 0) {
+            grace = 0;
+            LOG.warning("The grace period of the lock is disabled as the queries have no timeout");
+        } else if (grace > lease - margin) {
+            grace = Math.max(0, lease - margin);
+            LOG.warning("The grace period of the lock is reduced to " + grace + " ms to end before the lease expires");
+        }
+        this.grace = grace;
+        statistics.register(name);
+    }
+
+    private static Properties withDefaults(Properties props) {
+        if (props.getProperty(PROPERTY_LOCK_JDBC_TABLE) != null) {
+            return props;
+        }
+        Properties p = new Properties();
+        p.putAll(props);
+        p.setProperty(PROPERTY_LOCK_JDBC_TABLE, DEFAULT_TABLE);
+        return p;
+    }
+
+    @Override
+    Statements createStatements() {
+        LeaseStatements statements = new LeaseStatements();
+        statements.setTableName(table);
+        statements.setNodeName(clusterName);
+        return statements;
+    }
+
+    LeaseStatements getStatements() {
+        return (LeaseStatements) statements;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.karaf.main.Lock#lock()
+     */
+    @Override
+    public boolean lock() {
+        long start = getNanoTime();
+        try {
+            Lease current = readLease();
+            if (current == null) {
+                return acquired(insertLease(), start, 1);
+            }
+            if (owner.equals(current.owner)) {
+                // a previous attempt succeeded but its result was lost
+                return acquired(renewLease(), start, current.version + 1);
+            }
+            if (current.owner == null || current.owner.length() == 0) {
+                return acquired(takeOverLease(current.version), start, current.version + 1);
+            }
+            if (current.version != observedVersion) {
+                observedVersion = current.version;
+                observedTime = getNanoTime();
+                return false;
+            }
+            if (getNanoTime() - observedTime > current.duration * 1000000L) {
+                LOG.warning("The lease of " + current.owner + " has not been renewed for " + current.duration + " ms, taking it over");
+                return acquired(takeOverLease(current.version), start, current.version + 1);
+            }
+            return false;
+        } catch (Exception e) {
+            LOG.warning("Failed to acquire database lock: " + e);
+            reset();
+            return false;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.karaf.main.Lock#isAlive()
+     */
+    @Override
+    public boolean isAlive() throws Exception {
+        long start = getNanoTime();
+        try {
+            boolean renewed = renewLease();
+            statistics.keepAlive(getNanoTime() - start);
+            return renewed(renewed, start);
+        } catch (Exception e) {
+            statistics.keepAliveFailed();
+            LOG.warning("Failed to renew the lease: " + e);
+            reset();
+        }
+        if (grace <= 0) {
+            lost();
+            return false;
+        }
+        // reconnect and retry quickly, the connection may have been broken by a transient failure
+        long delay = RECONNECT_DELAY;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            sleep(delay);
+            delay *= 2;
+            closeConnection();
+            start = getNanoTime();
+            try {
+                boolean renewed = renewLease();
+                statistics.keepAlive(getNanoTime() - start);
+                LOG.info("Reconnected to the database after " + (attempt + 1) + " attempt(s)");
+                return renewed(renewed, start);
+            } catch (Exception e) {
+                statistics.keepAliveFailed();
+                reset();
+            }
+        }
+        long elapsed = (getNanoTime() - lastRenewal) / 1000000L;
+        if (elapsed < grace && elapsed + margin < lease) {
+            LOG.warning("Unable to renew the lease, keeping the lock for at most " + (grace - elapsed) + " ms");
+            return true;
+        }
+        LOG.severe("Lost lock! The lease has not been renewed for " + elapsed + " ms.");
+        lost();
+        return false;
+    }
+
+    /**
+     * The longest time spent by a failing check, in milliseconds: the renewal and each of its
+     * retries may last up to the query timeout, and the retries are spaced by growing delays.
+     */
+    private long getRetryBudget() {
+        long budget = (RECONNECT_ATTEMPTS + 1) * timeout * 1000L;
+        long delay = RECONNECT_DELAY;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            budget += delay;
+            delay *= 2;
+        }
+        return budget;
+    }
+
+    private boolean acquired(boolean acquired, long start, long version) {
+        if (acquired) {
+            lastRenewal = start;
+            token = version;
+            System.setProperty(PROPERTY_LOCK_TOKEN, Long.toString(token));
+        }
+        return acquired;
+    }
+
+    private boolean renewed(boolean renewed, long start) {
+        if (renewed) {
+            lastRenewal = start;
+        } else {
+            LOG.severe("Lost lock! The lease has been taken over by another instance.");
+            lost();
+        }
+        return renewed;
+    }
+
+    private void lost() {
+        if (token >= 0 && Long.toString(token).equals(System.getProperty(PROPERTY_LOCK_TOKEN))) {
+            System.clearProperty(PROPERTY_LOCK_TOKEN);
+        }
+        token = -1;
+    }
+
+    /**
+     * The fencing token of the current lease, or -1 if the lease is not held.
+     */
+    public long getToken() {
+        return token;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.karaf.main.Lock#release()
+     */
+    @Override
+    public void release() throws Exception {
+        try {
+            if (isConnected()) {
+                releaseLease();
+            }
+        } catch (Exception e) {
+            LOG.warning("Failed to release the lease: " + e);
+        } finally {
+            lost();
+            closeStatements();
+            statistics.unregister();
+            super.release();
+        }
+    }
+
+    Lease readLease() throws Exception {
+        prepareStatements();
+        selectStatement.setString(1, clusterName);
+        ResultSet rs = selectStatement.executeQuery();
+        try {
+            if (!rs.next()) {
+                return null;
+            }
+            return new Lease(rs.getString(1), rs.getLong(2), rs.getLong(3));
+        } finally {
+            closeSafely(rs);
+            getConnection().commit();
+        }
+    }
+
+    boolean insertLease() throws Exception {
+        prepareStatements();
+        insertStatement.setString(1, clusterName);
+        insertStatement.setString(2, owner);
+        insertStatement.setLong(3, lease);
+        insertStatement.setLong(4, getCurrentTimeMillis());
+        try {
+            insertStatement.executeUpdate();
+            getConnection().commit();
+            return true;
+        } catch (SQLException e) {
+            // another instance inserted the lease first
+            getConnection().rollback();
+            return false;
+        }
+    }
+
+    boolean takeOverLease(long version) throws Exception {
+        prepareStatements();
+        takeOverStatement.setString(1, owner);
+        takeOverStatement.setLong(2, lease);
+        takeOverStatement.setLong(3, getCurrentTimeMillis());
+        takeOverStatement.setString(4, clusterName);
+        takeOverStatement.setLong(5, version);
+        int rows = takeOverStatement.executeUpdate();
+        getConnection().commit();
+        return rows == 1;
+    }
+
+    boolean renewLease() throws Exception {
+        prepareStatements();
+        renewStatement.setLong(1, getCurrentTimeMillis());
+        renewStatement.setString(2, clusterName);
+        renewStatement.setString(3, owner);
+        int rows = renewStatement.executeUpdate();
+        getConnection().commit();
+        return rows == 1;
+    }
+
+    void releaseLease() throws Exception {
+        prepareStatements();
+        releaseStatement.setString(1, clusterName);
+        releaseStatement.setString(2, owner);
+        releaseStatement.executeUpdate();
+        getConnection().commit();
+    }
+
+    /**
+     * Prepare the statements, unless they have already been prepared for the current connection.
+     */
+    void prepareStatements() throws Exception {
+        Connection connection = getConnection();
+        if (connection == preparedConnection) {
+            return;
+        }
+        closeStatements();
+        LeaseStatements statements = getStatements();
+        selectStatement = prepare(connection, statements.getLeaseSelectStatement());
+        insertStatement = prepare(connection, statements.getLeaseInsertStatement());
+        takeOverStatement = prepare(connection, statements.getLeaseTakeOverStatement());
+        renewStatement = prepare(connection, statements.getLeaseRenewStatement());
+        releaseStatement = prepare(connection, statements.getLeaseReleaseStatement());
+        preparedConnection = connection;
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setQueryTimeout(timeout);
+        return statement;
+    }
+
+    void closeStatements() {
+        closeSafely(selectStatement);
+        closeSafely(insertStatement);
+        closeSafely(takeOverStatement);
+        closeSafely(renewStatement);
+        closeSafely(releaseStatement);
+        selectStatement = null;
+        insertStatement = null;
+        takeOverStatement = null;
+        renewStatement = null;
+        releaseStatement = null;
+        preparedConnection = null;
+    }
+
+    /**
+     * Roll back the current transaction and close the statements after an error,
+     * so that they are prepared again on the next attempt.
+     */
+    void reset() {
+        try {
+            if (isConnected()) {
+                lockConnection.rollback();
+            }
+        } catch (SQLException e) {
+            LOG.fine("Exception while rolling back the connection: " + e);
+        }
+        closeStatements();
+    }
+
+    void closeConnection() {
+        closeStatements();
+        if (lockConnection != null) {
+            try {
+                lockConnection.close();
+            } catch (SQLException e) {
+                LOG.fine("Exception while closing the connection: " + e);
+            }
+            lockConnection = null;
+        }
+    }
+
+    void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * The state of the lease as read from the database.
+     */
+    static class Lease {
+        final String owner;
+        final long version;
+        final long duration;
+
+        Lease(String owner, long version, long duration) {
+            this.owner = owner;
+            this.version = version;
+            this.duration = duration;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+/**
+ * The statements of the {@link LeaseJDBCLock}.  The lock table has one row per cluster,
+ * holding the owner of the lease, a version incremented by each renewal, the duration of
+ * the lease in milliseconds and the time of the last renewal on the owner's clock.
+ */
+public class LeaseStatements extends Statements {
+
+    protected String ownerColumnDataType = "VARCHAR(255)";
+
+    private String[] leaseCreateSchemaStatements;
+    private String leaseSelectStatement;
+    private String leaseInsertStatement;
+    private String leaseTakeOverStatement;
+    private String leaseRenewStatement;
+    private String leaseReleaseStatement;
+
+    public LeaseStatements() {
+        tableName = "KARAF_LEASE";
+        momentColumnDataType = "NUMERIC(20)";
+    }
+
+    @Override
+    public String[] getLockCreateSchemaStatements(long moment) {
+        if (leaseCreateSchemaStatements == null) {
+            leaseCreateSchemaStatements = new String[] {
+                "CREATE TABLE " + getFullLockTableName() + " (NAME " + getNodeColumnDataType() + " NOT NULL PRIMARY KEY, OWNER "
+                        + getOwnerColumnDataType() + ", VERSION " + getMomentColumnDataType() + ", LEASE "
+                        + getMomentColumnDataType() + ", MOMENT " + getMomentColumnDataType() + ")"
+            };
+        }
+        return leaseCreateSchemaStatements;
+    }
+
+    @Override
+    public void setLockCreateSchemaStatements(String[] lockCreateSchemaStatements) {
+        this.leaseCreateSchemaStatements = lockCreateSchemaStatements;
+    }
+
+    /**
+     * Parameters: the name of the cluster.
+     */
+    public String getLeaseSelectStatement() {
+        if (leaseSelectStatement == null) {
+            leaseSelectStatement = "SELECT OWNER, VERSION, LEASE FROM " + getFullLockTableName() + " WHERE NAME = ?";
+        }
+        return leaseSelectStatement;
+    }
+
+    public void setLeaseSelectStatement(String leaseSelectStatement) {
+        this.leaseSelectStatement = leaseSelectStatement;
+    }
+
+    /**
+     * Parameters: the name of the cluster, the owner, the duration of the lease and the current time.
+     */
+    public String getLeaseInsertStatement() {
+        if (leaseInsertStatement == null) {
+            leaseInsertStatement = "INSERT INTO " + getFullLockTableName() + " (NAME, OWNER, VERSION, LEASE, MOMENT) VALUES (?, ?, 1, ?, ?)";
+        }
+        return leaseInsertStatement;
+    }
+
+    public void setLeaseInsertStatement(String leaseInsertStatement) {
+        this.leaseInsertStatement = leaseInsertStatement;
+    }
+
+    /**
+     * Parameters: the new owner, the duration of the lease, the current time, the name of the
+     * cluster and the version of the lease which has been observed.
+     */
+    public String getLeaseTakeOverStatement() {
+        if (leaseTakeOverStatement == null) {
+            leaseTakeOverStatement = "UPDATE " + getFullLockTableName() + " SET OWNER = ?, VERSION = VERSION + 1, LEASE = ?, MOMENT = ? WHERE NAME = ? AND VERSION = ?";
+        }
+        return leaseTakeOverStatement;
+    }
+
+    public void setLeaseTakeOverStatement(String leaseTakeOverStatement) {
+        this.leaseTakeOverStatement = leaseTakeOverStatement;
+    }
+
+    /**
+     * Parameters: the current time, the name of the cluster and the owner.
+     */
+    public String getLeaseRenewStatement() {
+        if (leaseRenewStatement == null) {
+            leaseRenewStatement = "UPDATE " + getFullLockTableName() + " SET VERSION = VERSION + 1, MOMENT = ? WHERE NAME = ? AND OWNER = ?";
+        }
+        return leaseRenewStatement;
+    }
+
+    public void setLeaseRenewStatement(String leaseRenewStatement) {
+        this.leaseRenewStatement = leaseRenewStatement;
+    }
+
+    /**
+     * Parameters: the name of the cluster and the owner.
+     */
+    public String getLeaseReleaseStatement() {
+        if (leaseReleaseStatement == null) {
+            leaseReleaseStatement = "UPDATE " + getFullLockTableName() + " SET OWNER = NULL, VERSION = VERSION + 1 WHERE NAME = ? AND OWNER = ?";
+        }
+        return leaseReleaseStatement;
+    }
+
+    public void setLeaseReleaseStatement(String leaseReleaseStatement) {
+        this.leaseReleaseStatement = leaseReleaseStatement;
+    }
+
+    public String getOwnerColumnDataType() {
+        return ownerColumnDataType;
+    }
+
+    public void setOwnerColumnDataType(String ownerColumnDataType) {
+        this.ownerColumnDataType = ownerColumnDataType;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Acquires a {@link Lock} and keeps it alive from a scheduler thread, notifying a
+ * {@link Listener} each time the lock is acquired or lost.
+ * <p>
+ * Acquire attempts and keepalive checks have their own intervals.  Attempts failing with an
+ * exception, for example because the database is not reachable, are retried with an exponential
+ * backoff bounded by a maximum delay, and all the delays are spread by a random jitter so that
+ * the standby instances do not hit the lock at the same time.  When the lock is a
+ * {@link BlockingLock} and blocking is enabled, the monitor waits for the lock instead of polling
+ * it and acquires it as soon as the previous owner releases it.
+ * </p>
+ */
+public class LockMonitor {
+
+    /**
+     * Notified from the monitor thread of the changes of the lock.
+     */
+    public interface Listener {
+
+        void lockAcquired() throws Exception;
+
+        void lockLost() throws Exception;
+    }
+
+    private static final Logger LOG = Logger.getLogger(LockMonitor.class.getName());
+
+    private final Lock lock;
+    private final Listener listener;
+    private final long acquireDelay;
+    private final long keepAliveDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final boolean blocking;
+    private final Random random = new Random();
+    private ScheduledExecutorService executor;
+    private volatile boolean stopped;
+    private boolean waitingLogged;
+    private int failures;
+
+    /**
+     * @param lock           the lock to acquire
+     * @param listener       the listener notified of the changes of the lock
+     * @param acquireDelay   the delay in milliseconds between two attempts to acquire the lock
+     * @param keepAliveDelay the delay in milliseconds between two checks of the lock once acquired
+     * @param maxDelay       the maximum delay in milliseconds between two attempts failing with an exception
+     * @param jitter         the fraction of each delay by which it is randomly shortened or lengthened
+     * @param blocking       if a {@link BlockingLock} should be waited for rather than polled
+     */
+    public LockMonitor(Lock lock, Listener listener, long acquireDelay, long keepAliveDelay, long maxDelay,
+                       double jitter, boolean blocking) {
+        this.lock = lock;
+        this.listener = listener;
+        this.acquireDelay = acquireDelay;
+        this.keepAliveDelay = keepAliveDelay;
+        this.maxDelay = Math.max(maxDelay, acquireDelay);
+        this.jitter = Math.max(0, Math.min(jitter, 1));
+        this.blocking = blocking && lock instanceof BlockingLock;
+        LOG.addHandler(BootstrapLogManager.getDefaultHandler());
+    }
+
+    public synchronized void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Karaf-lock-monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedule(new Runnable() {
+            public void run() {
+                acquire();
+            }
+        }, 0);
+    }
+
+    /**
+     * Stop monitoring the lock, interrupting a blocked acquire attempt, and wait for the
+     * current task to complete so that the lock can be released safely afterwards.
+     */
+    public void stop() throws InterruptedException {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            stopped = true;
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor.awaitTermination(Math.max(keepAliveDelay, acquireDelay) + 5000, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void acquire() {
+        if (stopped) {
+            return;
+        }
+        boolean acquired;
+        try {
+            acquired = lock.lock();
+            if (!acquired && blocking) {
+                logWaiting();
+                acquired = ((BlockingLock) lock).waitForLock();
+            }
+            failures = 0;
+        } catch (Exception e) {
+            if (stopped) {
+                return;
+            }
+            long delay = backoff(++failures);
+            LOG.log(failures == 1 ? Level.WARNING : Level.FINE,
+                    "Error acquiring the lock, retrying in " + delay + " ms: " + e, e);
+            schedule(new Runnable() {
+                public void run() {
+                    acquire();
+                }
+            }, delay);
+            return;
+        }
+        if (stopped) {
+            return;
+        }
+        if (acquired) {
+            if (waitingLogged) {
+                LOG.info("Lock acquired.");
+                waitingLogged = false;
+            }
+            fire(true);
+            schedule(new Runnable() {
+                public void run() {
+                    keepAlive();
+                }
+            }, jittered(keepAliveDelay));
+        } else {
+            logWaiting();
+            schedule(new Runnable() {
+                public void run() {
+                    acquire();
+                }
+            }, jittered(acquireDelay));
+        }
+    }
+
+    private void keepAlive() {
+        if (stopped) {
+            return;
+        }
+        boolean alive;
+        try {
+            alive = lock.isAlive();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error checking the lock: " + e, e);
+            alive = false;
+        }
+        if (stopped) {
+            return;
+        }
+        if (alive) {
+            schedule(new Runnable() {
+                public void run() {
+                    keepAlive();
+                }
+            }, jittered(keepAliveDelay));
+        } else {
+            fire(false);
+            schedule(new Runnable() {
+                public void run() {
+                    acquire();
+                }
+            }, jittered(acquireDelay));
+        }
+    }
+
+    private void fire(boolean acquired) {
+        try {
+            if (acquired) {
+                listener.lockAcquired();
+            } else {
+                listener.lockLost();
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error handling the " + (acquired ? "acquisition" : "loss") + " of the lock", e);
+        }
+    }
+
+    private void logWaiting() {
+        if (!waitingLogged) {
+            LOG.info("Waiting for the lock ...");
+            waitingLogged = true;
+        }
+    }
+
+    private synchronized void schedule(Runnable task, long delay) {
+        if (executor != null && !stopped) {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    long backoff(int failures) {
+        long delay = acquireDelay;
+        for (int i = 1; i < failures && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        return jittered(Math.min(delay, maxDelay));
+    }
+
+    long jittered(long delay) {
+        if (jitter == 0 || delay <= 0) {
+            return delay;
+        }
+        double factor = 1 + jitter * (2 * random.nextDouble() - 1);
+        return Math.round(delay * factor);
+    }
+
+}
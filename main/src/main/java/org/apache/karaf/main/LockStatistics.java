@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Round-trip times of the checks of a lock, registered in the platform MBean server so that
+ * the delays of the lock can be tuned against the actual latency of the lock storage.
+ */
+public class LockStatistics implements LockStatisticsMBean {
+
+    private static final Logger LOG = Logger.getLogger(LockStatistics.class.getName());
+
+    private long count;
+    private long failures;
+    private long last;
+    private long total;
+    private long max;
+    private ObjectName name;
+
+    public synchronized void keepAlive(long nanos) {
+        count++;
+        last = nanos;
+        total += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    public synchronized void keepAliveFailed() {
+        failures++;
+    }
+
+    public synchronized long getKeepAliveCount() {
+        return count;
+    }
+
+    public synchronized long getKeepAliveFailures() {
+        return failures;
+    }
+
+    public synchronized double getLastKeepAliveTime() {
+        return last / 1000000.0;
+    }
+
+    public synchronized double getMeanKeepAliveTime() {
+        return count > 0 ? total / 1000000.0 / count : 0;
+    }
+
+    public synchronized double getMaxKeepAliveTime() {
+        return max / 1000000.0;
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        failures = 0;
+        last = 0;
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * Register the statistics as <tt>org.apache.karaf:type=lock,name=&lt;name&gt;</tt>.
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("org.apache.karaf:type=lock,name=" + name);
+            server.registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (Exception e) {
+            LOG.fine("Unable to register the lock statistics: " + e);
+        }
+    }
+
+    public void unregister() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                LOG.fine("Unable to unregister the lock statistics: " + e);
+            }
+            name = null;
+        }
+    }
+
+}
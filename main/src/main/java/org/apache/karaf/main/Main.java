@@ -21,13 +21,9 @@ package org.apache.karaf.main;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
-import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.security.AccessControlException;
 import java.security.Provider;
 import java.security.Security;
 import java.util.ArrayList;
@@ -36,9 +32,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -46,12 +47,16 @@ import java.util.regex.Pattern;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.service.startlevel.StartLevel;
 
 /**
@@ -86,6 +91,22 @@ public class Main {
      * The property for auto-discovering the bundles
      */
     public static final String PROPERTY_AUTO_START = "karaf.auto.start";
+    /**
+     * The number of threads used to read and install the bundles of each start level
+     * of the auto-install and auto-start properties
+     */
+    public static final String PROPERTY_STARTUP_THREADS = "karaf.startup.threads";
+    /**
+     * If the startup should be profiled, the timeline being written to the boot-timeline.csv
+     * file of the data directory
+     */
+    public static final String PROPERTY_BOOT_PROFILE = "karaf.boot.profile";
+    /**
+     * If the resolved configuration of the first boot should be stored in the boot-plan.properties
+     * file of the data directory once its final start level is reached, and reused by the next
+     * boots until one of its input files changes; a system property, <tt>true</tt> by default
+     */
+    public static final String PROPERTY_BOOT_PLAN = "karaf.boot.plan";
     /**
      * The system property for specifying the Karaf home directory.  The home directory
      * hold the binary install of Karaf.
@@ -149,8 +170,34 @@ public class Main {
 
     public static final String PROPERTY_LOCK_DELAY = "karaf.lock.delay";
 
+    /**
+     * The delay between two checks of the lock once acquired, defaults to the lock delay
+     */
+    public static final String PROPERTY_LOCK_KEEPALIVE_DELAY = "karaf.lock.keepalive.delay";
+
+    /**
+     * The maximum delay between two attempts to acquire the lock when they fail with an error
+     */
+    public static final String PROPERTY_LOCK_MAX_DELAY = "karaf.lock.max.delay";
+
+    /**
+     * The fraction of the lock delays by which they are randomly spread
+     */
+    public static final String PROPERTY_LOCK_JITTER = "karaf.lock.jitter";
+
+    /**
+     * If the lock should be waited for instead of polled, when the lock implementation supports it
+     */
+    public static final String PROPERTY_LOCK_BLOCKING = "karaf.lock.blocking";
+
     public static final String PROPERTY_LOCK_LEVEL = "karaf.lock.level";
 
+    /**
+     * If a standby instance should resolve all its bundles while waiting for the lock,
+     * so that it only has to start the bundles above the lock level when it takes over
+     */
+    public static final String PROPERTY_LOCK_WARM = "karaf.lock.warm";
+
     public static final String DEFAULT_REPO = "karaf.default.repository";
     
     public static final String KARAF_FRAMEWORK = "karaf.framework";
@@ -171,6 +218,23 @@ public class Main {
 
     public static final String DEFAULT_SHUTDOWN_COMMAND = "SHUTDOWN";
 
+    /**
+     * The time in milliseconds allowed to a connection to a control port to send its command
+     */
+    public static final String KARAF_CONTROL_TIMEOUT = "karaf.control.timeout";
+
+    /**
+     * The maximum length of a command sent to a control port
+     */
+    public static final String KARAF_CONTROL_MAX_COMMAND = "karaf.control.max.command";
+
+    /**
+     * The port answering the status of the container to any command, disabled by default
+     */
+    public static final String KARAF_STATUS_PORT = "karaf.status.port";
+
+    public static final String KARAF_STATUS_HOST = "karaf.status.host";
+
     public static final String PROPERTY_LOCK_CLASS_DEFAULT = SimpleFileLock.class.getName();
 
     public static final String INCLUDES_PROPERTY = "${includes}";
@@ -186,12 +250,18 @@ public class Main {
     private final String[] args;
     private int exitCode;
     private Lock lock;
+    private LockMonitor lockMonitor;
+    private volatile long takeoverTime = -1;
+    private FrameworkListener takeoverListener;
+    private volatile boolean master;
     private int defaultStartLevel = 100;
     private int lockStartLevel = 1;
     private int lockDelay = 1000;
     private int shutdownTimeout = 5 * 60 * 1000;
-    private boolean exiting = false;
+    private volatile boolean exiting = false;
     private ShutdownCallback shutdownCallback;
+    private BootProfiler profiler;
+    private boolean bootPlanAllowed = true;
 
     public Main(String[] args) {
         this.args = args;
@@ -216,20 +286,59 @@ public class Main {
         System.setProperty(PROP_KARAF_DATA, karafData.getPath());
         System.setProperty(PROP_KARAF_INSTANCES, karafInstances.getPath());
 
-        // Load system properties.
-        loadSystemProperties(karafBase);
+        if (Boolean.getBoolean(PROPERTY_BOOT_PROFILE)) {
+            profiler = new BootProfiler(new File(karafData, "boot-timeline.csv"), 5000, 60000);
+            profiler.record(BootProfiler.PHASE, "jvm", 0, profiler.now());
+            profiler.begin("configuration");
+        }
 
-        updateInstancePid();
+        // Use the plan of a previous boot if none of its inputs changed
+        Properties initialSystemProps = new Properties();
+        initialSystemProps.putAll(System.getProperties());
+        File bootPlanFile = new File(karafData, "boot-plan.properties");
+        boolean useBootPlan = Boolean.parseBoolean(System.getProperty(PROPERTY_BOOT_PLAN, "true"));
+        BootPlan bootPlan = null;
+        if (useBootPlan) {
+            try {
+                bootPlan = BootPlan.load(bootPlanFile, initialSystemProps);
+            } catch (Exception e) {
+                System.err.println("Main: Ignoring boot plan " + bootPlanFile + ": " + e);
+            }
+        }
+        Properties systemProps = new Properties();
+        List<File> bootInputs = new ArrayList<File>();
+        List<URL> classPath;
+        if (bootPlan != null) {
+            for (Enumeration e = bootPlan.getSystemProperties().propertyNames(); e.hasMoreElements();) {
+                String name = (String) e.nextElement();
+                System.setProperty(name, bootPlan.getSystemProperties().getProperty(name));
+            }
+            updateInstancePid();
+            configProps = new Properties();
+            configProps.putAll(bootPlan.getConfigProperties());
+            classPath = bootPlan.getClassPath();
+        } else {
+            // Load system properties.
+            loadSystemProperties(karafBase, systemProps, bootInputs);
 
-        // Read configuration properties.
-        configProps = loadConfigProperties();
+            updateInstancePid();
+
+            // Read configuration properties.
+            configProps = loadConfigProperties(bootInputs);
+            classPath = getClassPath(configProps, bootInputs);
+        }
+        Properties resolvedConfigProps = new Properties();
+        resolvedConfigProps.putAll(configProps);
         BootstrapLogManager.setProperties(configProps);
         LOG.addHandler(BootstrapLogManager.getDefaultHandler());
-        
+        if (bootPlan != null) {
+            LOG.fine("Using the boot plan " + bootPlanFile);
+        }
+
         // Copy framework properties from the system properties.
         Main.copySystemProperties(configProps);
 
-        ClassLoader classLoader = createClassLoader(configProps);
+        ClassLoader classLoader = new URLClassLoader(classPath.toArray(new URL[classPath.size()]), Main.class.getClassLoader());
 
         processSecurityProperties(configProps);
 
@@ -248,6 +357,10 @@ public class Main {
         lockDelay = Integer.parseInt(configProps.getProperty(PROPERTY_LOCK_DELAY, Integer.toString(lockDelay)));
         configProps.setProperty(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, Integer.toString(lockStartLevel));
         shutdownTimeout = Integer.parseInt(configProps.getProperty(KARAF_SHUTDOWN_TIMEOUT, Integer.toString(shutdownTimeout)));
+        if (profiler != null) {
+            profiler.end("configuration");
+            profiler.begin("framework");
+        }
         // Start up the OSGI framework
 
         String factoryClass = configProps.getProperty(KARAF_FRAMEWORK_FACTORY);
@@ -259,8 +372,29 @@ public class Main {
         }
         FrameworkFactory factory = (FrameworkFactory) classLoader.loadClass(factoryClass).newInstance();
         framework = factory.newFramework(new StringMap(configProps, false));
+        if (profiler != null) {
+            framework.init();
+            profiler.attach(framework.getBundleContext());
+        }
         framework.start();
+        if (profiler != null) {
+            profiler.end("framework");
+            profiler.begin("auto-properties");
+        }
         processAutoProperties(framework.getBundleContext());
+        if (profiler != null) {
+            profiler.end("auto-properties");
+        }
+        if (useBootPlan && bootPlan == null && bootPlanAllowed) {
+            try {
+                // fingerprint the inputs as they were read, so that a change made during the boot is detected
+                String fingerprint = BootPlan.fingerprint(initialSystemProps, bootInputs);
+                storeBootPlanOnStart(new BootPlan(systemProps, resolvedConfigProps, classPath, bootInputs, fingerprint), bootPlanFile);
+            } catch (Exception e) {
+                System.err.println("Main: Unable to fingerprint the boot plan " + bootPlanFile + ": " + e);
+            }
+        }
+        setupStatus(configProps);
         // Start lock monitor
         new Thread() {
             public void run() {
@@ -282,6 +416,9 @@ public class Main {
         if (framework == null) {
             return true;
         }
+        if (profiler != null) {
+            profiler.complete();
+        }
         try {
             int step = 5000;
 
@@ -321,6 +458,9 @@ public class Main {
             return false;
         } finally {
             unlock();
+            if (controlServer != null) {
+                controlServer.close();
+            }
         }
     }
 
@@ -588,29 +728,67 @@ public class Main {
             }
             autoStart.put(startLevel, configProps.getProperty(key));
         }
-        for (Integer startLevel : autoStart.keySet()) {
-            StringTokenizer st = new StringTokenizer(autoStart.get(startLevel), "\" ", true);
-            if (st.countTokens() > 0) {
-                String location;
-                do {
-                    location = nextLocation(st);
-                    if (location != null) {
+        int threads = Integer.parseInt(configProps.getProperty(PROPERTY_STARTUP_THREADS, "1"));
+        ExecutorService executor = threads > 1 && !autoStart.isEmpty() ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Karaf-startup-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        try {
+            for (Integer startLevel : autoStart.keySet()) {
+                long t0 = System.currentTimeMillis();
+                List<String> locations = new ArrayList<String>();
+                StringTokenizer st = new StringTokenizer(autoStart.get(startLevel), "\" ", true);
+                if (st.countTokens() > 0) {
+                    String location;
+                    do {
+                        location = nextLocation(st);
+                        if (location != null) {
+                            locations.add(location);
+                        }
+                    }
+                    while (location != null);
+                }
+                if (profiler != null && !locations.isEmpty()) {
+                    profiler.begin(propertyPrefix + "." + startLevel);
+                }
+                List<Bundle> installed;
+                if (executor != null) {
+                    installed = installBundles(executor, context, locations, convertToMavenUrls);
+                } else {
+                    installed = new ArrayList<Bundle>();
+                    for (String location : locations) {
                         try {
-                            String[] parts = convertToMavenUrlsIfNeeded(location, convertToMavenUrls);
-                            Bundle b = context.installBundle(parts[0], new URL(parts[1]).openStream());
-                            sl.setBundleStartLevel(b, startLevel);
-                            bundles.add(b);
+                            installed.add(installBundle(context, location, convertToMavenUrls));
                         }
                         catch (Exception ex) {
                             System.err.println("Error installing bundle  " + location + ": " + ex);
                         }
                     }
                 }
-                while (location != null);
+                for (Bundle b : installed) {
+                    sl.setBundleStartLevel(b, startLevel);
+                    bundles.add(b);
+                }
+                if (profiler != null) {
+                    profiler.end(propertyPrefix + "." + startLevel);
+                }
+                if (!locations.isEmpty()) {
+                    LOG.info("Installed " + installed.size() + " bundles at start level " + startLevel
+                            + " in " + (System.currentTimeMillis() - t0) + " ms");
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
             }
         }
         // Now loop through and start the installed bundles.
         if (start) {
+            long t0 = System.currentTimeMillis();
             for (Bundle b : bundles) {
                 try {
                     String fragmentHostHeader = (String) b.getHeaders().get(Constants.FRAGMENT_HOST);
@@ -622,10 +800,79 @@ public class Main {
                     System.err.println("Error starting bundle " + b.getSymbolicName() + ": " + ex);
                 }
             }
+            LOG.info("Started " + bundles.size() + " bundles in " + (System.currentTimeMillis() - t0) + " ms");
+        }
+        return bundles;
+    }
+
+    /**
+     * Install the bundles of a start level, reading their content concurrently.  The bundles
+     * are installed one after the other, in the order of their locations, as the framework
+     * serializes the installations anyway, while the jars of the next bundles are being read.
+     */
+    private List<Bundle> installBundles(ExecutorService executor, BundleContext context, List<String> locations,
+                                        boolean convertToMavenUrls) {
+        List<String[]> parts = new ArrayList<String[]>();
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (String location : locations) {
+            final String[] p;
+            try {
+                p = convertToMavenUrlsIfNeeded(location, convertToMavenUrls);
+            } catch (Exception ex) {
+                // skip this bundle only, as the serial installation does
+                System.err.println("Error installing bundle  " + location + ": " + ex);
+                parts.add(null);
+                futures.add(null);
+                continue;
+            }
+            parts.add(p);
+            futures.add(executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return readBundle(p[1]);
+                }
+            }));
+        }
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < futures.size(); i++) {
+            if (futures.get(i) == null) {
+                continue;
+            }
+            try {
+                byte[] content = futures.get(i).get();
+                bundles.add(context.installBundle(parts.get(i)[0], new ByteArrayInputStream(content)));
+            } catch (ExecutionException ex) {
+                System.err.println("Error installing bundle  " + locations.get(i) + ": " + ex.getCause());
+            } catch (InterruptedException ex) {
+                System.err.println("Error installing bundle  " + locations.get(i) + ": " + ex);
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                System.err.println("Error installing bundle  " + locations.get(i) + ": " + ex);
+            }
         }
         return bundles;
     }
 
+    private static Bundle installBundle(BundleContext context, String location, boolean convertToMavenUrls) throws Exception {
+        String[] parts = convertToMavenUrlsIfNeeded(location, convertToMavenUrls);
+        InputStream is = new URL(parts[1]).openStream();
+        return context.installBundle(parts[0], is);
+    }
+
+    private static byte[] readBundle(String url) throws IOException {
+        InputStream is = new URL(url).openStream();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
     private static String[] convertToMavenUrlsIfNeeded(String location, boolean convertToMavenUrls) {
         String[] parts = location.split("\\|");
         if (convertToMavenUrls) {
@@ -731,6 +978,17 @@ public class Main {
      * @param karafBase the karaf base folder
      */
     protected static void loadSystemProperties(File karafBase) {
+        loadSystemProperties(karafBase, null, null);
+    }
+
+    /**
+     * Loads the system properties, see {@link #loadSystemProperties(File)}.
+     *
+     * @param karafBase the karaf base folder
+     * @param resolved  if not <tt>null</tt>, receives the properties which have been set
+     * @param inputs    if not <tt>null</tt>, receives the file the properties have been read from
+     */
+    private static void loadSystemProperties(File karafBase, Properties resolved, List<File> inputs) {
         // The system properties file is either specified by a system
         // property or it is in the same directory as the Felix JAR file.
         // Try to load it from one of these places.
@@ -745,6 +1003,9 @@ public class Main {
             System.err.print("Main: " + ex);
             return;
         }
+        if (inputs != null) {
+            inputs.add(new File(new File(karafBase, "etc"), SYSTEM_PROPERTIES_FILE_NAME));
+        }
 
         // Read the properties file.
         Properties props = new Properties();
@@ -774,7 +1035,11 @@ public class Main {
         for (Enumeration e = props.propertyNames(); e.hasMoreElements();) {
             String name = (String) e.nextElement();
             String value = System.getProperty(name, props.getProperty(name));
-            System.setProperty(name, substVars(value, name, null, null));
+            value = substVars(value, name, null, null);
+            System.setProperty(name, value);
+            if (resolved != null) {
+                resolved.setProperty(name, value);
+            }
         }
     }
 
@@ -793,10 +1058,11 @@ public class Main {
      * system property to an arbitrary URL.
      * </p>
      *
+     * @param inputs receives the files the properties depend on
      * @return A <tt>Properties</tt> instance or <tt>null</tt> if there was an error.
      * @throws Exception if something wrong occurs
      */
-    private Properties loadConfigProperties() throws Exception {
+    private Properties loadConfigProperties(List<File> inputs) throws Exception {
         // The config properties file is either specified by a system
         // property or it is in the conf/ directory of the Felix
         // installation directory.  Try to load it from one of these
@@ -822,8 +1088,17 @@ public class Main {
         }
 
 
-        Properties configProps = loadPropertiesFile(configPropURL, false);
-        Properties startupProps = loadPropertiesFile(startupPropURL, true);
+        List<URL> urls = new ArrayList<URL>();
+        Properties configProps = loadPropertiesFile(configPropURL, false, urls);
+        Properties startupProps = loadPropertiesFile(startupPropURL, true, urls);
+        for (URL url : urls) {
+            if ("file".equals(url.getProtocol())) {
+                inputs.add(new File(url.toURI()));
+            } else {
+                // changes of remote files can not be detected
+                bootPlanAllowed = false;
+            }
+        }
 
         String defaultRepo = System.getProperty(DEFAULT_REPO, "system");
 
@@ -851,6 +1126,7 @@ public class Main {
                         }
                         if (f.exists() && f.isDirectory()) {
                             bundleDirs.add(f);
+                            inputs.add(f);
                         } else {
                             System.err.println("Bundle location " + location
                                     + " does not exist or is not a directory.");
@@ -870,12 +1146,19 @@ public class Main {
         }
 
         // Mutate properties
-        Main.processConfigurationProperties(configProps, startupProps, bundleDirs);
+        Main.processConfigurationProperties(configProps, startupProps, bundleDirs, inputs);
 
         return configProps;
     }
 
     protected static Properties loadPropertiesFile(URL configPropURL, boolean failIfNotFound) throws Exception {
+        return loadPropertiesFile(configPropURL, failIfNotFound, null);
+    }
+
+    private static Properties loadPropertiesFile(URL configPropURL, boolean failIfNotFound, List<URL> loaded) throws Exception {
+        if (loaded != null) {
+            loaded.add(configPropURL);
+        }
         // Read the properties file.
         Properties configProps = new Properties();
         InputStream is = null;
@@ -912,7 +1195,7 @@ public class Main {
                     location = nextLocation(st);
                     if (location != null) {
                         URL url = new URL(configPropURL, location);
-                        Properties props = loadPropertiesFile(url, true);
+                        Properties props = loadPropertiesFile(url, true, loaded);
                         configProps.putAll(props);
                     }
                 }
@@ -942,7 +1225,7 @@ public class Main {
         }
     }
     
-    private ClassLoader createClassLoader(Properties configProps) throws Exception {
+    private List<URL> getClassPath(Properties configProps, List<File> inputs) throws Exception {
     	String framework = configProps.getProperty(KARAF_FRAMEWORK);
         if (framework == null) {
             throw new IllegalArgumentException("Property " + KARAF_FRAMEWORK + " must be set in the etc/" + CONFIG_PROPERTIES_FILE_NAME + " configuration file");
@@ -953,6 +1236,8 @@ public class Main {
         }
         File bundleFile = new File(karafBase, bundle);
         if (!bundleFile.exists()) {
+            // a framework added to the base later takes precedence over the one of the home
+            inputs.add(bundleFile);
             bundleFile = new File(karafHome, bundle);
         }
         if (!bundleFile.exists()) {
@@ -961,16 +1246,20 @@ public class Main {
 
         List<URL> urls = new ArrayList<URL>();
         urls.add( bundleFile.toURI().toURL() );
-        File[] libs = new File(karafHome, "lib").listFiles();
+        inputs.add(bundleFile);
+        File lib = new File(karafHome, "lib");
+        inputs.add(lib);
+        File[] libs = lib.listFiles();
         if (libs != null) {
             for (File f : libs) {
                 if (f.isFile() && f.canRead() && f.getName().endsWith(".jar")) {
                     urls.add(f.toURI().toURL());
+                    inputs.add(f);
                 }
             }
         }
 
-        return new URLClassLoader(urls.toArray(new URL[urls.size()]), Main.class.getClassLoader());
+        return urls;
     }
 
     /**
@@ -979,8 +1268,9 @@ public class Main {
      * @param configProps properties loaded from etc/config.properties
      * @param startupProps properties loaded from etc/startup.properties
      * @param bundleDirs location to load bundles from (usually system/)
+     * @param inputs receives the bundles and the scanned directories
      */
-    private static void processConfigurationProperties(Properties configProps, Properties startupProps, List<File> bundleDirs) {
+    private static void processConfigurationProperties(Properties configProps, Properties startupProps, List<File> bundleDirs, List<File> inputs) {
         if (bundleDirs == null) {
             return;
         }
@@ -990,7 +1280,7 @@ public class Main {
 
             // We should start all the bundles in the system dir.
             for (File bundleDir : bundleDirs) {
-                findJars(bundleDir, jars);
+                findJars(bundleDir, jars, inputs);
             }
 
             StringBuffer sb = new StringBuffer();
@@ -1011,7 +1301,7 @@ public class Main {
             HashMap<Integer, StringBuffer> levels = new HashMap<Integer, StringBuffer>();
             for (Object o : startupProps.keySet()) {
                 String name = (String) o;
-                File file = findFile(bundleDirs, name);
+                File file = findFile(bundleDirs, name, inputs);
 
                 if (file != null) {
                     Integer level;
@@ -1043,9 +1333,18 @@ public class Main {
 
     }
 
-    private static File findFile(List<File> bundleDirs, String name) {
+    /**
+     * Looks for a bundle in the given directories, in order.
+     *
+     * @param bundleDirs the directories to search
+     * @param name       the path of the bundle relative to a directory
+     * @param inputs     receives every directory walked and every candidate probed, so that
+     *                   a bundle later added ahead of the one found invalidates the boot plan
+     * @return the bundle, or <tt>null</tt> if it could not be found
+     */
+    static File findFile(List<File> bundleDirs, String name, List<File> inputs) {
         for (File bundleDir : bundleDirs) {
-            File file = findFile(bundleDir, name);
+            File file = findFile(bundleDir, name, inputs);
             if (file != null) {
                 return file;
             }
@@ -1053,8 +1352,10 @@ public class Main {
         return null;
     }
 
-    private static File findFile(File dir, String name) {
+    private static File findFile(File dir, String name, List<File> inputs) {
         File theFile = new File(dir, name);
+        inputs.add(dir);
+        inputs.add(theFile);
 
         if (theFile.exists() && !theFile.isDirectory()) {
             return theFile;
@@ -1062,20 +1363,22 @@ public class Main {
 
         for (File file : dir.listFiles()) {
             if (file.isDirectory()) {
-                return findFile(file, name);
+                return findFile(file, name, inputs);
             }
         }
 
         return null;
     }
 
-    private static void findJars(File dir, ArrayList<File> jars) {
+    private static void findJars(File dir, ArrayList<File> jars, List<File> inputs) {
+        inputs.add(dir);
         for (File file : dir.listFiles()) {
             if (file.isDirectory()) {
-                findJars(file, jars);
+                findJars(file, jars, inputs);
             } else {
                 if (file.toString().endsWith(".jar")) {
                     jars.add(file);
+                    inputs.add(file);
                 }
             }
         }
@@ -1222,6 +1525,7 @@ public class Main {
             if (Boolean.parseBoolean(props.getProperty(PROPERTY_USE_LOCK, "true"))) {
                 doLock(props);
             } else {
+                master = true;
                 setStartLevel(defaultStartLevel);
             }
         } catch (Exception e) {
@@ -1229,37 +1533,184 @@ public class Main {
         }
     }
 
-    private void doLock(Properties props) throws Exception {
+    private void doLock(final Properties props) throws Exception {
         String clz = props.getProperty(PROPERTY_LOCK_CLASS, PROPERTY_LOCK_CLASS_DEFAULT);
         lock = (Lock) Class.forName(clz).getConstructor(Properties.class).newInstance(props);
-        boolean lockLogged = false;
+        if (Boolean.parseBoolean(props.getProperty(PROPERTY_LOCK_WARM, "false"))) {
+            WarmStandby warmStandby = new WarmStandby();
+            BundleContext ctx = framework.getBundleContext();
+            ctx.addFrameworkListener(warmStandby);
+            ctx.addBundleListener(warmStandby);
+        }
         setStartLevel(lockStartLevel);
-        while (!exiting) {
-            if (lock.lock()) {
-                if (lockLogged) {
-                    LOG.info("Lock acquired.");
+        if (profiler != null) {
+            profiler.begin("lock");
+        }
+        long keepAliveDelay = Long.parseLong(props.getProperty(PROPERTY_LOCK_KEEPALIVE_DELAY, Integer.toString(lockDelay)));
+        long maxDelay = Long.parseLong(props.getProperty(PROPERTY_LOCK_MAX_DELAY, Long.toString(lockDelay * 10L)));
+        double jitter = Double.parseDouble(props.getProperty(PROPERTY_LOCK_JITTER, "0.1"));
+        boolean blocking = Boolean.parseBoolean(props.getProperty(PROPERTY_LOCK_BLOCKING, "false"));
+        synchronized (this) {
+            if (exiting) {
+                return;
+            }
+            lockMonitor = new LockMonitor(lock, new LockMonitor.Listener() {
+                public void lockAcquired() throws Exception {
+                    if (profiler != null) {
+                        profiler.end("lock");
+                    }
+                    reportTakeover(System.currentTimeMillis());
+                    master = true;
+                    setupShutdown(props);
+                    setStartLevel(defaultStartLevel);
                 }
-                setupShutdown(props);
-                setStartLevel(defaultStartLevel);
-                for (;;) {
-                    if (!lock.isAlive()) {
-                        break;
+                public void lockLost() throws Exception {
+                    master = false;
+                    removeTakeoverListener();
+                    if (framework.getState() == Bundle.ACTIVE && !exiting) {
+                        LOG.info("Lost the lock, stopping this instance ...");
+                        setStartLevel(lockStartLevel);
                     }
-                    Thread.sleep(lockDelay);
                 }
-                if (framework.getState() == Bundle.ACTIVE && !exiting) {
-                    LOG.info("Lost the lock, stopping this instance ...");
-                    setStartLevel(lockStartLevel);
+            }, lockDelay, keepAliveDelay, maxDelay, jitter, blocking);
+            lockMonitor.start();
+        }
+    }
+
+    /**
+     * Resolve the installed bundles, including the ones above the lock level which are not started yet.
+     */
+    private void resolveBundles() {
+        long t0 = System.currentTimeMillis();
+        BundleContext ctx = framework.getBundleContext();
+        ServiceReference ref = ctx.getServiceReference(PackageAdmin.class.getName());
+        if (ref == null) {
+            return;
+        }
+        try {
+            PackageAdmin packageAdmin = (PackageAdmin) ctx.getService(ref);
+            boolean resolved = packageAdmin.resolveBundles(null);
+            LOG.info("Resolved the bundles in " + (System.currentTimeMillis() - t0) + " ms"
+                    + (resolved ? "" : ", some bundles could not be resolved"));
+        } finally {
+            ctx.ungetService(ref);
+        }
+    }
+
+    /**
+     * Resolves the bundles of a standby instance once the framework has reached the lock level,
+     * and again each time a bundle is installed while it waits for the lock.
+     */
+    private class WarmStandby implements FrameworkListener, BundleListener {
+
+        public void frameworkEvent(FrameworkEvent event) {
+            if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED) {
+                resolveInStandby();
+            }
+        }
+
+        public void bundleChanged(BundleEvent event) {
+            if (event.getType() == BundleEvent.INSTALLED) {
+                resolveInStandby();
+            }
+        }
+
+        private void resolveInStandby() {
+            if (!master && getActiveStartLevel() == lockStartLevel) {
+                resolveBundles();
+            }
+        }
+    }
+
+    /**
+     * Store the boot plan once the framework reaches its final start level, so that only the
+     * configuration of a successful boot is reused.
+     */
+    private void storeBootPlanOnStart(final BootPlan plan, final File file) {
+        final BundleContext ctx = framework.getBundleContext();
+        ctx.addFrameworkListener(new FrameworkListener() {
+            public void frameworkEvent(FrameworkEvent event) {
+                if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED && getActiveStartLevel() >= defaultStartLevel) {
+                    ctx.removeFrameworkListener(this);
+                    try {
+                        plan.store(file);
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, "Unable to store the boot plan " + file, e);
+                    }
                 }
-            } else if (!lockLogged) {
-                LOG.info("Waiting for the lock ...");
-                lockLogged = true;
             }
-            Thread.sleep(lockDelay);
+        });
+    }
+
+    /**
+     * Log the time from the acquisition of the lock to the start of all the bundles.
+     */
+    private synchronized void reportTakeover(final long acquired) {
+        removeTakeoverListener();
+        final BundleContext ctx = framework.getBundleContext();
+        takeoverListener = new FrameworkListener() {
+            public void frameworkEvent(FrameworkEvent event) {
+                if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED) {
+                    int level = getActiveStartLevel();
+                    if (level >= defaultStartLevel) {
+                        ctx.removeFrameworkListener(this);
+                        takeoverTime = System.currentTimeMillis() - acquired;
+                        LOG.info("Reached start level " + level + " in " + takeoverTime + " ms after acquiring the lock");
+                    }
+                }
+            }
+        };
+        ctx.addFrameworkListener(takeoverListener);
+    }
+
+    /**
+     * Stop waiting for the start level of the last acquisition of the lock, if it has not been reached.
+     */
+    private synchronized void removeTakeoverListener() {
+        if (takeoverListener != null) {
+            BundleContext ctx = framework.getBundleContext();
+            if (ctx != null) {
+                try {
+                    ctx.removeFrameworkListener(takeoverListener);
+                } catch (IllegalStateException e) {
+                    // the framework is stopping
+                }
+            }
+            takeoverListener = null;
+        }
+    }
+
+    /**
+     * The active start level of the framework, or -1 if it is not known.
+     */
+    private int getActiveStartLevel() {
+        int level = -1;
+        BundleContext ctx = framework.getBundleContext();
+        ServiceReference ref = ctx != null ? ctx.getServiceReference(StartLevel.class.getName()) : null;
+        if (ref != null) {
+            level = ((StartLevel) ctx.getService(ref)).getStartLevel();
+            ctx.ungetService(ref);
         }
+        return level;
+    }
+
+    /**
+     * The time in milliseconds from the last acquisition of the lock to the start of all the bundles,
+     * or -1 if the lock has not been acquired yet.
+     */
+    public long getTakeoverTime() {
+        return takeoverTime;
     }
 
     public void unlock() throws Exception {
+        LockMonitor monitor;
+        synchronized (this) {
+            monitor = lockMonitor;
+            lockMonitor = null;
+        }
+        if (monitor != null) {
+            monitor.stop();
+        }
         if (lock != null) {
             lock.release();
         }
@@ -1269,12 +1720,15 @@ public class Main {
         BundleContext ctx = framework.getBundleContext();
         ServiceReference[] refs = ctx.getServiceReferences(StartLevel.class.getName(), null);
         StartLevel sl = (StartLevel) ctx.getService(refs[0]);
+        if (profiler != null) {
+            profiler.startLevel(level, level == defaultStartLevel);
+        }
         sl.setStartLevel(level);
     }
 
 
-    private Random random = null;
-    private ServerSocket shutdownSocket;
+    private ControlServer controlServer;
+    private boolean shutdownListening;
 
     protected void setupShutdown(Properties props) {
         writePid(props);
@@ -1283,25 +1737,84 @@ public class Main {
             String host = props.getProperty(KARAF_SHUTDOWN_HOST, "localhost");
             String portFile = props.getProperty(KARAF_SHUTDOWN_PORT_FILE);
             final String shutdown = props.getProperty(KARAF_SHUTDOWN_COMMAND, DEFAULT_SHUTDOWN_COMMAND);
-            if (port >= 0) {
-                shutdownSocket = new ServerSocket(port, 1, InetAddress.getByName(host));
-                if (port == 0) {
-                    port = shutdownSocket.getLocalPort();
-                }
+            if (port >= 0 && !shutdownListening) {
+                port = getControlServer(props).listen(host, port, new ControlServer.Handler() {
+                    public String handle(String command) throws Exception {
+                        if (command.equals(shutdown)) {
+                            LOG.log(Level.INFO, "Karaf shutdown socket: received shutdown command. Stopping framework...");
+                            framework.stop();
+                        } else {
+                            LOG.log(Level.WARNING, "Karaf shutdown socket:  Invalid command '" +
+                                               command + "' received");
+                        }
+                        return null;
+                    }
+                });
+                // the lock may be lost and acquired again, keep the first port
+                shutdownListening = true;
                 if (portFile != null) {
                     Writer w = new OutputStreamWriter(new FileOutputStream(portFile));
                     w.write(Integer.toString(port));
                     w.close();
                 }
-                Thread thread = new ShutdownSocketThread(shutdown);
-                thread.setDaemon(true);
-                thread.start();
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Listen on the status port, if enabled, whether this instance holds the lock or not.
+     */
+    private void setupStatus(Properties props) {
+        try {
+            int port = Integer.parseInt(props.getProperty(KARAF_STATUS_PORT, "-1"));
+            String host = props.getProperty(KARAF_STATUS_HOST, "localhost");
+            if (port >= 0) {
+                port = getControlServer(props).listen(host, port, new ControlServer.Handler() {
+                    public String handle(String command) {
+                        return getStatus();
+                    }
+                });
+                LOG.info("Karaf status socket listening on port " + port);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized ControlServer getControlServer(Properties props) throws IOException {
+        if (controlServer == null) {
+            long timeout = Long.parseLong(props.getProperty(KARAF_CONTROL_TIMEOUT, "10000"));
+            int maxCommand = Integer.parseInt(props.getProperty(KARAF_CONTROL_MAX_COMMAND, "1024"));
+            String shutdown = props.getProperty(KARAF_SHUTDOWN_COMMAND, DEFAULT_SHUTDOWN_COMMAND);
+            controlServer = new ControlServer(timeout, Math.max(maxCommand, shutdown.length()));
+        }
+        return controlServer;
+    }
+
+    /**
+     * The status line answered on the status port, for example
+     * <tt>state=ACTIVE startlevel=100 role=master</tt>.
+     */
+    String getStatus() {
+        String state;
+        switch (framework.getState()) {
+            case Bundle.STARTING:
+                state = "STARTING";
+                break;
+            case Bundle.ACTIVE:
+                state = "ACTIVE";
+                break;
+            case Bundle.STOPPING:
+                state = "STOPPING";
+                break;
+            default:
+                state = "STOPPED";
+        }
+        return "state=" + state + " startlevel=" + getActiveStartLevel() + " role=" + (master ? "master" : "standby") + "\n";
+    }
+
     private void writePid(Properties props) {
         try {
             String pidFile = props.getProperty(KARAF_SHUTDOWN_PID_FILE);
@@ -1321,85 +1834,4 @@ public class Main {
             e.printStackTrace();
         }
     }
-
-    private class ShutdownSocketThread extends Thread {
-
-        private final String shutdown;
-
-        public ShutdownSocketThread(String shutdown) {
-            this.shutdown = shutdown;
-        }
-
-        public void run() {
-            try {
-                while (true) {
-                    // Wait for the next connection
-                    Socket socket = null;
-                    InputStream stream = null;
-                    try {
-                        socket = shutdownSocket.accept();
-                        socket.setSoTimeout(10 * 1000);  // Ten seconds
-                        stream = socket.getInputStream();
-                    } catch (AccessControlException ace) {
-                        LOG.log(Level.WARNING, "Karaf shutdown socket: security exception: "
-                                           + ace.getMessage(), ace);
-                        continue;
-                    } catch (IOException e) {
-                        LOG.log(Level.SEVERE, "Karaf shutdown socket: accept: ", e);
-                        System.exit(1);
-                    }
-
-                    // Read a set of characters from the socket
-                    StringBuilder command = new StringBuilder();
-                    int expected = 1024; // Cut off to avoid DoS attack
-                    while (expected < shutdown.length()) {
-                        if (random == null) {
-                            random = new Random();
-                        }
-                        expected += (random.nextInt() % 1024);
-                    }
-                    while (expected > 0) {
-                        int ch;
-                        try {
-                            ch = stream.read();
-                        } catch (IOException e) {
-                            LOG.log(Level.WARNING, "Karaf shutdown socket:  read: ", e);
-                            ch = -1;
-                        }
-                        if (ch < 32) {  // Control character or EOF terminates loop
-                            break;
-                        }
-                        command.append((char) ch);
-                        expected--;
-                    }
-
-                    // Close the socket now that we are done with it
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        // Ignore
-                    }
-
-                    // Match against our command string
-                    boolean match = command.toString().equals(shutdown);
-                    if (match) {
-                        LOG.log(Level.INFO, "Karaf shutdown socket: received shutdown command. Stopping framework...");
-                        framework.stop();
-                        break;
-                    } else {
-                        LOG.log(Level.WARNING, "Karaf shutdown socket:  Invalid command '" +
-                                           command.toString() + "' received");
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    shutdownSocket.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A lock for instances sharing a directory, possibly from several hosts over a network file system.
+ * <p>
+ * The master holds a file lock on the <tt>lock</tt> file of the directory and keeps a heartbeat
+ * record up to date in the memory-mapped <tt>heartbeat</tt> file: the id of the owner, a counter
+ * incremented on each check of the lock and the time of the last heartbeat.  As file locks are
+ * not reliable on all network file systems, the record is what decides the ownership: the standby
+ * instances read it and consider the master dead when its counter has not changed for
+ * <tt>karaf.lock.heartbeat.timeout</tt> milliseconds, measured on their own clock.  They then
+ * take the record over even if the file lock of the dead master is still held.  As another standby
+ * may take it over at the same time, and its write may not be visible from another host before the
+ * attributes cached by the mount expire, the lock is only reported as acquired once the record
+ * still shows this owner after the heartbeat timeout, and at least the default attribute cache time
+ * of NFS, has elapsed.  The claimer beats while it waits, like a master.
+ * </p>
+ * <p>
+ * The record is read through a new file descriptor each time, so that the close-to-open
+ * consistency of NFS revalidates the cached pages of the file.  The heartbeat timeout should
+ * still exceed the attribute cache time of the mount, as a mount without close-to-open
+ * consistency only sees the changes of another host once its cached attributes expire.
+ * </p>
+ */
+public class SharedFileLock implements Lock {
+
+    private static final Logger LOG = Logger.getLogger(SharedFileLock.class.getName());
+
+    private static final String PROPERTY_LOCK_DIR = "karaf.lock.dir";
+    private static final String PROPERTY_LOCK_OWNER = "karaf.lock.owner";
+    private static final String PROPERTY_HEARTBEAT_TIMEOUT = "karaf.lock.heartbeat.timeout";
+    private static final String PROP_KARAF_BASE = "karaf.base";
+    private static final String DEFAULT_HEARTBEAT_TIMEOUT = "10000"; // in milliseconds
+    private static final long MIN_ATTRIBUTE_CACHE_TIME = 3000; // the default acregmin of NFS, in milliseconds
+
+    // layout of the heartbeat record
+    private static final int RECORD_SIZE = 256;
+    private static final int COUNTER = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int OWNER_LENGTH = 16;
+    private static final int OWNER = 20;
+    private static final int MAX_OWNER_LENGTH = 200;
+    private static final int COUNTER_CHECK = RECORD_SIZE - 8;
+
+    final String owner;
+    final long timeout;
+    final long confirmDelay;
+    final RandomAccessFile lockFile;
+    final RandomAccessFile heartbeatFile;
+    private final File heartbeatPath;
+    private final MappedByteBuffer heartbeat;
+    private FileLock lock;
+    private boolean owned;
+    private long counter;
+    private long observedCounter = -1;
+    private long observedTime;
+    private long claimTime = -1;
+
+    public SharedFileLock(Properties props) {
+        try {
+            LOG.addHandler(BootstrapLogManager.getDefaultHandler());
+            File dir = new File(props.getProperty(PROPERTY_LOCK_DIR, System.getProperty(PROP_KARAF_BASE)));
+            dir.mkdirs();
+            String name = System.getProperty("karaf.name", props.getProperty("karaf.name", "karaf"));
+            this.owner = props.getProperty(PROPERTY_LOCK_OWNER, name + "@" + ManagementFactory.getRuntimeMXBean().getName());
+            if (encode(owner).length > MAX_OWNER_LENGTH) {
+                // a truncated owner would not match the record and could be shared by several instances
+                throw new IllegalArgumentException("The owner of the lock is longer than " + MAX_OWNER_LENGTH
+                        + " bytes, set a shorter " + PROPERTY_LOCK_OWNER + ": " + owner);
+            }
+            this.timeout = Long.parseLong(props.getProperty(PROPERTY_HEARTBEAT_TIMEOUT, DEFAULT_HEARTBEAT_TIMEOUT));
+            if (timeout < MIN_ATTRIBUTE_CACHE_TIME) {
+                LOG.warning("The heartbeat timeout of " + timeout + " ms is shorter than the attribute cache time of"
+                        + " most network file systems, a live master may be taken over");
+            }
+            this.confirmDelay = Math.max(timeout, MIN_ATTRIBUTE_CACHE_TIME);
+            this.lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+            this.heartbeatPath = new File(dir, "heartbeat");
+            this.heartbeatFile = new RandomAccessFile(heartbeatPath, "rw");
+            this.heartbeat = heartbeatFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, RECORD_SIZE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create shared file lock", e);
+        }
+    }
+
+    public synchronized boolean lock() throws Exception {
+        Record record = read();
+        if (record == null) {
+            LOG.fine("Inconsistent heartbeat record, retrying");
+            return false;
+        }
+        if (claimTime >= 0) {
+            return confirm(record);
+        }
+        boolean free = record.owner.length() == 0 || owner.equals(record.owner);
+        if (lock == null) {
+            lock = tryLock();
+            // a file lock still held on a released record is only trusted until the heartbeat timeout
+            free &= lock != null;
+        }
+        if (!free) {
+            if (record.counter != observedCounter) {
+                observedCounter = record.counter;
+                observedTime = getNanoTime();
+                return false;
+            }
+            if (getNanoTime() - observedTime < timeout * 1000000L) {
+                return false;
+            }
+            LOG.warning("The heartbeat of " + record.owner + " has not changed for " + timeout + " ms, taking the lock over");
+        }
+        counter = record.counter + 1;
+        write(owner, counter);
+        // another standby may take the record over at the same time, the last one wins
+        claimTime = getNanoTime();
+        return false;
+    }
+
+    /**
+     * Check that the record claimed by this instance has not been taken over by another standby,
+     * once the writes of the other hosts are visible.  The claimer keeps beating meanwhile, so that
+     * the other standby instances do not see a dead owner and take the record over in turn.
+     */
+    private boolean confirm(Record record) throws IOException {
+        if (!owner.equals(record.owner)) {
+            LOG.info("The heartbeat record has been taken over by " + record.owner);
+            claimTime = -1;
+            observedCounter = record.counter;
+            observedTime = getNanoTime();
+            releaseFileLock();
+            return false;
+        }
+        write(owner, ++counter);
+        if (getNanoTime() - claimTime < confirmDelay * 1000000L) {
+            return false;
+        }
+        claimTime = -1;
+        owned = true;
+        return true;
+    }
+
+    public synchronized boolean isAlive() throws Exception {
+        if (!owned) {
+            return false;
+        }
+        Record record = read();
+        if (record != null && !owner.equals(record.owner)) {
+            LOG.severe("Lost lock! The heartbeat record has been taken over by " + record.owner);
+            owned = false;
+            releaseFileLock();
+            return false;
+        }
+        write(owner, ++counter);
+        return true;
+    }
+
+    public synchronized void release() throws Exception {
+        LOG.info("releasing");
+        if (owned || claimTime >= 0) {
+            Record record = read();
+            if (record != null && owner.equals(record.owner)) {
+                // let the standby instances take over at once
+                write("", counter + 1);
+            }
+            owned = false;
+            claimTime = -1;
+        }
+        try {
+            releaseFileLock();
+        } finally {
+            lockFile.close();
+            heartbeatFile.close();
+        }
+    }
+
+    private FileLock tryLock() throws IOException {
+        try {
+            return lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another lock of this process
+            return null;
+        }
+    }
+
+    private void releaseFileLock() throws IOException {
+        if (lock != null && lock.isValid()) {
+            lock.release();
+        }
+        lock = null;
+    }
+
+    /**
+     * Write the heartbeat record through the mapped buffer, the counter being written first and
+     * copied last so that a reader can detect a partially written record.
+     */
+    private void write(String owner, long counter) {
+        byte[] bytes = encode(owner);
+        heartbeat.putLong(COUNTER, counter);
+        heartbeat.putLong(TIMESTAMP, System.currentTimeMillis());
+        heartbeat.putInt(OWNER_LENGTH, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            heartbeat.put(OWNER + i, bytes[i]);
+        }
+        heartbeat.putLong(COUNTER_CHECK, counter);
+        heartbeat.force();
+    }
+
+    /**
+     * Read the heartbeat record from a newly opened file rather than from the mapped buffer or
+     * the open file, as the network file system only revalidates its cache of the file on open.
+     *
+     * @return the record, or <tt>null</tt> if it is being written
+     */
+    private Record read() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        RandomAccessFile file = new RandomAccessFile(heartbeatPath, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    break;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        long counter = buffer.getLong(COUNTER);
+        if (counter != buffer.getLong(COUNTER_CHECK)) {
+            return null;
+        }
+        int length = buffer.getInt(OWNER_LENGTH);
+        if (length < 0 || length > MAX_OWNER_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(OWNER + i);
+        }
+        return new Record(new String(bytes, "UTF-8"), counter, buffer.getLong(TIMESTAMP));
+    }
+
+    private static byte[] encode(String owner) {
+        try {
+            return owner.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * The content of the heartbeat record.
+     */
+    static class Record {
+        final String owner;
+        final long counter;
+        final long timestamp;
+
+        Record(String owner, long counter, long timestamp) {
+            this.owner = owner;
+            this.counter = counter;
+            this.timestamp = timestamp;
+        }
+    }
+}
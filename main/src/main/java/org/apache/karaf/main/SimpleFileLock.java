@@ -25,7 +25,7 @@ import java.nio.channels.FileLock;
 import java.util.Properties;
 import java.util.logging.Logger;
 
-public class SimpleFileLock implements Lock {
+public class SimpleFileLock implements BlockingLock {
 
     private static final Logger LOG = Logger.getLogger(SimpleFileLock.class.getName());
     private static final String PROPERTY_LOCK_DIR = "karaf.lock.dir";
@@ -61,6 +61,14 @@ public class SimpleFileLock implements Lock {
         return lock != null;
     }
 
+    public boolean waitForLock() throws Exception {
+        LOG.info("waiting for lock");
+        if (lock == null) {
+            lock = lockFile.getChannel().lock();
+        }
+        return lock != null;
+    }
+
     public void release() throws Exception {
         LOG.info("releasing");
         if (lock != null && lock.isValid()) {
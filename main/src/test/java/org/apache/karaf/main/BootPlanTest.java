@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link org.apache.karaf.main.BootPlan}
+ */
+public class BootPlanTest extends TestCase {
+
+    public void testStoreAndLoad() throws Exception {
+        File dir = createDirectory();
+        File config = write(new File(dir, "config.properties"), "karaf.framework=felix\n");
+        List<File> inputs = new ArrayList<File>();
+        inputs.add(config);
+        Properties system = new Properties();
+        system.setProperty("karaf.home", dir.getPath());
+
+        Properties systemProps = new Properties();
+        systemProps.setProperty("karaf.name", "root");
+        Properties configProps = new Properties();
+        configProps.setProperty("karaf.framework", "felix");
+        configProps.setProperty("karaf.auto.start.5", "\"file:/bundle.jar|bundle.jar\" ");
+        List<URL> classPath = new ArrayList<URL>();
+        classPath.add(new File(dir, "felix.jar").toURI().toURL());
+        classPath.add(new File(dir, "karaf.jar").toURI().toURL());
+
+        File file = new File(dir, "boot-plan.properties");
+        new BootPlan(systemProps, configProps, classPath, inputs, BootPlan.fingerprint(system, inputs)).store(file);
+
+        BootPlan plan = BootPlan.load(file, system);
+        assertNotNull(plan);
+        assertEquals(systemProps, plan.getSystemProperties());
+        assertEquals(configProps, plan.getConfigProperties());
+        assertEquals(classPath, plan.getClassPath());
+        assertEquals(inputs, plan.getInputs());
+
+        // a different command line invalidates the plan
+        Properties other = new Properties();
+        other.putAll(system);
+        other.setProperty("karaf.startup.threads", "4");
+        assertNull(BootPlan.load(file, other));
+
+        // so does a modification of an input
+        write(config, "karaf.framework=equinox\n");
+        config.setLastModified(config.lastModified() + 2000);
+        assertNull(BootPlan.load(file, system));
+
+        assertNull(BootPlan.load(new File(dir, "missing.properties"), system));
+        Utils.deleteDirectory(dir);
+    }
+
+    public void testSameSizeEditInvalidatesPlan() throws Exception {
+        File dir = createDirectory();
+        File config = write(new File(dir, "config.properties"), "karaf.framework=felix\n");
+        long lastModified = config.lastModified();
+        List<File> inputs = new ArrayList<File>();
+        inputs.add(config);
+        Properties system = new Properties();
+        File file = new File(dir, "boot-plan.properties");
+        new BootPlan(new Properties(), new Properties(), new ArrayList<URL>(), inputs,
+                BootPlan.fingerprint(system, inputs)).store(file);
+        assertNotNull(BootPlan.load(file, system));
+
+        // an edit within the time resolution of the file system
+        write(config, "karaf.framework=felig\n");
+        config.setLastModified(lastModified);
+        assertNull(BootPlan.load(file, system));
+        Utils.deleteDirectory(dir);
+    }
+
+    public void testAddedFileInvalidatesPlan() throws Exception {
+        File dir = createDirectory();
+        List<File> inputs = new ArrayList<File>();
+        inputs.add(dir);
+        Properties system = new Properties();
+        File data = new File(dir, "data");
+        data.mkdirs();
+        dir.setLastModified(dir.lastModified() - 2000);
+        File file = new File(data, "boot-plan.properties");
+        new BootPlan(new Properties(), new Properties(), new ArrayList<URL>(), inputs,
+                BootPlan.fingerprint(system, inputs)).store(file);
+        assertNotNull(BootPlan.load(file, system));
+
+        write(new File(dir, "extra.jar"), "");
+        dir.setLastModified(dir.lastModified() + 2000);
+        assertNull(BootPlan.load(file, system));
+        Utils.deleteDirectory(dir);
+    }
+
+    public void testNestedAdditionInvalidatesPlan() throws Exception {
+        File dir = createDirectory();
+        File base = new File(dir, "base");
+        File home = new File(dir, "home");
+        String name = "org/foo/bar/1.0/bar-1.0.jar";
+        new File(base, "org/foo/bar/1.0").mkdirs();
+        File found = new File(home, name);
+        found.getParentFile().mkdirs();
+        write(found, "");
+        List<File> bundleDirs = new ArrayList<File>();
+        bundleDirs.add(base);
+        bundleDirs.add(home);
+
+        List<File> inputs = new ArrayList<File>();
+        assertEquals(found, Main.findFile(bundleDirs, name, inputs));
+        Properties system = new Properties();
+        File file = new File(dir, "boot-plan.properties");
+        new BootPlan(new Properties(), new Properties(), new ArrayList<URL>(), inputs,
+                BootPlan.fingerprint(system, inputs)).store(file);
+        assertNotNull(BootPlan.load(file, system));
+
+        // the same bundle added to an earlier directory now shadows the one found
+        write(new File(base, name), "");
+        assertNull(BootPlan.load(file, system));
+        assertEquals(new File(base, name), Main.findFile(bundleDirs, name, new ArrayList<File>()));
+        Utils.deleteDirectory(dir);
+    }
+
+    private File createDirectory() throws Exception {
+        File dir = File.createTempFile("boot-plan", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private File write(File file, String content) throws Exception {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Test cases for {@link org.apache.karaf.main.BootProfiler}
+ */
+public class BootProfilerTest extends TestCase {
+
+    public void testTimeline() throws Exception {
+        File file = File.createTempFile("boot-timeline", ".csv");
+        file.deleteOnExit();
+        BootProfiler profiler = new BootProfiler(file, 5000, 60000);
+        profiler.begin("framework");
+        Bundle bundle = createBundle(5, "my.bundle");
+        profiler.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+        Thread.sleep(20);
+        profiler.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        profiler.end("framework");
+        // phases which have not begun are ignored
+        profiler.end("unknown");
+
+        List<BootProfiler.Event> events = profiler.getEvents();
+        assertEquals(2, events.size());
+        assertEquals(BootProfiler.BUNDLE, events.get(0).getType());
+        assertEquals("my.bundle (5)", events.get(0).getName());
+        assertTrue(events.get(0).getDuration() >= 20);
+        assertEquals(BootProfiler.PHASE, events.get(1).getType());
+        assertEquals("framework", events.get(1).getName());
+        assertTrue(events.get(1).getStart() <= events.get(0).getStart());
+
+        profiler.complete();
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lines.add(line);
+        }
+        reader.close();
+        assertEquals(3, lines.size());
+        assertEquals("type,name,start,end,duration", lines.get(0));
+        assertTrue(lines.get(1).startsWith("phase,framework,"));
+        assertTrue(lines.get(2).startsWith("bundle,my.bundle (5),"));
+    }
+
+    private Bundle createBundle(final long id, final String name) {
+        return (Bundle) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Bundle.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getBundleId".equals(method.getName())) {
+                    return id;
+                } else if ("getSymbolicName".equals(method.getName())) {
+                    return name;
+                }
+                return null;
+            }
+        });
+    }
+
+}
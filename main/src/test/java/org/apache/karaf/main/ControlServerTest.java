@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class ControlServerTest extends TestCase {
+
+    private ControlServer server;
+    private final List<String> commands = new ArrayList<String>();
+
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.put("karaf.bootstrap.log", "target/karaf.log");
+        BootstrapLogManager.setProperties(properties);
+        server = new ControlServer(500, 16);
+    }
+
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    public void testCommandIsHandled() throws Exception {
+        int port = listen(null);
+        send(port, "SHUTDOWN", true);
+        send(port, "SHUTDOWN\r\nignored", true);
+        waitForCommands(2);
+        assertEquals("SHUTDOWN", commands.get(0));
+        assertEquals("SHUTDOWN", commands.get(1));
+    }
+
+    public void testNonAsciiCommandIsHandled() throws Exception {
+        int port = listen(null);
+        send(port, "ARR\u00caT\r\n", true);
+        waitForCommands(1);
+        assertEquals("ARR\u00caT", commands.get(0));
+    }
+
+    public void testResponseIsWrittenBack() throws Exception {
+        int port = listen("state=ACTIVE\n");
+        assertEquals("state=ACTIVE\n", send(port, "", true));
+    }
+
+    public void testSeveralPortsShareTheServer() throws Exception {
+        int shutdownPort = listen(null);
+        int statusPort = listen("ok\n");
+        assertEquals("ok\n", send(statusPort, "\n", false));
+        send(shutdownPort, "SHUTDOWN", true);
+        waitForCommands(2);
+        assertEquals("SHUTDOWN", commands.get(1));
+    }
+
+    public void testLongCommandIsRejected() throws Exception {
+        int port = listen(null);
+        send(port, "01234567890123456789", true);
+        send(port, "SHUTDOWN", true);
+        waitForCommands(1);
+        assertEquals("SHUTDOWN", commands.get(0));
+    }
+
+    public void testSlowClientDoesNotBlockTheOthers() throws Exception {
+        int port = listen(null);
+        Socket slow = new Socket("localhost", port);
+        try {
+            slow.getOutputStream().write("SHUT".getBytes());
+            send(port, "SHUTDOWN", true);
+            waitForCommands(1);
+            // the slow client is disconnected after the read timeout
+            slow.setSoTimeout(5000);
+            assertEquals(-1, slow.getInputStream().read());
+            assertEquals(1, commands.size());
+        } finally {
+            slow.close();
+        }
+    }
+
+    public void testCloseClosesTheConnections() throws Exception {
+        int port = listen(null);
+        Socket pending = new Socket("localhost", port);
+        try {
+            pending.getOutputStream().write("SHUT".getBytes());
+            server.close();
+            pending.setSoTimeout(5000);
+            try {
+                assertEquals(-1, pending.getInputStream().read());
+            } catch (SocketException e) {
+                // reset as the command was not read
+            }
+        } finally {
+            pending.close();
+        }
+        try {
+            new Socket("localhost", port).close();
+            fail("The port should be closed");
+        } catch (ConnectException e) {
+            // expected
+        }
+        assertEquals(0, commands.size());
+    }
+
+    private int listen(final String response) throws Exception {
+        return server.listen("localhost", 0, new ControlServer.Handler() {
+            public String handle(String command) {
+                synchronized (commands) {
+                    commands.add(command);
+                    commands.notifyAll();
+                }
+                return response;
+            }
+        });
+    }
+
+    private String send(int port, String command, boolean close) throws Exception {
+        Socket s = new Socket("localhost", port);
+        try {
+            s.setSoTimeout(5000);
+            OutputStream os = s.getOutputStream();
+            os.write(command.getBytes("ISO-8859-1"));
+            if (close) {
+                s.shutdownOutput();
+            }
+            InputStream is = s.getInputStream();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                int c;
+                while ((c = is.read()) >= 0) {
+                    baos.write(c);
+                }
+            } catch (SocketException e) {
+                // reset by the server when the command is rejected
+            }
+            return baos.toString();
+        } finally {
+            s.close();
+        }
+    }
+
+    private void waitForCommands(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        synchronized (commands) {
+            while (commands.size() < count && System.currentTimeMillis() < end) {
+                commands.wait(100);
+            }
+        }
+        assertEquals(count, commands.size());
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LeaseJDBCLockTest {
+
+    private Properties props;
+    private Connection connection;
+
+    @BeforeClass
+    public static void setUpTestSuite() {
+        Properties properties = new Properties();
+        properties.put("karaf.bootstrap.log", "target/karaf.log");
+        BootstrapLogManager.setProperties(properties);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        props = new Properties();
+        props.put("karaf.lock.jdbc.url", "jdbc:derby://127.0.0.1:1527/test");
+        props.put("karaf.lock.jdbc.driver", "org.apache.derby.jdbc.ClientDriver");
+        props.put("karaf.lock.jdbc.lease", "1000");
+        connection = createMock(Connection.class);
+    }
+
+    @Test
+    public void statementsShouldBeCreatedForTheLeaseTable() {
+        LeaseStatements statements = new LeaseStatements();
+        assertEquals("CREATE TABLE KARAF_LEASE (NAME VARCHAR(20) NOT NULL PRIMARY KEY, OWNER VARCHAR(255), VERSION NUMERIC(20), LEASE NUMERIC(20), MOMENT NUMERIC(20))",
+                statements.getLockCreateSchemaStatements(1)[0]);
+        assertEquals("UPDATE KARAF_LEASE SET VERSION = VERSION + 1, MOMENT = ? WHERE NAME = ? AND OWNER = ?",
+                statements.getLeaseRenewStatement());
+        assertEquals("UPDATE KARAF_LEASE SET OWNER = ?, VERSION = VERSION + 1, LEASE = ?, MOMENT = ? WHERE NAME = ? AND VERSION = ?",
+                statements.getLeaseTakeOverStatement());
+    }
+
+    @Test
+    public void standbyShouldTakeOverAnExpiredLease() throws Exception {
+        Table table = new Table();
+        TestLock master = new TestLock("master", table);
+        TestLock standby = new TestLock("standby", table);
+        // the wall clock of the standby is far ahead, which must not matter
+        standby.millis = 3600 * 1000;
+
+        assertTrue(master.lock());
+        assertFalse(standby.lock());
+
+        // the master keeps renewing the lease
+        for (int i = 0; i < 5; i++) {
+            master.nanos += 500 * 1000000L;
+            standby.nanos += 500 * 1000000L;
+            assertTrue(master.isAlive());
+            assertFalse(standby.lock());
+        }
+
+        // the master stops renewing the lease, the standby waits for the duration of the lease
+        standby.nanos += 500 * 1000000L;
+        assertFalse(standby.lock());
+        standby.nanos += 600 * 1000000L;
+        assertTrue(standby.lock());
+        assertEquals("standby", table.owner);
+
+        assertFalse(master.isAlive());
+        assertTrue(standby.isAlive());
+        assertEquals(6, master.statistics.getKeepAliveCount());
+    }
+
+    @Test
+    public void releasedLeaseShouldBeTakenOverImmediately() throws Exception {
+        Table table = new Table();
+        TestLock master = new TestLock("master", table);
+        TestLock standby = new TestLock("standby", table);
+        assertTrue(master.lock());
+        assertFalse(standby.lock());
+        master.releaseLease();
+        assertNull(table.owner);
+        assertTrue(standby.lock());
+    }
+
+    @Test
+    public void fencingTokenShouldIncreaseWithEachOwner() throws Exception {
+        Table table = new Table();
+        TestLock master = new TestLock("master", table);
+        TestLock standby = new TestLock("standby", table);
+        try {
+            assertTrue(master.lock());
+            assertEquals(1, master.getToken());
+            assertEquals("1", System.getProperty(LeaseJDBCLock.PROPERTY_LOCK_TOKEN));
+            assertTrue(master.isAlive());
+            assertTrue(master.isAlive());
+
+            master.releaseLease();
+            assertTrue(standby.lock());
+            assertTrue(standby.getToken() > 1);
+            assertEquals(Long.toString(standby.getToken()), System.getProperty(LeaseJDBCLock.PROPERTY_LOCK_TOKEN));
+
+            // the former master notices it lost the lease and does not clear the token of the new one
+            assertFalse(master.isAlive());
+            assertEquals(-1, master.getToken());
+            assertEquals(Long.toString(standby.getToken()), System.getProperty(LeaseJDBCLock.PROPERTY_LOCK_TOKEN));
+        } finally {
+            System.clearProperty(LeaseJDBCLock.PROPERTY_LOCK_TOKEN);
+        }
+    }
+
+    @Test
+    public void errorShouldLoseTheLockWithoutGracePeriod() throws Exception {
+        TestLock lock = new TestLock("master", new Table());
+        assertTrue(lock.lock());
+        lock.failures = 1;
+        assertFalse(lock.isAlive());
+        assertEquals(-1, lock.getToken());
+        System.clearProperty(LeaseJDBCLock.PROPERTY_LOCK_TOKEN);
+    }
+
+    @Test
+    public void transientErrorShouldBeRecoveredByReconnecting() throws Exception {
+        props.put("karaf.lock.jdbc.grace", "5000");
+        props.put("karaf.lock.jdbc.lease", "10000");
+        props.put("karaf.lock.jdbc.timeout", "1");
+        TestLock lock = new TestLock("master", new Table());
+        assertTrue(lock.lock());
+        lock.failures = 2;
+        assertTrue(lock.isAlive());
+        assertEquals(0, lock.failures);
+        assertEquals(1, lock.getToken());
+        System.clearProperty(LeaseJDBCLock.PROPERTY_LOCK_TOKEN);
+    }
+
+    @Test
+    public void lockShouldBeKeptDuringTheGracePeriod() throws Exception {
+        props.put("karaf.lock.jdbc.grace", "5000");
+        props.put("karaf.lock.jdbc.lease", "20000");
+        props.put("karaf.lock.jdbc.timeout", "1");
+        TestLock lock = new TestLock("master", new Table());
+        assertTrue(lock.lock());
+        lock.failures = Integer.MAX_VALUE;
+        // each check spends 700 ms in reconnection attempts
+        for (int i = 0; i < 7; i++) {
+            assertTrue(lock.isAlive());
+        }
+        assertFalse(lock.isAlive());
+        assertEquals(-1, lock.getToken());
+    }
+
+    @Test
+    public void gracePeriodShouldEndBeforeTheLeaseExpires() throws Exception {
+        props.put("karaf.lock.jdbc.grace", "60000");
+        props.put("karaf.lock.jdbc.lease", "10000");
+        props.put("karaf.lock.keepalive.delay", "2000");
+        props.put("karaf.lock.jitter", "0");
+        props.put("karaf.lock.jdbc.timeout", "1");
+        // a check and its 3 retries may each last 1000 ms, plus 700 ms between the retries
+        TestLock lock = new TestLock("master", new Table());
+        assertEquals(3300, lock.grace);
+    }
+
+    @Test
+    public void gracePeriodShouldAllowForTheJitter() throws Exception {
+        props.put("karaf.lock.jdbc.grace", "60000");
+        props.put("karaf.lock.jdbc.lease", "10000");
+        props.put("karaf.lock.keepalive.delay", "2000");
+        props.put("karaf.lock.jitter", "0.5");
+        props.put("karaf.lock.jdbc.timeout", "1");
+        TestLock lock = new TestLock("master", new Table());
+        assertEquals(2300, lock.grace);
+
+        assertTrue(lock.lock());
+        lock.failures = Integer.MAX_VALUE;
+        // the checks are delayed as much as the jitter allows
+        long lease = 10000 * 1000000L;
+        while (lock.isAlive()) {
+            // the next check, delayed and retried, ends before the lease can be taken over
+            assertTrue(lock.nanos + lock.margin * 1000000L < lease);
+            lock.nanos += 3000 * 1000000L;
+        }
+        assertTrue(lock.nanos < lease);
+        assertEquals(-1, lock.getToken());
+    }
+
+    @Test
+    public void gracePeriodShouldBeDisabledWithoutQueryTimeout() throws Exception {
+        props.put("karaf.lock.jdbc.grace", "5000");
+        props.put("karaf.lock.jdbc.lease", "60000");
+        props.put("karaf.lock.jdbc.timeout", "0");
+        TestLock lock = new TestLock("master", new Table());
+        assertEquals(0, lock.grace);
+    }
+
+    @Test
+    public void statementsShouldBePreparedOncePerConnection() throws Exception {
+        expect(connection.isClosed()).andReturn(false).anyTimes();
+        connection.commit();
+        expectLastCall().anyTimes();
+        LeaseStatements statements = new LeaseStatements();
+        PreparedStatement renew = createMock(PreparedStatement.class);
+        renew.setQueryTimeout(10);
+        renew.setLong(1, 1);
+        expectLastCall().times(3);
+        renew.setString(2, "karaf");
+        expectLastCall().times(3);
+        renew.setString(3, "node1");
+        expectLastCall().times(3);
+        expect(renew.executeUpdate()).andReturn(1).times(3);
+        String[] others = { statements.getLeaseSelectStatement(), statements.getLeaseInsertStatement(),
+                            statements.getLeaseTakeOverStatement(), statements.getLeaseReleaseStatement() };
+        for (String sql : others) {
+            PreparedStatement other = createMock(PreparedStatement.class);
+            other.setQueryTimeout(10);
+            replay(other);
+            expect(connection.prepareStatement(sql)).andReturn(other);
+        }
+        expect(connection.prepareStatement(statements.getLeaseRenewStatement())).andReturn(renew);
+        replay(connection, renew);
+
+        props.put("karaf.lock.jdbc.owner", "node1");
+        LeaseJDBCLock lock = new LeaseJDBCLock(props) {
+            @Override
+            void init() {
+            }
+
+            @Override
+            long getCurrentTimeMillis() {
+                return 1;
+            }
+        };
+        lock.lockConnection = connection;
+        assertTrue(lock.isAlive());
+        assertTrue(lock.isAlive());
+        assertTrue(lock.isAlive());
+        verify(connection, renew);
+        assertEquals(3, lock.statistics.getKeepAliveCount());
+    }
+
+    /**
+     * The row of the lease, shared by the locks of a test.
+     */
+    private static class Table {
+        String owner;
+        long version;
+        long lease;
+        boolean exists;
+    }
+
+    private class TestLock extends LeaseJDBCLock {
+        private final Table table;
+        long nanos;
+        long millis;
+        int failures;
+
+        TestLock(String owner, Table table) {
+            super(withOwner(props, owner));
+            this.table = table;
+        }
+
+        @Override
+        void init() {
+        }
+
+        @Override
+        Lease readLease() {
+            return table.exists ? new Lease(table.owner, table.version, table.lease) : null;
+        }
+
+        @Override
+        boolean insertLease() {
+            if (table.exists) {
+                return false;
+            }
+            table.exists = true;
+            table.owner = owner;
+            table.version = 1;
+            table.lease = lease;
+            return true;
+        }
+
+        @Override
+        boolean takeOverLease(long version) {
+            if (table.version != version) {
+                return false;
+            }
+            table.owner = owner;
+            table.version++;
+            table.lease = lease;
+            return true;
+        }
+
+        @Override
+        boolean renewLease() throws SQLException {
+            if (failures > 0) {
+                failures--;
+                throw new SQLException("Connection reset");
+            }
+            if (!owner.equals(table.owner)) {
+                return false;
+            }
+            table.version++;
+            return true;
+        }
+
+        @Override
+        void releaseLease() {
+            if (owner.equals(table.owner)) {
+                table.owner = null;
+                table.version++;
+            }
+        }
+
+        @Override
+        void sleep(long millis) {
+            nanos += millis * 1000000L;
+        }
+
+        @Override
+        long getNanoTime() {
+            return nanos;
+        }
+
+        @Override
+        long getCurrentTimeMillis() {
+            return millis;
+        }
+    }
+
+    private static Properties withOwner(Properties props, String owner) {
+        Properties p = new Properties();
+        p.putAll(props);
+        p.put("karaf.lock.jdbc.owner", owner);
+        return p;
+    }
+}
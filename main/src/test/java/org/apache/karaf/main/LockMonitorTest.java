@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link org.apache.karaf.main.LockMonitor}
+ */
+public class LockMonitorTest extends TestCase {
+
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.put("karaf.bootstrap.log", "target/karaf.log");
+        BootstrapLogManager.setProperties(properties);
+    }
+
+    public void testAcquireAndLoseLock() throws Exception {
+        TestLock lock = new TestLock(3);
+        TestListener listener = new TestListener();
+        LockMonitor monitor = new LockMonitor(lock, listener, 10, 10, 100, 0.1, true);
+        monitor.start();
+        try {
+            assertTrue(listener.acquired.await(5, TimeUnit.SECONDS));
+            assertEquals(3, lock.attempts.get());
+
+            lock.alive = false;
+            assertTrue(listener.lost.await(5, TimeUnit.SECONDS));
+            // the monitor tries to acquire the lock again
+            int attempts = lock.attempts.get();
+            long t0 = System.currentTimeMillis();
+            while (lock.attempts.get() == attempts && System.currentTimeMillis() - t0 < 5000) {
+                Thread.sleep(10);
+            }
+            assertTrue(lock.attempts.get() > attempts);
+        } finally {
+            monitor.stop();
+        }
+    }
+
+    public void testBlockingLock() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        TestLock lock = new BlockingTestLock(released);
+        TestListener listener = new TestListener();
+        // with a polling delay of one minute, only waiting for the lock can acquire it in time
+        LockMonitor monitor = new LockMonitor(lock, listener, 60000, 60000, 60000, 0, true);
+        monitor.start();
+        try {
+            Thread.sleep(50);
+            assertEquals(1, listener.acquired.getCount());
+            released.countDown();
+            assertTrue(listener.acquired.await(5, TimeUnit.SECONDS));
+            assertEquals(1, lock.attempts.get());
+        } finally {
+            monitor.stop();
+        }
+    }
+
+    public void testStopInterruptsBlockedAcquire() throws Exception {
+        TestLock lock = new BlockingTestLock(new CountDownLatch(1));
+        TestListener listener = new TestListener();
+        LockMonitor monitor = new LockMonitor(lock, listener, 60000, 60000, 60000, 0, true);
+        monitor.start();
+        Thread.sleep(50);
+        long t0 = System.currentTimeMillis();
+        monitor.stop();
+        assertTrue(System.currentTimeMillis() - t0 < 5000);
+        assertEquals(1, listener.acquired.getCount());
+    }
+
+    public void testErrorsBackOff() throws Exception {
+        TestLock lock = new TestLock(Integer.MAX_VALUE);
+        lock.failing = true;
+        LockMonitor monitor = new LockMonitor(lock, new TestListener(), 10, 10, 200, 0, false);
+        assertEquals(10, monitor.backoff(1));
+        assertEquals(20, monitor.backoff(2));
+        assertEquals(80, monitor.backoff(4));
+        assertEquals(200, monitor.backoff(10));
+        assertEquals(200, monitor.backoff(100));
+
+        monitor.start();
+        Thread.sleep(500);
+        monitor.stop();
+        // 10 + 20 + 40 + 80 + 160 ms, then every 200 ms
+        assertTrue(lock.attempts.get() <= 8);
+    }
+
+    public void testJitter() throws Exception {
+        LockMonitor monitor = new LockMonitor(new TestLock(1), new TestListener(), 1000, 1000, 1000, 0.2, false);
+        for (int i = 0; i < 100; i++) {
+            long delay = monitor.jittered(1000);
+            assertTrue(delay >= 800 && delay <= 1200);
+        }
+    }
+
+    private static class TestListener implements LockMonitor.Listener {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch lost = new CountDownLatch(1);
+
+        public void lockAcquired() {
+            acquired.countDown();
+        }
+
+        public void lockLost() {
+            lost.countDown();
+        }
+    }
+
+    private static class TestLock implements Lock {
+        final AtomicInteger attempts = new AtomicInteger();
+        final int acquireAt;
+        volatile boolean alive = true;
+        volatile boolean failing;
+
+        TestLock(int acquireAt) {
+            this.acquireAt = acquireAt;
+        }
+
+        public boolean lock() throws Exception {
+            int attempt = attempts.incrementAndGet();
+            if (failing) {
+                throw new Exception("Database unavailable");
+            }
+            return attempt >= acquireAt;
+        }
+
+        public void release() throws Exception {
+        }
+
+        public boolean isAlive() throws Exception {
+            return alive;
+        }
+    }
+
+    private static class BlockingTestLock extends TestLock implements BlockingLock {
+        private final CountDownLatch released;
+
+        BlockingTestLock(CountDownLatch released) {
+            super(Integer.MAX_VALUE);
+            this.released = released;
+        }
+
+        public boolean waitForLock() throws Exception {
+            released.await();
+            return true;
+        }
+    }
+
+}
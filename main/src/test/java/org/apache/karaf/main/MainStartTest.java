@@ -19,6 +19,9 @@
 package org.apache.karaf.main;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import junit.framework.Assert;
 import org.junit.Ignore;
@@ -63,6 +66,143 @@ public class MainStartTest {
 		main.destroy();
 	}
 
+    @Test
+    public void testParallelAutoStart() throws Exception {
+        File basedir = new File(getClass().getClassLoader().getResource("foo").getPath()).getParentFile();
+        File home = new File(basedir, "test-karaf-home");
+        File data = new File(home, "data");
+
+        Utils.deleteDirectory(data);
+
+        StringBuilder locations = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            File file = File.createTempFile("bundle", ".jar");
+            file.deleteOnExit();
+            InputStream is = TinyBundles.newBundle()
+                    .set(Constants.BUNDLE_SYMBOLICNAME, "bundle" + i)
+                    .build(withBnd());
+            OutputStream os = new FileOutputStream(file);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+            }
+            os.close();
+            is.close();
+            locations.append("\"").append(file.toURI().toURL().toExternalForm()).append("|unused\" ");
+        }
+        // a malformed entry only skips that bundle
+        locations.append("\"malformed\" ");
+
+        String[] args = new String[0];
+        System.setProperty("karaf.home", home.toString());
+        System.setProperty("karaf.data", data.toString());
+        System.setProperty("karaf.framework.factory", "org.apache.felix.framework.FrameworkFactory");
+        System.setProperty("karaf.auto.start.50", locations.toString());
+        System.setProperty("karaf.maven.convert", "false");
+        System.setProperty(Main.PROPERTY_STARTUP_THREADS, "4");
+        try {
+            Main main = new Main(args);
+            main.launch();
+            Thread.sleep(1000);
+            Framework framework = main.getFramework();
+            Bundle[] bundles = framework.getBundleContext().getBundles();
+            Assert.assertEquals(9, bundles.length);
+            for (int i = 1; i < bundles.length; i++) {
+                Assert.assertEquals(Bundle.ACTIVE, bundles[i].getState());
+            }
+            main.destroy();
+        } finally {
+            System.clearProperty("karaf.auto.start.50");
+            System.clearProperty("karaf.maven.convert");
+            System.clearProperty(Main.PROPERTY_STARTUP_THREADS);
+        }
+    }
+
+    @Test
+    public void testWarmStandby() throws Exception {
+        File basedir = new File(getClass().getClassLoader().getResource("foo").getPath()).getParentFile();
+        File home = new File(basedir, "test-karaf-home");
+        File data = new File(home, "data");
+
+        Utils.deleteDirectory(data);
+
+        File file = createBundle("application");
+        File other = createBundle("other");
+
+        String[] args = new String[0];
+        System.setProperty("karaf.home", home.toString());
+        System.setProperty("karaf.data", data.toString());
+        System.setProperty("karaf.framework.factory", "org.apache.felix.framework.FrameworkFactory");
+        System.setProperty("karaf.auto.start.60", "\"" + file.toURI().toURL().toExternalForm() + "|unused\"");
+        System.setProperty("karaf.maven.convert", "false");
+        System.setProperty(Main.PROPERTY_LOCK_CLASS, ToggleLock.class.getName());
+        System.setProperty(Main.PROPERTY_LOCK_LEVEL, "50");
+        System.setProperty(Main.PROPERTY_LOCK_DELAY, "50");
+        System.setProperty(Main.PROPERTY_LOCK_WARM, "true");
+        ToggleLock.available = false;
+        try {
+            Main main = new Main(args);
+            main.launch();
+            Bundle bundle = main.getFramework().getBundleContext().getBundles()[1];
+            // the standby resolves the bundle without starting it
+            waitForState(bundle, Bundle.RESOLVED);
+            Thread.sleep(200);
+            Assert.assertEquals(Bundle.RESOLVED, bundle.getState());
+            Assert.assertEquals(-1, main.getTakeoverTime());
+
+            // so are the bundles installed while waiting for the lock
+            Bundle installed = main.getFramework().getBundleContext().installBundle(other.toURI().toURL().toExternalForm());
+            waitForState(installed, Bundle.RESOLVED);
+
+            ToggleLock.available = true;
+            waitForState(bundle, Bundle.ACTIVE);
+            for (int i = 0; i < 50 && main.getTakeoverTime() < 0; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(main.getTakeoverTime() >= 0);
+
+            // the bundles are stopped when the lock is lost and started again when it is acquired again
+            ToggleLock.available = false;
+            waitForState(bundle, Bundle.RESOLVED);
+            ToggleLock.available = true;
+            waitForState(bundle, Bundle.ACTIVE);
+            main.destroy();
+        } finally {
+            System.clearProperty("karaf.auto.start.60");
+            System.clearProperty("karaf.maven.convert");
+            System.clearProperty(Main.PROPERTY_LOCK_CLASS);
+            System.clearProperty(Main.PROPERTY_LOCK_LEVEL);
+            System.clearProperty(Main.PROPERTY_LOCK_DELAY);
+            System.clearProperty(Main.PROPERTY_LOCK_WARM);
+        }
+    }
+
+    private File createBundle(String symbolicName) throws Exception {
+        File file = File.createTempFile("bundle", ".jar");
+        file.deleteOnExit();
+        InputStream is = TinyBundles.newBundle()
+                .set(Constants.BUNDLE_SYMBOLICNAME, symbolicName)
+                .set(Constants.IMPORT_PACKAGE, "org.osgi.framework")
+                .build(withBnd());
+        OutputStream os = new FileOutputStream(file);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            os.write(buffer, 0, n);
+        }
+        os.close();
+        is.close();
+        return file;
+    }
+
+    private void waitForState(Bundle bundle, int state) throws InterruptedException {
+        for (int i = 0; i < 100 && bundle.getState() != state; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(state, bundle.getState());
+    }
+
     @Test
     public void testStopWithTimeout() throws Exception {
         File basedir = new File(getClass().getClassLoader().getResource("foo").getPath()).getParentFile();
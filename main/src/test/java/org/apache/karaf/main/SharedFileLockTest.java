@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.main;
+
+import java.io.File;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class SharedFileLockTest extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.put("karaf.bootstrap.log", "target/karaf.log");
+        BootstrapLogManager.setProperties(properties);
+        dir = new File("target/shared-lock-" + getName());
+        new File(dir, "heartbeat").delete();
+        new File(dir, "lock").delete();
+    }
+
+    public void testStandbyWaitsWhileTheMasterBeats() throws Exception {
+        TestLock master = new TestLock("master");
+        TestLock standby = new TestLock("standby");
+
+        acquire(master);
+        assertFalse(standby.lock());
+        for (int i = 0; i < 5; i++) {
+            standby.nanos += 1200 * 1000000L;
+            assertTrue(master.isAlive());
+            assertFalse(standby.lock());
+        }
+        assertTrue(master.isAlive());
+        master.release();
+        standby.release();
+    }
+
+    public void testStandbyTakesOverADeadMaster() throws Exception {
+        TestLock master = new TestLock("master");
+        TestLock standby = new TestLock("standby");
+
+        acquire(master);
+        assertFalse(standby.lock());
+        standby.nanos += 4999 * 1000000L;
+        assertFalse(standby.lock());
+        // the master stops beating but still holds the file lock
+        standby.nanos += 2 * 1000000L;
+        acquire(standby);
+        assertFalse(master.isAlive());
+        assertTrue(standby.isAlive());
+        master.release();
+        standby.release();
+    }
+
+    public void testStandbyTakesOverAReleasedLockWithoutTimeout() throws Exception {
+        TestLock master = new TestLock("master");
+        TestLock standby = new TestLock("standby");
+
+        acquire(master);
+        assertFalse(standby.lock());
+        master.release();
+        acquire(standby);
+        assertTrue(standby.isAlive());
+        assertFalse(master.isAlive());
+        standby.release();
+    }
+
+    public void testOnlyTheLastWriterKeepsTheLock() throws Exception {
+        TestLock first = new TestLock("first");
+        TestLock second = new TestLock("second");
+
+        // the first one claims the record and stalls, the second one takes it over
+        assertFalse(first.lock());
+        assertFalse(second.lock());
+        second.nanos += 5001 * 1000000L;
+        assertFalse(second.lock());
+        first.nanos += 5000 * 1000000L;
+        assertFalse(first.lock());
+        second.nanos += 5000 * 1000000L;
+        assertTrue(second.lock());
+        assertTrue(second.isAlive());
+        assertFalse(first.isAlive());
+        first.release();
+        second.release();
+    }
+
+    public void testPollingClaimerIsNotTakenOver() throws Exception {
+        TestLock first = new TestLock("first");
+        TestLock second = new TestLock("second");
+
+        // the first one claims the record and keeps polling until its claim is confirmed
+        assertFalse(first.lock());
+        assertFalse(second.lock());
+        for (int i = 0; i < 4; i++) {
+            first.nanos += 1000 * 1000000L;
+            second.nanos += 1000 * 1000000L;
+            assertFalse(first.lock());
+            assertFalse(second.lock());
+        }
+        // the second one polls right after the claim is confirmed, a heartbeat timeout after the claim
+        first.nanos += 1000 * 1000000L;
+        second.nanos += 1000 * 1000000L;
+        assertTrue(first.lock());
+        assertFalse(second.lock());
+        for (int i = 0; i < 5; i++) {
+            second.nanos += 1200 * 1000000L;
+            assertTrue(first.isAlive());
+            assertFalse(second.lock());
+        }
+        assertTrue(first.isAlive());
+        first.release();
+        second.release();
+    }
+
+    public void testTakeoverIsConfirmedAfterTheAttributeCacheTime() throws Exception {
+        TestLock lock = new TestLock("master", 1000);
+        assertFalse(lock.lock());
+        lock.nanos += 1000 * 1000000L;
+        assertFalse(lock.lock());
+        lock.nanos += 2000 * 1000000L;
+        assertTrue(lock.lock());
+        lock.release();
+    }
+
+    public void testReleaseClosesTheFiles() throws Exception {
+        TestLock master = new TestLock("master");
+        acquire(master);
+        master.release();
+        assertFalse(master.lockFile.getChannel().isOpen());
+        assertFalse(master.heartbeatFile.getChannel().isOpen());
+
+        TestLock standby = new TestLock("standby");
+        standby.release();
+        assertFalse(standby.lockFile.getChannel().isOpen());
+        assertFalse(standby.heartbeatFile.getChannel().isOpen());
+    }
+
+    public void testLongOwnerIsRejected() throws Exception {
+        StringBuilder owner = new StringBuilder();
+        for (int i = 0; i < 66; i++) {
+            // 3 bytes in UTF-8
+            owner.append('\u20ac');
+        }
+        owner.append("xx");
+        TestLock lock = new TestLock(owner.toString());
+        acquire(lock);
+        lock.release();
+        try {
+            new TestLock(owner.append('x').toString());
+            fail("An owner longer than the record should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Claim the lock and confirm it once the heartbeat timeout has elapsed.
+     */
+    private static void acquire(TestLock lock) throws Exception {
+        assertFalse(lock.lock());
+        lock.nanos += lock.confirmDelay * 1000000L;
+        assertTrue(lock.lock());
+    }
+
+    private class TestLock extends SharedFileLock {
+        long nanos;
+
+        TestLock(String owner) {
+            this(owner, 5000);
+        }
+
+        TestLock(String owner, long timeout) {
+            super(properties(owner, timeout));
+        }
+
+        @Override
+        long getNanoTime() {
+            return nanos;
+        }
+    }
+
+    private Properties properties(String owner, long timeout) {
+        Properties props = new Properties();
+        props.put("karaf.lock.dir", dir.getPath());
+        props.put("karaf.lock.owner", owner);
+        props.put("karaf.lock.heartbeat.timeout", Long.toString(timeout));
+        return props;
+    }
+}
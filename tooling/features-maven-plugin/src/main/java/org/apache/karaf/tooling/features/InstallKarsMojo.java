@@ -24,18 +24,26 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
 
 import org.apache.karaf.deployer.kar.KarArtifactInstaller;
+import org.apache.karaf.features.ArtifactCache;
+import org.apache.karaf.features.BundleInfo;
 import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.InstallPlan;
+import org.apache.karaf.features.InstallTransaction;
 import org.apache.karaf.features.Repository;
+import org.apache.karaf.features.Timing;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.osgi.framework.Bundle;
 
 /**
  * Installs kar dependencies into a server-under-construction in target/assembly
@@ -151,6 +159,35 @@ public class InstallKarsMojo extends MojoSupport {
         public void installFeatures(Set<Feature> features, EnumSet<Option> options) throws Exception {
         }
 
+        public InstallTransaction createInstallTransaction(EnumSet<Option> options) {
+            return new InstallTransaction(this, options);
+        }
+
+        public InstallPlan plan(Set<Feature> features) throws Exception {
+            return new InstallPlan(new ArrayList<Feature>(), new ArrayList<BundleInfo>(),
+                    new ArrayList<Bundle>(), new HashSet<Bundle>());
+        }
+
+        public Timing[] getPhaseTimings() {
+            return new Timing[0];
+        }
+
+        public Timing[] getFeatureTimings() {
+            return new Timing[0];
+        }
+
+        public Timing[] getFeaturePhaseTimings() {
+            return new Timing[0];
+        }
+
+        public long getFeaturesRebuildCount() {
+            return 0;
+        }
+
+        public ArtifactCache getArtifactCache() {
+            return null;
+        }
+
         public void uninstallFeature(String name) throws Exception {
         }
 